@@ -0,0 +1,9 @@
+package info.tholstrup.utils.benchmarks;
+
+/**
+ * The interface proxied by the benchmarks.
+ */
+public interface Counter
+{
+    public long increment (long amount);
+}
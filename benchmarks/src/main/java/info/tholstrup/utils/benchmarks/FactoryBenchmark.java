@@ -0,0 +1,82 @@
+package info.tholstrup.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.tholstrup.utils.factory.BaseParameterizedFactory;
+
+/**
+ * The cost of getInstance when a new instance is created each time and when the instance comes from the cache, with and without
+ * constructor parameters, on one thread and on every core.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FactoryBenchmark
+{
+    private static final Class[] PARAMETER_TYPES = new Class[] { Long.class };
+    private static final Object[] PARAMETERS = new Object[] { Long.valueOf(42) };
+
+    private final CounterFactory newInstanceFactory = new CounterFactory(true);
+    private final CounterFactory cachedFactory = new CounterFactory(false);
+
+    @Benchmark
+    public Counter newInstanceEachTime ()
+    {
+        return newInstanceFactory.getInstance();
+    }
+
+    @Benchmark
+    public Counter newInstanceEachTimeWithParameter ()
+    {
+        return newInstanceFactory.getInstance(PARAMETER_TYPES, PARAMETERS);
+    }
+
+    @Benchmark
+    public Counter cached ()
+    {
+        return cachedFactory.getInstance();
+    }
+
+    @Benchmark
+    public Counter cachedWithParameter ()
+    {
+        return cachedFactory.getInstance(PARAMETER_TYPES, PARAMETERS);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Counter newInstanceEachTimeContended ()
+    {
+        return newInstanceFactory.getInstance(PARAMETER_TYPES, PARAMETERS);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Counter cachedContended ()
+    {
+        return cachedFactory.getInstance(PARAMETER_TYPES, PARAMETERS);
+    }
+
+    static class CounterFactory extends BaseParameterizedFactory<Counter>
+    {
+        CounterFactory(boolean createNewInstanceEachTime)
+        {
+            defaultCreateNewInstanceEachTime = createNewInstanceEachTime;
+            defaultImplementationClass = SimpleCounter.class;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package info.tholstrup.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.tholstrup.utils.code.injection.EntryAndExitHandler;
+import info.tholstrup.utils.code.injection.InterceptionSwitch;
+import info.tholstrup.utils.code.injection.ProxyAssistant;
+import info.tholstrup.utils.code.injection.TimingHandler;
+
+/**
+ * The per call overhead of the {@link TimingHandler} and the {@link EntryAndExitHandler} compared with calling the instance directly.
+ * Each thread has its own instances so the contended variants measure the shared state of the handlers rather than the counter. The
+ * generated variants use proxy classes generated at runtime, which run the interceptor chain themselves and call the instance directly
+ * while an {@link InterceptionSwitch} has no handlers set.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandlerOverheadBenchmark
+{
+    private Counter direct;
+    private Counter timed;
+    private Counter traced;
+    private Counter timedAndTraced;
+    private Counter timedAndTracedChain;
+    private Counter generatedChain;
+    private Counter generatedSwitchedOff;
+
+    @Setup
+    public void setUp ()
+    {
+        // only the cost of taking the measurement is of interest, not that of writing it to the log.
+        TimingHandler.setLoggingEnabled(false);
+        TimingHandler.setRecordingEnabled(true);
+        direct = new SimpleCounter();
+        timed = proxy(new Class[] { TimingHandler.class }, false);
+        traced = proxy(new Class[] { EntryAndExitHandler.class }, false);
+        timedAndTraced = proxy(new Class[] { TimingHandler.class, EntryAndExitHandler.class }, false);
+        timedAndTracedChain = proxy(new Class[] { TimingHandler.class, EntryAndExitHandler.class }, true);
+        ProxyAssistant.setClassGenerationEnabled(true);
+        generatedChain = proxy(new Class[] { TimingHandler.class, EntryAndExitHandler.class }, true);
+        generatedSwitchedOff = (Counter) ProxyAssistant.createSwitchableInstance(SimpleCounter.class, null, null,
+                new InterceptionSwitch());
+        ProxyAssistant.setClassGenerationEnabled(false);
+    }
+
+    @Benchmark
+    public long direct ()
+    {
+        return direct.increment(1);
+    }
+
+    @Benchmark
+    public long timingHandler ()
+    {
+        return timed.increment(1);
+    }
+
+    @Benchmark
+    public long entryAndExitHandler ()
+    {
+        return traced.increment(1);
+    }
+
+    @Benchmark
+    public long nestedHandlers ()
+    {
+        return timedAndTraced.increment(1);
+    }
+
+    @Benchmark
+    public long interceptorChain ()
+    {
+        return timedAndTracedChain.increment(1);
+    }
+
+    @Benchmark
+    public long generatedInterceptorChain ()
+    {
+        return generatedChain.increment(1);
+    }
+
+    @Benchmark
+    public long generatedSwitchedOff ()
+    {
+        return generatedSwitchedOff.increment(1);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long timingHandlerContended ()
+    {
+        return timed.increment(1);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long interceptorChainContended ()
+    {
+        return timedAndTracedChain.increment(1);
+    }
+
+    private static Counter proxy (Class[] handlers, boolean interceptorChain)
+    {
+        if (interceptorChain)
+        {
+            return (Counter) ProxyAssistant.createInterceptedInstance(SimpleCounter.class, null, null, handlers);
+        }
+        return (Counter) ProxyAssistant.createProxiedInstance(SimpleCounter.class, null, null, handlers);
+    }
+}
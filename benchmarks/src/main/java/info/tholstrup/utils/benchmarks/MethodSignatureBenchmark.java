@@ -0,0 +1,91 @@
+package info.tholstrup.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.tholstrup.utils.factory.InstanceKey;
+import info.tholstrup.utils.factory.MethodSignature;
+
+/**
+ * The cost of building cache keys and comparing them for the different numbers of constructor parameters, comparing the old
+ * {@link MethodSignature} key with the {@link InstanceKey} the factories now use.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MethodSignatureBenchmark
+{
+    @Param({ "0", "1", "2", "3", "6" })
+    public int arity;
+
+    private Class[] parameterTypes;
+    private Object[] parameters;
+    private MethodSignature signature;
+    private MethodSignature equalSignature;
+    private InstanceKey key;
+    private InstanceKey equalKey;
+
+    @Setup
+    public void setUp ()
+    {
+        parameterTypes = new Class[arity];
+        parameters = new Object[arity];
+        Object[] equalParameters = new Object[arity];
+        for (int i = 0; i < arity; i++)
+        {
+            parameterTypes[i] = String.class;
+            parameters[i] = "parameter" + i;
+            equalParameters[i] = new String("parameter" + i);
+        }
+        signature = new MethodSignature(parameterTypes, parameters);
+        equalSignature = new MethodSignature(parameterTypes.clone(), equalParameters);
+        key = InstanceKey.of(parameterTypes, parameters);
+        equalKey = InstanceKey.of(parameterTypes, equalParameters);
+    }
+
+    @Benchmark
+    public int methodSignatureHashCode ()
+    {
+        return new MethodSignature(parameterTypes, parameters).hashCode();
+    }
+
+    @Benchmark
+    public boolean methodSignatureEquals ()
+    {
+        return signature.equals(equalSignature);
+    }
+
+    @Benchmark
+    public int instanceKeyHashCode ()
+    {
+        return InstanceKey.of(parameterTypes, parameters).hashCode();
+    }
+
+    @Benchmark
+    public boolean instanceKeyEquals ()
+    {
+        return key.equals(equalKey);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int methodSignatureHashCodeContended ()
+    {
+        return new MethodSignature(parameterTypes, parameters).hashCode();
+    }
+}
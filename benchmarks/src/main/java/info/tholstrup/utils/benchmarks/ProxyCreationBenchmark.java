@@ -0,0 +1,73 @@
+package info.tholstrup.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.tholstrup.utils.code.injection.EntryAndExitHandler;
+import info.tholstrup.utils.code.injection.ProxyAssistant;
+import info.tholstrup.utils.code.injection.TimingHandler;
+
+/**
+ * The cost of creating a proxied instance with 0 to 3 handlers, either nested or as an interceptor chain.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProxyCreationBenchmark
+{
+    private static final Class[] PARAMETER_TYPES = new Class[] { Long.class };
+    private static final Object[] PARAMETERS = new Object[] { Long.valueOf(42) };
+    private static final Class[] ALL_HANDLERS = new Class[] { TimingHandler.class, EntryAndExitHandler.class, TimingHandler.class };
+
+    @Param({ "0", "1", "2", "3" })
+    public int depth;
+
+    @Param({ "false", "true" })
+    public boolean interceptorChain;
+
+    private Class[] handlers;
+
+    @Setup
+    public void setUp ()
+    {
+        handlers = new Class[depth];
+        System.arraycopy(ALL_HANDLERS, 0, handlers, 0, depth);
+    }
+
+    @Benchmark
+    public Object create ()
+    {
+        return createInstance();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object createContended ()
+    {
+        return createInstance();
+    }
+
+    private Object createInstance ()
+    {
+        if (interceptorChain)
+        {
+            return ProxyAssistant.createInterceptedInstance(SimpleCounter.class, PARAMETER_TYPES, PARAMETERS, handlers);
+        }
+        return ProxyAssistant.createProxiedInstance(SimpleCounter.class, PARAMETER_TYPES, PARAMETERS, handlers);
+    }
+}
@@ -0,0 +1,24 @@
+package info.tholstrup.utils.benchmarks;
+
+/**
+ * A class cheap enough to construct and call that the benchmarks measure the factory and proxy overhead rather than the class itself.
+ */
+public class SimpleCounter implements Counter
+{
+    private long count;
+
+    public SimpleCounter()
+    {
+    }
+
+    public SimpleCounter(Long start)
+    {
+        this.count = start.longValue();
+    }
+
+    public long increment (long amount)
+    {
+        count += amount;
+        return count;
+    }
+}
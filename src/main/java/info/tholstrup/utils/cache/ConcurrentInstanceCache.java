@@ -0,0 +1,145 @@
+package info.tholstrup.utils.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * A bounded cache for heavily contended factories. Lookups never take a lock, they read a {@link ConcurrentHashMap} and mark the entry as
+ * referenced (a write which only happens the first time the entry is hit after an eviction sweep).
+ * <p />
+ * Eviction uses the CLOCK approximation of LRU: once the cache holds more than its maximum size, the thread which grew the cache sweeps
+ * the entries, clearing the referenced mark of entries that have been hit since the last sweep and evicting the first entry that has
+ * not. Only one thread sweeps at a time, others carry on without waiting so the cache may briefly hold a few more entries than its
+ * maximum.
+ */
+public class ConcurrentInstanceCache<K, V> implements InstanceCache<K, V>
+{
+    private final long maximumSize;
+    private final ConcurrentHashMap<K, Node<V>> data = new ConcurrentHashMap<K, Node<V>>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /**
+     * Guarded by the evictionLock.
+     */
+    private Iterator<Map.Entry<K, Node<V>>> clockHand;
+    private volatile EvictionListener<? super K, ? super V> evictionListener;
+
+    /**
+     * @param maximumSize
+     *            The maximum number of entries held by the cache (cannot be negative).
+     */
+    public ConcurrentInstanceCache(long maximumSize)
+    {
+        Verifier.verifyTrue(maximumSize >= 0, "maximumSize cannot be negative");
+        this.maximumSize = maximumSize;
+    }
+
+    @Override
+    public V get (K key)
+    {
+        Node<V> node = data.get(key);
+        if (node == null)
+        {
+            return null;
+        }
+        if (!node.referenced)
+        {
+            node.referenced = true;
+        }
+        return node.value;
+    }
+
+    @Override
+    public void put (K key, V value)
+    {
+        Verifier.verifyNotNull(key);
+        Verifier.verifyNotNull(value);
+        data.put(key, new Node<V>(value));
+        if (data.size() > maximumSize)
+        {
+            evict();
+        }
+    }
+
+    @Override
+    public V remove (K key)
+    {
+        Node<V> removed = data.remove(key);
+        return removed == null ? null : removed.value;
+    }
+
+    @Override
+    public void clear ()
+    {
+        data.clear();
+    }
+
+    @Override
+    public long size ()
+    {
+        return data.size();
+    }
+
+    @Override
+    public void setEvictionListener (EvictionListener<? super K, ? super V> listener)
+    {
+        evictionListener = listener;
+    }
+
+    private void evict ()
+    {
+        if (!evictionLock.tryLock())
+        {
+            // another thread is already sweeping.
+            return;
+        }
+        try
+        {
+            // entries which are hit while we sweep are marked again, after two full sweeps the next entry is evicted regardless.
+            long secondChances = 2L * data.size();
+            while (data.size() > maximumSize)
+            {
+                if (clockHand == null || !clockHand.hasNext())
+                {
+                    clockHand = data.entrySet().iterator();
+                    if (!clockHand.hasNext())
+                    {
+                        return;
+                    }
+                }
+                Map.Entry<K, Node<V>> entry = clockHand.next();
+                Node<V> node = entry.getValue();
+                if (node.referenced && secondChances-- > 0)
+                {
+                    node.referenced = false;
+                }
+                else if (data.remove(entry.getKey(), node))
+                {
+                    EvictionListener<? super K, ? super V> listener = evictionListener;
+                    if (listener != null)
+                    {
+                        listener.onEviction(entry.getKey(), node.value);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    private static final class Node<V>
+    {
+        final V value;
+        volatile boolean referenced;
+
+        Node(V value)
+        {
+            this.value = value;
+        }
+    }
+}
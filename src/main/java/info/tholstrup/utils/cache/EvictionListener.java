@@ -0,0 +1,17 @@
+package info.tholstrup.utils.cache;
+
+/**
+ * Notified when an {@link InstanceCache} evicts an entry to stay within its bounds, or when an {@link ExpiringInstanceCache} drops an
+ * expired entry. Entries which are removed or cleared explicitly are not reported. The listener may be called while the cache holds its
+ * lock so it must be quick and must not call back into the cache.
+ */
+public interface EvictionListener<K, V>
+{
+    /**
+     * @param key
+     *            The key of the evicted entry.
+     * @param value
+     *            The value of the evicted entry.
+     */
+    public void onEviction (K key, V value);
+}
@@ -0,0 +1,254 @@
+package info.tholstrup.utils.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * Adds time based expiry to another cache, which still decides which entries to evict to stay within its bounds. An entry expires once it
+ * has been in the cache for the expire after write time, or once it has not been read for the expire after access time, whichever comes
+ * first. An expired entry is dropped when it is next read and reported to the eviction listener as an eviction.
+ * <p />
+ * With refresh ahead, an entry which is read after it has been in the cache for the refresh after write time (but before it has expired) is
+ * rebuilt in the background by the {@link Refresher}, while callers keep getting the old value. Only one refresh runs per entry at a time.
+ * If the refresh fails or returns null the old value stays until it expires.
+ * <p />
+ * The expiry times are kept alongside the entries of the wrapped cache, entries of the wrapped cache should not be added or removed other
+ * than through this cache.
+ */
+public class ExpiringInstanceCache<K, V> implements InstanceCache<K, V>
+{
+    private final InstanceCache<K, V> delegate;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final long refreshAfterWriteNanos;
+    private final ConcurrentHashMap<K, Stamp<K, V>> stamps = new ConcurrentHashMap<K, Stamp<K, V>>();
+    private volatile Refresher<? super K, V> refresher;
+    private volatile Executor refreshExecutor = ForkJoinPool.commonPool();
+    private volatile EvictionListener<? super K, ? super V> evictionListener;
+
+    /**
+     * @param delegate
+     *            The cache holding the entries (cannot be null).
+     * @param expireAfterWrite
+     *            The time after which an entry expires once it has been cached, 0 to never expire after write.
+     * @param expireAfterAccess
+     *            The time after which an entry expires once it was last read, 0 to never expire after access.
+     * @param unit
+     *            The unit of the times (cannot be null).
+     */
+    public ExpiringInstanceCache(InstanceCache<K, V> delegate, long expireAfterWrite, long expireAfterAccess, TimeUnit unit)
+    {
+        this(delegate, expireAfterWrite, expireAfterAccess, 0, unit);
+    }
+
+    /**
+     * @param delegate
+     *            The cache holding the entries (cannot be null).
+     * @param expireAfterWrite
+     *            The time after which an entry expires once it has been cached, 0 to never expire after write.
+     * @param expireAfterAccess
+     *            The time after which an entry expires once it was last read, 0 to never expire after access.
+     * @param refreshAfterWrite
+     *            The time after which an entry is refreshed once it has been cached, 0 to never refresh. Should be shorter than
+     *            expireAfterWrite, an entry is only refreshed if it is read before it expires.
+     * @param unit
+     *            The unit of the times (cannot be null).
+     */
+    public ExpiringInstanceCache(InstanceCache<K, V> delegate, long expireAfterWrite, long expireAfterAccess, long refreshAfterWrite,
+            TimeUnit unit)
+    {
+        Verifier.verifyNotNull(delegate);
+        Verifier.verifyNotNull(unit);
+        Verifier.verifyTrue(expireAfterWrite >= 0 && expireAfterAccess >= 0 && refreshAfterWrite >= 0, "times cannot be negative");
+        this.delegate = delegate;
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+        this.expireAfterAccessNanos = unit.toNanos(expireAfterAccess);
+        this.refreshAfterWriteNanos = unit.toNanos(refreshAfterWrite);
+        delegate.setEvictionListener(new EvictionListener<K, V>()
+        {
+            @Override
+            public void onEviction (K key, V value)
+            {
+                Stamp<K, V> stamp = stamps.get(key);
+                if (stamp != null && stamp.value == value)
+                {
+                    stamps.remove(key, stamp);
+                }
+                notifyEviction(key, value);
+            }
+        });
+    }
+
+    /**
+     * @param refresher
+     *            Rebuilds entries which are due to be refreshed, null to not refresh.
+     * @param executor
+     *            Runs the refreshes (cannot be null).
+     */
+    public void setRefresher (Refresher<? super K, V> refresher, Executor executor)
+    {
+        Verifier.verifyNotNull(executor);
+        this.refreshExecutor = executor;
+        this.refresher = refresher;
+    }
+
+    /**
+     * @return True if entries are refreshed ahead of their expiry, which needs a refresher.
+     */
+    public boolean isRefreshAhead ()
+    {
+        return refreshAfterWriteNanos > 0;
+    }
+
+    @Override
+    public V get (K key)
+    {
+        V value = delegate.get(key);
+        if (value == null)
+        {
+            return null;
+        }
+        Stamp<K, V> stamp = stamps.get(key);
+        if (stamp == null || stamp.value != value)
+        {
+            // the entry is being replaced, the new stamp will follow.
+            return value;
+        }
+        long now = System.nanoTime();
+        if (isExpired(stamp, now))
+        {
+            // only the thread which removes the stamp removes the entry, so a newer entry for the key is never removed.
+            if (stamps.remove(key, stamp))
+            {
+                delegate.remove(stamp.key);
+                notifyEviction(stamp.key, value);
+            }
+            return null;
+        }
+        if (expireAfterAccessNanos > 0)
+        {
+            stamp.accessNanos = now;
+        }
+        if (refreshAfterWriteNanos > 0 && now - stamp.writeNanos >= refreshAfterWriteNanos)
+        {
+            refresh(stamp);
+        }
+        return value;
+    }
+
+    @Override
+    public void put (K key, V value)
+    {
+        Verifier.verifyNotNull(key);
+        Verifier.verifyNotNull(value);
+        stamps.put(key, new Stamp<K, V>(key, value, System.nanoTime()));
+        delegate.put(key, value);
+    }
+
+    @Override
+    public V remove (K key)
+    {
+        stamps.remove(key);
+        return delegate.remove(key);
+    }
+
+    @Override
+    public void clear ()
+    {
+        delegate.clear();
+        stamps.clear();
+    }
+
+    @Override
+    public long size ()
+    {
+        return delegate.size();
+    }
+
+    @Override
+    public void setEvictionListener (EvictionListener<? super K, ? super V> listener)
+    {
+        this.evictionListener = listener;
+    }
+
+    private boolean isExpired (Stamp<K, V> stamp, long now)
+    {
+        return (expireAfterWriteNanos > 0 && now - stamp.writeNanos >= expireAfterWriteNanos)
+                || (expireAfterAccessNanos > 0 && now - stamp.accessNanos >= expireAfterAccessNanos);
+    }
+
+    private void refresh (final Stamp<K, V> stamp)
+    {
+        final Refresher<? super K, V> currentRefresher = refresher;
+        if (currentRefresher == null || !stamp.refreshing.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            refreshExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run ()
+                {
+                    V newValue = null;
+                    try
+                    {
+                        newValue = currentRefresher.refresh(stamp.key, stamp.value);
+                    }
+                    finally
+                    {
+                        // replace the entry only if it has not been replaced or dropped while refreshing.
+                        if (newValue == null || stamps.get(stamp.key) != stamp)
+                        {
+                            stamp.refreshing.set(false);
+                        }
+                        else
+                        {
+                            put(stamp.key, newValue);
+                        }
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            // the executor rejected the refresh, try again on a later read.
+            stamp.refreshing.set(false);
+        }
+    }
+
+    private void notifyEviction (K key, V value)
+    {
+        EvictionListener<? super K, ? super V> listener = evictionListener;
+        if (listener != null)
+        {
+            listener.onEviction(key, value);
+        }
+    }
+
+    /**
+     * The times of an entry. The stored key is kept so that the entry can be refreshed, lookups may be made with a key which is reused.
+     */
+    private static final class Stamp<K, V>
+    {
+        final K key;
+        final V value;
+        final long writeNanos;
+        volatile long accessNanos;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Stamp(K key, V value, long writeNanos)
+        {
+            this.key = key;
+            this.value = value;
+            this.writeNanos = writeNanos;
+            this.accessNanos = writeNanos;
+        }
+    }
+}
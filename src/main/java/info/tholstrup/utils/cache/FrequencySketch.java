@@ -0,0 +1,98 @@
+package info.tholstrup.utils.cache;
+
+/**
+ * A count-min sketch which estimates how often a key has been seen using a fixed amount of memory. Each key maps to one four bit counter
+ * in each of four rows and its frequency is the smallest of those counters. All counters are halved periodically so that the sketch
+ * forgets keys which used to be popular but are no longer used.
+ * <p />
+ * This class is not thread safe, callers must synchronize access.
+ */
+final class FrequencySketch
+{
+    private static final int MAXIMUM_COUNT = 15;
+    private static final int MAXIMUM_TABLE_SIZE = 1 << 24;
+    private static final int[] SEEDS = new int[] { 0x97cb3127, 0xb3cbe2ad, 0x5aa7d9f5, 0xc2b2ae35 };
+
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param maximumSize
+     *            The expected maximum number of entries in the cache, used to size the sketch.
+     */
+    FrequencySketch(long maximumSize)
+    {
+        // eight counters per entry keeps collisions between the keys rare enough for the estimates to be useful.
+        int size = 16;
+        while (size < MAXIMUM_TABLE_SIZE && size < 8 * maximumSize)
+        {
+            size <<= 1;
+        }
+        table = new byte[size];
+        mask = size - 1;
+        sampleSize = (int) Math.min(10 * Math.max(maximumSize, 1), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return The estimated number of times the key has been seen (between 0 and 15).
+     */
+    int frequency (Object key)
+    {
+        int hash = spread(key.hashCode());
+        int frequency = MAXIMUM_COUNT;
+        for (int row = 0; row < SEEDS.length; row++)
+        {
+            frequency = Math.min(frequency, table[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of the key.
+     */
+    void increment (Object key)
+    {
+        int hash = spread(key.hashCode());
+        boolean incremented = false;
+        for (int row = 0; row < SEEDS.length; row++)
+        {
+            int index = indexOf(hash, row);
+            if (table[index] < MAXIMUM_COUNT)
+            {
+                table[index]++;
+                incremented = true;
+            }
+        }
+        if (incremented && ++additions >= sampleSize)
+        {
+            reset();
+        }
+    }
+
+    /**
+     * Halves every counter so that old popularity decays.
+     */
+    private void reset ()
+    {
+        for (int index = 0; index < table.length; index++)
+        {
+            table[index] = (byte) (table[index] >>> 1);
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf (int hash, int row)
+    {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private static int spread (int hash)
+    {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 15);
+    }
+}
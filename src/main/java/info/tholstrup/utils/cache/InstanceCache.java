@@ -0,0 +1,55 @@
+package info.tholstrup.utils.cache;
+
+/**
+ * The service provider interface for the caches used by the factories to hold on to cached instances. Implementations decide how many
+ * entries are kept and which entries are evicted once the cache is full.
+ * <p />
+ * Implementations must be safe for use by multiple threads and must not hold on to the key passed to {@link #get(Object)}, lookups may be
+ * made with a key object which is reused once the lookup has completed.
+ * 
+ * @see LruInstanceCache
+ * @see TinyLfuInstanceCache
+ * @see UnboundedInstanceCache
+ */
+public interface InstanceCache<K, V>
+{
+    /**
+     * @param key
+     *            The key to look up (cannot be null).
+     * @return The cached value or null if the key is not cached.
+     */
+    public V get (K key);
+
+    /**
+     * Caches the value, evicting other entries if the cache has grown beyond its bounds.
+     * 
+     * @param key
+     *            The key (cannot be null).
+     * @param value
+     *            The value (cannot be null).
+     */
+    public void put (K key, V value);
+
+    /**
+     * @param key
+     *            The key to remove (cannot be null).
+     * @return The value which was removed or null if the key was not cached.
+     */
+    public V remove (K key);
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public void clear ();
+
+    /**
+     * @return The number of entries currently held by the cache.
+     */
+    public long size ();
+
+    /**
+     * @param listener
+     *            Notified of every entry the cache evicts from now on, null to stop notifying.
+     */
+    public void setEvictionListener (EvictionListener<? super K, ? super V> listener);
+}
@@ -0,0 +1,136 @@
+package info.tholstrup.utils.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * A bounded cache which evicts the least recently used entry once the cache is full. All operations synchronize on the cache.
+ */
+public class LruInstanceCache<K, V> implements InstanceCache<K, V>
+{
+    private final long maximumWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final LinkedHashMap<K, WeightedValue<V>> data = new LinkedHashMap<K, WeightedValue<V>>(16, 0.75f, true);
+    private long weightedSize;
+    private volatile EvictionListener<? super K, ? super V> evictionListener;
+
+    /**
+     * @param maximumSize
+     *            The maximum number of entries held by the cache (cannot be negative).
+     */
+    public LruInstanceCache(long maximumSize)
+    {
+        this(maximumSize, null);
+    }
+
+    /**
+     * @param maximumWeight
+     *            The maximum total weight of the entries held by the cache (cannot be negative).
+     * @param weigher
+     *            Calculates the weight of each entry, if null each entry has a weight of one.
+     */
+    public LruInstanceCache(long maximumWeight, Weigher<? super K, ? super V> weigher)
+    {
+        Verifier.verifyTrue(maximumWeight >= 0, "maximumWeight cannot be negative");
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+    }
+
+    @Override
+    public synchronized V get (K key)
+    {
+        WeightedValue<V> weightedValue = data.get(key);
+        return weightedValue == null ? null : weightedValue.value;
+    }
+
+    @Override
+    public synchronized void put (K key, V value)
+    {
+        Verifier.verifyNotNull(key);
+        Verifier.verifyNotNull(value);
+        int weight = weigh(key, value);
+        WeightedValue<V> previous = data.put(key, new WeightedValue<V>(value, weight));
+        if (previous != null)
+        {
+            weightedSize -= previous.weight;
+        }
+        weightedSize += weight;
+        evict();
+    }
+
+    @Override
+    public synchronized V remove (K key)
+    {
+        WeightedValue<V> removed = data.remove(key);
+        if (removed == null)
+        {
+            return null;
+        }
+        weightedSize -= removed.weight;
+        return removed.value;
+    }
+
+    @Override
+    public synchronized void clear ()
+    {
+        data.clear();
+        weightedSize = 0;
+    }
+
+    @Override
+    public synchronized long size ()
+    {
+        return data.size();
+    }
+
+    @Override
+    public void setEvictionListener (EvictionListener<? super K, ? super V> listener)
+    {
+        evictionListener = listener;
+    }
+
+    /**
+     * Removes entries, least recently used first, until the cache is within its maximum weight.
+     */
+    private void evict ()
+    {
+        Iterator<Map.Entry<K, WeightedValue<V>>> iterator = data.entrySet().iterator();
+        while (weightedSize > maximumWeight && iterator.hasNext())
+        {
+            Map.Entry<K, WeightedValue<V>> eldest = iterator.next();
+            iterator.remove();
+            weightedSize -= eldest.getValue().weight;
+            EvictionListener<? super K, ? super V> listener = evictionListener;
+            if (listener != null)
+            {
+                listener.onEviction(eldest.getKey(), eldest.getValue().value);
+            }
+        }
+    }
+
+    private int weigh (K key, V value)
+    {
+        if (weigher == null)
+        {
+            return 1;
+        }
+        int weight = weigher.weigh(key, value);
+        Verifier.verifyTrue(weight >= 0, "weight cannot be negative");
+        return weight;
+    }
+
+    private static final class WeightedValue<V>
+    {
+        final V value;
+        final int weight;
+
+        WeightedValue(V value, int weight)
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
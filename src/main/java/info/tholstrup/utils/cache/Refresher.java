@@ -0,0 +1,17 @@
+package info.tholstrup.utils.cache;
+
+/**
+ * Rebuilds the value of an entry which an {@link ExpiringInstanceCache} refreshes ahead of its expiry. Refreshes run in the background,
+ * callers keep getting the old value until the refresh completes.
+ */
+public interface Refresher<K, V>
+{
+    /**
+     * @param key
+     *            The key of the entry.
+     * @param oldValue
+     *            The value being refreshed.
+     * @return The new value, or null to leave the old value in place until it expires.
+     */
+    public V refresh (K key, V oldValue);
+}
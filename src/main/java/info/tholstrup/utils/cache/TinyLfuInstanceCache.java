@@ -0,0 +1,318 @@
+package info.tholstrup.utils.cache;
+
+import java.util.HashMap;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * A bounded cache using the W-TinyLFU eviction policy. New entries enter a small LRU window (1% of the capacity). Entries leaving the
+ * window only displace an entry of the main region if they have been requested more often, the main region is a segmented LRU which keeps
+ * entries that have been hit more than once in a protected segment. Request frequencies are estimated with a {@link FrequencySketch} so
+ * keys which are no longer cached are still remembered.
+ * <p />
+ * Compared to a plain LRU this keeps popular instances cached when a burst of one-off requests passes through the factory. All operations
+ * synchronize on the cache.
+ */
+public class TinyLfuInstanceCache<K, V> implements InstanceCache<K, V>
+{
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final long maximumWeight;
+    private final long maximumWindowWeight;
+    private final long maximumProtectedWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final HashMap<K, Node<K, V>> data = new HashMap<K, Node<K, V>>();
+    private final FrequencySketch sketch;
+    private volatile EvictionListener<? super K, ? super V> evictionListener;
+    private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+
+    /**
+     * @param maximumSize
+     *            The maximum number of entries held by the cache (cannot be negative).
+     */
+    public TinyLfuInstanceCache(long maximumSize)
+    {
+        this(maximumSize, null);
+    }
+
+    /**
+     * @param maximumWeight
+     *            The maximum total weight of the entries held by the cache (cannot be negative).
+     * @param weigher
+     *            Calculates the weight of each entry, if null each entry has a weight of one.
+     */
+    public TinyLfuInstanceCache(long maximumWeight, Weigher<? super K, ? super V> weigher)
+    {
+        Verifier.verifyTrue(maximumWeight >= 0, "maximumWeight cannot be negative");
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.maximumWindowWeight = Math.max(1, maximumWeight / 100);
+        this.maximumProtectedWeight = (long) ((maximumWeight - maximumWindowWeight) * 0.8);
+        this.sketch = new FrequencySketch(maximumWeight);
+    }
+
+    @Override
+    public synchronized V get (K key)
+    {
+        sketch.increment(key);
+        Node<K, V> node = data.get(key);
+        if (node == null)
+        {
+            return null;
+        }
+        onHit(node);
+        return node.value;
+    }
+
+    @Override
+    public synchronized void put (K key, V value)
+    {
+        Verifier.verifyNotNull(key);
+        Verifier.verifyNotNull(value);
+        int weight = weigh(key, value);
+        Node<K, V> node = data.get(key);
+        if (node == null)
+        {
+            sketch.increment(key);
+            node = new Node<K, V>(key, value, weight);
+            data.put(key, node);
+            window.add(node);
+        }
+        else
+        {
+            queueOf(node).weight += weight - node.weight;
+            node.value = value;
+            node.weight = weight;
+            onHit(node);
+        }
+        evict();
+    }
+
+    @Override
+    public synchronized V remove (K key)
+    {
+        Node<K, V> node = data.remove(key);
+        if (node == null)
+        {
+            return null;
+        }
+        queueOf(node).remove(node);
+        return node.value;
+    }
+
+    @Override
+    public synchronized void clear ()
+    {
+        data.clear();
+        window.clear();
+        probation.clear();
+        protectedQueue.clear();
+    }
+
+    @Override
+    public synchronized long size ()
+    {
+        return data.size();
+    }
+
+    private void onHit (Node<K, V> node)
+    {
+        switch (node.queue)
+        {
+            case WINDOW:
+                window.moveToTail(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedQueue.add(node);
+                // the protected segment may now be too large, its least recently used entries get another chance in probation.
+                while (protectedQueue.weight > maximumProtectedWeight && protectedQueue.head != node)
+                {
+                    Node<K, V> demoted = protectedQueue.head;
+                    protectedQueue.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.add(demoted);
+                }
+                break;
+            default:
+                protectedQueue.moveToTail(node);
+                break;
+        }
+    }
+
+    /**
+     * Moves entries which overflow the window into probation and then, while the cache is too heavy, lets each of those candidates compete
+     * with the least recently used entry of probation. The entry with the lower estimated frequency is evicted.
+     */
+    private void evict ()
+    {
+        Node<K, V> candidate = null;
+        while (window.weight > maximumWindowWeight && window.head != null)
+        {
+            Node<K, V> node = window.head;
+            window.remove(node);
+            node.queue = PROBATION;
+            probation.add(node);
+            if (candidate == null)
+            {
+                candidate = node;
+            }
+        }
+
+        while (window.weight + probation.weight + protectedQueue.weight > maximumWeight)
+        {
+            Node<K, V> victim = probation.head;
+            if (victim == null)
+            {
+                evictNode(protectedQueue.head != null ? protectedQueue.head : window.head);
+            }
+            else if (candidate == null)
+            {
+                evictNode(victim);
+            }
+            else if (candidate == victim)
+            {
+                candidate = candidate.next;
+                evictNode(victim);
+            }
+            else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key))
+            {
+                evictNode(victim);
+            }
+            else
+            {
+                Node<K, V> rejected = candidate;
+                candidate = candidate.next;
+                evictNode(rejected);
+            }
+        }
+    }
+
+    @Override
+    public void setEvictionListener (EvictionListener<? super K, ? super V> listener)
+    {
+        evictionListener = listener;
+    }
+
+    private void evictNode (Node<K, V> node)
+    {
+        data.remove(node.key);
+        queueOf(node).remove(node);
+        EvictionListener<? super K, ? super V> listener = evictionListener;
+        if (listener != null)
+        {
+            listener.onEviction(node.key, node.value);
+        }
+    }
+
+    private AccessQueue<K, V> queueOf (Node<K, V> node)
+    {
+        switch (node.queue)
+        {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedQueue;
+        }
+    }
+
+    private int weigh (K key, V value)
+    {
+        if (weigher == null)
+        {
+            return 1;
+        }
+        int weight = weigher.weigh(key, value);
+        Verifier.verifyTrue(weight >= 0, "weight cannot be negative");
+        return weight;
+    }
+
+    private static final class Node<K, V>
+    {
+        final K key;
+        V value;
+        int weight;
+        int queue = WINDOW;
+        Node<K, V> previous;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight)
+        {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A doubly linked list ordered from least recently used (head) to most recently used (tail) which keeps track of its total weight.
+     */
+    private static final class AccessQueue<K, V>
+    {
+        Node<K, V> head;
+        Node<K, V> tail;
+        long weight;
+
+        void add (Node<K, V> node)
+        {
+            node.previous = tail;
+            node.next = null;
+            if (tail == null)
+            {
+                head = node;
+            }
+            else
+            {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove (Node<K, V> node)
+        {
+            if (node.previous == null)
+            {
+                head = node.next;
+            }
+            else
+            {
+                node.previous.next = node.next;
+            }
+            if (node.next == null)
+            {
+                tail = node.previous;
+            }
+            else
+            {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToTail (Node<K, V> node)
+        {
+            if (node != tail)
+            {
+                remove(node);
+                add(node);
+            }
+        }
+
+        void clear ()
+        {
+            head = null;
+            tail = null;
+            weight = 0;
+        }
+    }
+}
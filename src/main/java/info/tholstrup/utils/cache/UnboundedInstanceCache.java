@@ -0,0 +1,54 @@
+package info.tholstrup.utils.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * A cache which never evicts anything. Only use this if the number of keys is known to be small, it is mostly useful for tests which
+ * override cached instances.
+ */
+public class UnboundedInstanceCache<K, V> implements InstanceCache<K, V>
+{
+    private final ConcurrentHashMap<K, V> data = new ConcurrentHashMap<K, V>();
+
+    @Override
+    public V get (K key)
+    {
+        return data.get(key);
+    }
+
+    @Override
+    public void put (K key, V value)
+    {
+        Verifier.verifyNotNull(key);
+        Verifier.verifyNotNull(value);
+        data.put(key, value);
+    }
+
+    @Override
+    public V remove (K key)
+    {
+        return data.remove(key);
+    }
+
+    @Override
+    public void clear ()
+    {
+        data.clear();
+    }
+
+    @Override
+    public long size ()
+    {
+        return data.size();
+    }
+
+    /**
+     * This cache never evicts so the listener is never notified.
+     */
+    @Override
+    public void setEvictionListener (EvictionListener<? super K, ? super V> listener)
+    {
+    }
+}
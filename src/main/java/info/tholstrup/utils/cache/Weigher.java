@@ -0,0 +1,17 @@
+package info.tholstrup.utils.cache;
+
+/**
+ * Calculates the weight of a cache entry. Bounded caches which are given a Weigher are bounded by the total weight of their entries rather
+ * than by the number of entries.
+ */
+public interface Weigher<K, V>
+{
+    /**
+     * @param key
+     *            The key of the entry.
+     * @param value
+     *            The value of the entry.
+     * @return The weight of the entry, must not be negative. The weight of an entry is calculated once when it is put into the cache.
+     */
+    public int weigh (K key, V value);
+}
@@ -0,0 +1,51 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks a method taking a single item whose concurrent calls the {@link BatchingHandler} may combine into one call of a bulk method. The
+ * annotation may be placed on the method of the interface or of the implementation class.
+ * <p />
+ * The bulk method is a public method of the same class taking a single List (or Collection) of items, and returning either a List with
+ * the result of each item in the same order or a Map from item to result. The batched method may return its result or a
+ * CompletableFuture of it, in which case the caller does not wait for the batch.
+ * <p />
+ * For example:
+ * 
+ * <pre>
+ * &#064;Batchable(bulkMethod = &quot;findAll&quot;)
+ * public Customer find (String id);
+ * 
+ * public Map&lt;String, Customer&gt; findAll (List&lt;String&gt; ids);
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Batchable
+{
+    /**
+     * @return The name of the bulk method.
+     */
+    String bulkMethod();
+
+    /**
+     * @return The most items passed to one call of the bulk method, a batch which reaches this size is run at once.
+     */
+    int maxBatchSize() default 64;
+
+    /**
+     * @return The longest time the first item of a batch waits for other items.
+     */
+    long maxDelay() default 2;
+
+    /**
+     * @return The unit of maxDelay.
+     */
+    TimeUnit unit() default TimeUnit.MILLISECONDS;
+}
@@ -0,0 +1,400 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * An invocation handler which combines concurrent calls of the methods annotated with {@link Batchable} into calls of their bulk methods.
+ * Other methods are called straight through. It can also be used as an {@link Interceptor} in an interceptor chain, the bulk methods are
+ * then called on the target directly rather than through the interceptors after this one.
+ * <p />
+ * The items of a method are collected per instance until either the maximum batch size is reached, in which case the caller which filled
+ * the batch runs the bulk method, or the maximum delay of the first item has passed, in which case the bulk method is run on the batching
+ * executor (see {@link #setExecutor(Executor)}). Each caller is then handed its own result, or the exception thrown by the bulk method. A
+ * method returning a CompletableFuture returns at once, other methods wait for their batch. A caller whose item is missing from the Map
+ * returned by the bulk method, or whose primitive result is null, gets an IllegalStateException.
+ */
+public class BatchingHandler extends FactoryInvocationHandler implements Interceptor
+{
+    private static final ConcurrentHashMap<MethodMetadata, BatchableMethod> batchableMethods =
+            new ConcurrentHashMap<MethodMetadata, BatchableMethod>();
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(
+            "BatchingHandler-timer"));
+    static
+    {
+        // batches which fill up cancel their flush, so drop those tasks at once rather than keeping them until they are due.
+        timer.setRemoveOnCancelPolicy(true);
+    }
+    private static final ExecutorService defaultExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("BatchingHandler-bulk"));
+    private static volatile Executor executor = defaultExecutor;
+
+    private final ConcurrentHashMap<MethodMetadata, Batcher> batchers = new ConcurrentHashMap<MethodMetadata, Batcher>();
+    protected Object delegate;
+
+    /**
+     * @param delegate
+     *            The object whose calls are batched.
+     */
+    public BatchingHandler(Object delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+    {
+        return intercept(new Invocation(delegate, getMethodMetadata(method), args));
+    }
+
+    @Override
+    public Object intercept (Invocation invocation) throws Throwable
+    {
+        MethodMetadata method = invocation.getMethodMetadata();
+        BatchableMethod batchableMethod = batchableMethodOf(method);
+        if (batchableMethod.batchable == null)
+        {
+            return invocation.proceed();
+        }
+        CompletableFuture<Object> result = batcherOf(method, batchableMethod, invocation.getTarget()).add(invocation.getArguments()[0]);
+        if (batchableMethod.returnsFuture)
+        {
+            return result;
+        }
+        try
+        {
+            return result.join();
+        }
+        catch (CompletionException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public Object getDelegate ()
+    {
+        return delegate;
+    }
+
+    /**
+     * @param batchExecutor
+     *            Runs the bulk methods of the batches which are not filled within their maximum delay, null for the default executor (a
+     *            thread per concurrent batch).
+     */
+    public static void setExecutor (Executor batchExecutor)
+    {
+        executor = batchExecutor == null ? defaultExecutor : batchExecutor;
+    }
+
+    /**
+     * @return The number of flushes waiting for their batch's maximum delay to pass.
+     */
+    static int getScheduledFlushCount ()
+    {
+        return timer.getQueue().size();
+    }
+
+    private Batcher batcherOf (MethodMetadata method, BatchableMethod batchableMethod, Object target)
+    {
+        Batcher batcher = batchers.get(method);
+        if (batcher == null)
+        {
+            batcher = new Batcher(batchableMethod, target);
+            Batcher existing = batchers.putIfAbsent(method, batcher);
+            if (existing != null)
+            {
+                batcher = existing;
+            }
+        }
+        return batcher;
+    }
+
+    private static BatchableMethod batchableMethodOf (MethodMetadata method)
+    {
+        BatchableMethod batchableMethod = batchableMethods.get(method);
+        if (batchableMethod == null)
+        {
+            batchableMethod = new BatchableMethod(method);
+            BatchableMethod existing = batchableMethods.putIfAbsent(method, batchableMethod);
+            if (existing != null)
+            {
+                batchableMethod = existing;
+            }
+        }
+        return batchableMethod;
+    }
+
+    /**
+     * A batched method and its bulk method, shared by the handlers of every instance of the wrapped class.
+     */
+    private static final class BatchableMethod
+    {
+        /**
+         * Null if the method is not batched.
+         */
+        final Batchable batchable;
+        final MethodMetadata bulkMethod;
+        final boolean returnsFuture;
+        /**
+         * True if the method returns a primitive, which a null result cannot be unboxed to.
+         */
+        final boolean returnsPrimitive;
+        final long maxDelayNanos;
+
+        BatchableMethod(MethodMetadata method)
+        {
+            Method proxiedMethod = method.getMethod();
+            Batchable annotation = proxiedMethod.getAnnotation(Batchable.class);
+            if (annotation == null)
+            {
+                try
+                {
+                    annotation = method.getWrappedClass().getMethod(proxiedMethod.getName(), proxiedMethod.getParameterTypes())
+                            .getAnnotation(Batchable.class);
+                }
+                catch (NoSuchMethodException e)
+                {
+                    // the wrapped class does not declare it, so it is not annotated there either.
+                }
+            }
+            this.batchable = annotation;
+            if (annotation == null)
+            {
+                this.bulkMethod = null;
+                this.returnsFuture = false;
+                this.returnsPrimitive = false;
+                this.maxDelayNanos = 0;
+                return;
+            }
+
+            Verifier.verifyTrue(proxiedMethod.getParameterCount() == 1, method.getQualifiedName()
+                    + " cannot be batched as it does not take exactly one parameter");
+            Verifier.verifyTrue(annotation.maxBatchSize() > 0, "The maxBatchSize of " + method.getQualifiedName() + " must be positive");
+            // prefer the bulk method of the proxied interface, the target may itself be a proxy of the interface.
+            Method bulk = findBulkMethod(proxiedMethod.getDeclaringClass(), annotation.bulkMethod());
+            if (bulk == null)
+            {
+                bulk = findBulkMethod(method.getWrappedClass(), annotation.bulkMethod());
+            }
+            Verifier.verifyTrue(bulk != null, method.getQualifiedName() + " names the bulk method " + annotation.bulkMethod()
+                    + " but there is no public method of that name taking a single List and returning a List or Map");
+            this.bulkMethod = MethodMetadata.forMethod(method.getWrappedClass(), bulk);
+            this.returnsFuture = proxiedMethod.getReturnType().isAssignableFrom(CompletableFuture.class)
+                    && proxiedMethod.getReturnType() != Object.class;
+            this.returnsPrimitive = proxiedMethod.getReturnType().isPrimitive() && proxiedMethod.getReturnType() != void.class;
+            this.maxDelayNanos = annotation.unit().toNanos(annotation.maxDelay());
+        }
+
+        private static Method findBulkMethod (Class type, String name)
+        {
+            for (Method candidate : type.getMethods())
+            {
+                if (candidate.getName().equals(name) && candidate.getParameterCount() == 1
+                        && candidate.getParameterTypes()[0].isAssignableFrom(ArrayList.class)
+                        && (List.class.isAssignableFrom(candidate.getReturnType())
+                                || Map.class.isAssignableFrom(candidate.getReturnType())))
+                {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Collects the items of one batched method of one instance.
+     */
+    private static final class Batcher
+    {
+        private final BatchableMethod batchableMethod;
+        private final Object target;
+        private List<Object> items;
+        private List<CompletableFuture<Object>> results;
+        private ScheduledFuture<?> flushTask;
+
+        Batcher(BatchableMethod batchableMethod, Object target)
+        {
+            this.batchableMethod = batchableMethod;
+            this.target = target;
+        }
+
+        CompletableFuture<Object> add (Object item)
+        {
+            CompletableFuture<Object> result = new CompletableFuture<Object>();
+            List<Object> fullItems = null;
+            List<CompletableFuture<Object>> fullResults = null;
+            ScheduledFuture<?> unneededFlush = null;
+            synchronized (this)
+            {
+                if (items == null)
+                {
+                    items = new ArrayList<Object>();
+                    results = new ArrayList<CompletableFuture<Object>>();
+                    flushTask = scheduleFlush(items);
+                }
+                items.add(item);
+                results.add(result);
+                if (items.size() >= batchableMethod.batchable.maxBatchSize())
+                {
+                    fullItems = items;
+                    fullResults = results;
+                    unneededFlush = flushTask;
+                    items = null;
+                    results = null;
+                    flushTask = null;
+                }
+            }
+            if (fullItems != null)
+            {
+                if (unneededFlush != null)
+                {
+                    unneededFlush.cancel(false);
+                }
+                run(fullItems, fullResults);
+            }
+            return result;
+        }
+
+        private ScheduledFuture<?> scheduleFlush (final List<Object> batch)
+        {
+            return timer.schedule(new Runnable()
+            {
+                public void run ()
+                {
+                    flush(batch);
+                }
+            }, batchableMethod.maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Runs the given batch on the executor, unless it has already been run because it filled up.
+         */
+        private void flush (List<Object> batch)
+        {
+            final List<Object> dueItems;
+            final List<CompletableFuture<Object>> dueResults;
+            synchronized (this)
+            {
+                if (items != batch)
+                {
+                    return;
+                }
+                dueItems = items;
+                dueResults = results;
+                items = null;
+                results = null;
+                flushTask = null;
+            }
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run ()
+                    {
+                        Batcher.this.run(dueItems, dueResults);
+                    }
+                });
+            }
+            catch (RuntimeException e)
+            {
+                fail(dueResults, e);
+            }
+        }
+
+        private void run (List<Object> batchItems, List<CompletableFuture<Object>> batchResults)
+        {
+            Object bulkResult;
+            try
+            {
+                bulkResult = batchableMethod.bulkMethod.invoke(target, new Object[] { batchItems });
+            }
+            catch (Throwable e)
+            {
+                fail(batchResults, e);
+                return;
+            }
+            if (bulkResult instanceof Map)
+            {
+                Map bulkResults = (Map) bulkResult;
+                for (int i = 0; i < batchResults.size(); i++)
+                {
+                    Object item = batchItems.get(i);
+                    if (bulkResults.containsKey(item))
+                    {
+                        complete(batchResults.get(i), item, bulkResults.get(item));
+                    }
+                    else
+                    {
+                        batchResults.get(i).completeExceptionally(new IllegalStateException(batchableMethod.bulkMethod.getQualifiedName()
+                                + " did not return a result for " + item));
+                    }
+                }
+            }
+            else if (bulkResult instanceof List && ((List) bulkResult).size() == batchItems.size())
+            {
+                List bulkResults = (List) bulkResult;
+                for (int i = 0; i < batchResults.size(); i++)
+                {
+                    complete(batchResults.get(i), batchItems.get(i), bulkResults.get(i));
+                }
+            }
+            else
+            {
+                fail(batchResults, new IllegalStateException(batchableMethod.bulkMethod.getQualifiedName()
+                        + " did not return a result for each of the " + batchItems.size() + " items"));
+            }
+        }
+
+        private void complete (CompletableFuture<Object> result, Object item, Object value)
+        {
+            if (value == null && batchableMethod.returnsPrimitive)
+            {
+                result.completeExceptionally(new IllegalStateException(batchableMethod.bulkMethod.getQualifiedName()
+                        + " returned null for " + item + " which cannot be returned as a primitive"));
+            }
+            else
+            {
+                result.complete(value);
+            }
+        }
+
+        private static void fail (List<CompletableFuture<Object>> batchResults, Throwable e)
+        {
+            for (CompletableFuture<Object> result : batchResults)
+            {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String name;
+
+        DaemonThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        public Thread newThread (Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
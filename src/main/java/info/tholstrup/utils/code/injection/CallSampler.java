@@ -0,0 +1,154 @@
+package info.tholstrup.utils.code.injection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * Decides which calls a handler measures. Either every call is measured (the default), one in every N calls, or as many calls as fit in an
+ * overhead budget: the fraction of the time spent in the measured methods which may be spent measuring them.
+ * <p />
+ * Each thread counts down its own calls to each method, so the calls which are not measured only cost a thread local lookup and a
+ * decrement. A measured call stands for all the calls of its method counted since the previous measured one, its weight, which handlers use
+ * to scale what they record so that the counts of every method stay correct. Calls made while a call of the same method is being measured
+ * on the same thread (recursion) are not measured, they are counted in the weight of the next measurement. In adaptive mode each
+ * countdown keeps moving averages of the duration of the measured calls and of the cost of measuring them and chooses the next interval so
+ * that the cost stays within the budget. Configuration changes take effect from the next measured call of each method.
+ */
+final class CallSampler
+{
+    /**
+     * The most calls a single measurement stands for in adaptive mode.
+     */
+    static final int MAXIMUM_INTERVAL = 1 << 16;
+    /**
+     * The number of samplers which may exist, each keeps its own countdowns in the {@link MethodMetadata}.
+     */
+    static final int MAXIMUM_SAMPLERS = 4;
+
+    private static final Countdown EVERY_CALL = new Countdown();
+    private static final AtomicInteger samplerCount = new AtomicInteger();
+
+    private final int index;
+    private volatile boolean everyCall = true;
+    private volatile int interval = 1;
+    private volatile double overheadBudget;
+
+    CallSampler()
+    {
+        index = samplerCount.getAndIncrement();
+        Verifier.verifyTrue(index < MAXIMUM_SAMPLERS, "No more than " + MAXIMUM_SAMPLERS + " samplers can be created");
+    }
+
+    /**
+     * @param samplingInterval
+     *            Measure one in every this many calls, 1 to measure every call.
+     */
+    void setInterval (int samplingInterval)
+    {
+        Verifier.verifyTrue(samplingInterval >= 1, "The sampling interval must be at least 1");
+        overheadBudget = 0;
+        interval = samplingInterval;
+        everyCall = samplingInterval == 1;
+    }
+
+    /**
+     * @param budget
+     *            The fraction of the time spent in the measured methods which may be spent measuring them, greater than 0 and at most 1.
+     */
+    void setOverheadBudget (double budget)
+    {
+        Verifier.verifyTrue(budget > 0 && budget <= 1, "The overhead budget must be greater than 0 and at most 1");
+        overheadBudget = budget;
+        everyCall = false;
+    }
+
+    /**
+     * @param method
+     *            The method being called.
+     * @return The countdown of the method on the current thread if this call is to be measured, null otherwise.
+     */
+    Countdown sample (MethodMetadata method)
+    {
+        if (everyCall)
+        {
+            return EVERY_CALL;
+        }
+        Countdown countdown = method.getCountdown(index);
+        countdown.calls++;
+        if (--countdown.remaining > 0 || countdown.measuring)
+        {
+            return null;
+        }
+        countdown.measuring = true;
+        countdown.weight = countdown.calls;
+        countdown.calls = 0;
+        return countdown;
+    }
+
+    /**
+     * Starts counting down to the next measured call, must be called after each measured call.
+     * 
+     * @param countdown
+     *            The countdown returned by {@link #sample(MethodMetadata)}.
+     * @param callNanos
+     *            The duration of the measured call.
+     * @param overheadNanos
+     *            The time spent measuring the call.
+     */
+    void sampled (Countdown countdown, long callNanos, long overheadNanos)
+    {
+        if (countdown == EVERY_CALL)
+        {
+            return;
+        }
+        double budget = overheadBudget;
+        int next;
+        if (budget > 0)
+        {
+            countdown.update(Math.max(callNanos, 1), Math.max(overheadNanos, 1));
+            double calls = Math.ceil(countdown.averageOverheadNanos / (budget * countdown.averageCallNanos));
+            next = (int) Math.max(1, Math.min(MAXIMUM_INTERVAL, calls));
+        }
+        else
+        {
+            next = interval;
+        }
+        countdown.remaining = next;
+        countdown.measuring = false;
+    }
+
+    /**
+     * The sampling state of one method on one thread.
+     */
+    static final class Countdown
+    {
+        int remaining = 1;
+        int calls;
+        int weight = 1;
+        boolean measuring;
+        double averageCallNanos;
+        double averageOverheadNanos;
+
+        /**
+         * @return The number of calls the current measurement stands for: the measured call and the calls of the same method since the
+         *         previous measurement.
+         */
+        int getWeight ()
+        {
+            return weight;
+        }
+
+        private void update (long callNanos, long overheadNanos)
+        {
+            if (averageCallNanos == 0)
+            {
+                averageCallNanos = callNanos;
+                averageOverheadNanos = overheadNanos;
+                return;
+            }
+            averageCallNanos += (callNanos - averageCallNanos) / 8;
+            averageOverheadNanos += (overheadNanos - averageOverheadNanos) / 8;
+        }
+    }
+}
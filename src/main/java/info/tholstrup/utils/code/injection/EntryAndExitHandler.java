@@ -1,6 +1,5 @@
 package info.tholstrup.utils.code.injection;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import org.slf4j.Logger;
@@ -9,10 +8,27 @@ import org.slf4j.LoggerFactory;
 import info.tholstrup.utils.verification.Verifier;
 
 /**
- * An invocation handler which prints a message to the debug log before the method is entered and after the method has exited.
+ * An invocation handler which prints a message to the debug log before the method is entered and after the method has exited. It can also
+ * be used as an {@link Interceptor} in an interceptor chain.
+ * <p />
+ * The handler does nothing but call through to the delegate unless the debug level is enabled for the wrapped class. By default the
+ * messages are logged on the calling thread, in asynchronous mode (see {@link #setAsynchronous(boolean)}) the calling thread only copies
+ * the method and a compact summary of the arguments into a preallocated slot of a ring buffer, a background thread builds the messages
+ * and logs them. Events are dropped if the background thread falls too far behind.
+ * <p />
+ * Methods called very often can be sampled, either one in every N calls ({@link #setSamplingInterval(int)}) or as often as an overhead
+ * budget allows ({@link #setOverheadBudget(double)}). The entry message of a sampled call says how many calls it stands for.
  */
-public class EntryAndExitHandler extends FactoryInvocationHandler
+public class EntryAndExitHandler extends FactoryInvocationHandler implements Interceptor
 {
+    /**
+     * The number of events the asynchronous ring buffer holds.
+     */
+    public static final int RING_CAPACITY = 8192;
+
+    private static volatile boolean asynchronous;
+    private static volatile TraceEventRing ring;
+    private static final CallSampler sampler = new CallSampler();
 
     private Logger logger;
     protected Object delegate;
@@ -31,64 +47,76 @@ public class EntryAndExitHandler extends FactoryInvocationHandler
     @Override
     public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
     {
-        Object result = null;
-        boolean exceptionThrown = false;
-        Class wrappedClass = getWrappedClass();
-        StringBuffer loggerBuffer = new StringBuffer();
-        Exception thrownException = null;
+        MethodMetadata metadata = getMethodMetadata(method);
+        CallSampler.Countdown sample = logger.isDebugEnabled() ? sampler.sample(metadata) : null;
+        if (sample == null)
+        {
+            return metadata.invoke(delegate, args);
+        }
+        return trace(metadata, sample, null, args);
+    }
+
+    @Override
+    public Object intercept (Invocation invocation) throws Throwable
+    {
+        CallSampler.Countdown sample = logger.isDebugEnabled() ? sampler.sample(invocation.getMethodMetadata()) : null;
+        if (sample == null)
+        {
+            return invocation.proceed();
+        }
+        return trace(invocation.getMethodMetadata(), sample, invocation, invocation.getArguments());
+    }
+
+    /**
+     * Logs the entry and exit of a call which has been sampled.
+     * 
+     * @param invocation
+     *            The call when intercepting, null to call the delegate with the given arguments.
+     */
+    private Object trace (MethodMetadata method, CallSampler.Countdown sample, Invocation invocation, Object[] args) throws Throwable
+    {
+        long entryStart = System.nanoTime();
+        TraceEventRing eventRing = asynchronous ? ring : null;
+        if (eventRing != null)
+        {
+            eventRing.publish(logger, method, TraceEventRing.ENTRY, sample.getWeight(), args, null);
+        }
+        else
+        {
+            logger.debug(TraceEventRing.entryMessage(method, args, sample.getWeight()));
+        }
+
+        Object result;
+        long callStart = System.nanoTime();
+        long callEnd;
         try
         {
-            StringBuffer buffer = new StringBuffer();
-            buffer.append("Entering method ");
-            buffer.append(wrappedClass.getName());
-            buffer.append(".");
-            buffer.append(method.getName());
-            if (args == null)
+            result = invocation != null ? invocation.proceed() : method.invoke(delegate, args);
+        }
+        catch (Throwable e)
+        {
+            callEnd = System.nanoTime();
+            if (eventRing != null)
             {
-                buffer.append(" with no args ");
+                eventRing.publish(logger, method, TraceEventRing.EXIT_EXCEPTION, 1, null, e);
             }
             else
             {
-                buffer.append(" with the following args ");
-                buffer.append(args.toString());
+                logger.debug(method.getExitMessage() + " (Exception returned).", e);
             }
-            logger.debug(buffer.toString());
-
-            result = method.invoke(delegate, args);
+            sampler.sampled(sample, callEnd - callStart, callStart - entryStart + System.nanoTime() - callEnd);
+            throw e;
         }
-        catch (InvocationTargetException e)
+        callEnd = System.nanoTime();
+        if (eventRing != null)
         {
-            exceptionThrown = true;
-            thrownException = e;
-            throw e.getTargetException();
+            eventRing.publish(logger, method, TraceEventRing.EXIT, 1, null, null);
         }
-        finally
+        else
         {
-            if (logger.isDebugEnabled())
-            {
-
-                loggerBuffer.append("Exiting method ");
-                loggerBuffer.append(wrappedClass.getName());
-                loggerBuffer.append(".");
-                loggerBuffer.append(method.getName());
-                if (exceptionThrown)
-                {
-                    loggerBuffer.append(" (Exception returned).");
-                }
-                else
-                {
-                    loggerBuffer.append(" (returned normally).");
-                }
-                if (thrownException != null)
-                {
-                    logger.debug(loggerBuffer.toString(), thrownException);
-                }
-                else
-                {
-                    logger.debug(loggerBuffer.toString());
-                }
-            }
+            logger.debug(method.getExitMessage() + " (returned normally).");
         }
+        sampler.sampled(sample, callEnd - callStart, callStart - entryStart + System.nanoTime() - callEnd);
         return result;
     }
 
@@ -97,4 +125,48 @@ public class EntryAndExitHandler extends FactoryInvocationHandler
     {
         return delegate;
     }
+
+    /**
+     * @param enabled
+     *            True to log the entry and exit messages on a background thread. The background thread is started the first time this is
+     *            enabled.
+     */
+    public static synchronized void setAsynchronous (boolean enabled)
+    {
+        if (enabled && ring == null)
+        {
+            ring = new TraceEventRing(RING_CAPACITY);
+        }
+        asynchronous = enabled;
+    }
+
+    /**
+     * @param samplingInterval
+     *            Log one in every this many calls on each thread, 1 (the default) to log every call.
+     */
+    public static void setSamplingInterval (int samplingInterval)
+    {
+        sampler.setInterval(samplingInterval);
+    }
+
+    /**
+     * Samples the calls adaptively: each thread logs as many calls as it can while keeping the time spent logging them below the given
+     * fraction of the time spent in the logged methods. Use {@link #setSamplingInterval(int)} to go back to a fixed interval.
+     * 
+     * @param budget
+     *            The fraction, for instance 0.01 for 1% (greater than 0 and at most 1).
+     */
+    public static void setOverheadBudget (double budget)
+    {
+        sampler.setOverheadBudget(budget);
+    }
+
+    /**
+     * @return The number of events dropped in asynchronous mode because the background thread could not keep up.
+     */
+    public static long getDroppedEventCount ()
+    {
+        TraceEventRing eventRing = ring;
+        return eventRing == null ? 0 : eventRing.getDroppedEvents();
+    }
 }
@@ -1,14 +1,19 @@
 package info.tholstrup.utils.code.injection;
 
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Proxy;
+import java.lang.reflect.Method;
 
 /**
  * A specialized InvocationHandler which provides a means to reach the ultimately wrapped class if a class is wrapped with several
  * FactoryInvocationHandler.
+ * <p />
+ * Subclasses should dispatch calls through {@link #getMethodMetadata(Method)}, which holds a method handle for each method and the names
+ * used in log messages so neither needs to be worked out on every call.
  */
 public abstract class FactoryInvocationHandler implements InvocationHandler
 {
+    private Class wrappedClass;
+
     /**
      * @return The instance that this InvocationHandler wraps.
      */
@@ -18,19 +23,43 @@ public abstract class FactoryInvocationHandler implements InvocationHandler
      * Recursively finds the wrapped class. If the delegate is another FactoryInvocationHandler this class will continue to dig down until
      * it reaches a class which is not an FactoryInvocationHandler but will only be able to return $Proxy if a plain InvocationHandler is
      * reached.
+     * <p />
+     * The delegate of a handler does not change so the class is only looked up the first time this method is called.
      * 
      * @return The wrapped class.
      */
     public Class getWrappedClass ()
     {
-        if (Proxy.isProxyClass(getDelegate().getClass()))
+        Class resolvedClass = wrappedClass;
+        if (resolvedClass == null)
+        {
+            resolvedClass = findWrappedClass();
+            wrappedClass = resolvedClass;
+        }
+        return resolvedClass;
+    }
+
+    /**
+     * @param method
+     *            A method called on the proxy.
+     * @return The metadata of the method (shared by all handlers wrapping the same class).
+     */
+    protected final MethodMetadata getMethodMetadata (Method method)
+    {
+        return MethodMetadata.forMethod(getWrappedClass(), method);
+    }
+
+    private Class findWrappedClass ()
+    {
+        Object delegate = getDelegate();
+        if (ProxyAssistant.isProxy(delegate))
         {
-            InvocationHandler invocationHandler = Proxy.getInvocationHandler(getDelegate());
+            InvocationHandler invocationHandler = ProxyAssistant.getInvocationHandler(delegate);
             if (invocationHandler instanceof FactoryInvocationHandler)
             {
                 return ((FactoryInvocationHandler) invocationHandler).getWrappedClass();
             }
         }
-        return getDelegate().getClass();
+        return delegate.getClass();
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
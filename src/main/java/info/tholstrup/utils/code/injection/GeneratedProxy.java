@@ -0,0 +1,15 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * Implemented by the proxy classes generated at runtime by {@link ProxyAssistant}. Application code should not implement this interface,
+ * use {@link ProxyAssistant#getInvocationHandler(Object)} rather than calling it directly.
+ */
+public interface GeneratedProxy
+{
+    /**
+     * @return The handler of the proxy.
+     */
+    public InvocationHandler $$getInvocationHandler ();
+}
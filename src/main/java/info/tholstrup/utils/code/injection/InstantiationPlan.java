@@ -0,0 +1,337 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * Everything needed to create a proxied instance of a class, resolved once: the constructor of the instance class, the constructors of the
+ * {@link InvocationHandler}s and the constructor of the proxy class which the handlers are installed in. Creating an instance from a plan
+ * does not perform any reflective lookups.
+ * <p />
+ * A plan either nests one proxy per handler (the first handler wraps the instance, each following handler wraps the previous proxy) or,
+ * for an interceptor chain, creates the handlers as {@link Interceptor}s of a single {@link InterceptorChainHandler}. The chain runs the
+ * interceptors in the order the nested proxies would have run, the last handler sees the call first.
+ * <p />
+ * Exceptions thrown by the constructors of the instance or of the handlers are rethrown as a RuntimeException wrapping an
+ * InvocationTargetException, just as when the constructors were called reflectively.
+ * <p />
+ * Plans are immutable and may be shared between threads, use
+ * {@link ProxyAssistant#getInstantiationPlan(Class, Class[], Class[], boolean)} to obtain one.
+ */
+public final class InstantiationPlan
+{
+    private static final Object[] EMPTY_OBJECT_ARRAY = new Object[] {};
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Object[].class);
+    private static final MethodType HANDLER_CONSTRUCTOR_TYPE = MethodType.methodType(InvocationHandler.class, Object.class);
+    private static final MethodType INTERCEPTOR_CONSTRUCTOR_TYPE = MethodType.methodType(Interceptor.class, Object.class);
+    private static final MethodType PROXY_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Object.class, InvocationHandler.class);
+
+    private final Class instanceClass;
+    private final MethodHandle constructor;
+    private final int parameterCount;
+    private final MethodHandle[] handlerConstructors;
+    private final MethodHandle proxyConstructor;
+    private final boolean interceptorChain;
+    private final boolean generateProxyClass;
+    private volatile MethodHandle resolvedProxyConstructor;
+
+    InstantiationPlan(Class instanceClass, Class[] parameterTypes, Class[] invocationHandlers, boolean interceptorChain,
+            boolean generateProxyClass) throws ReflectiveOperationException
+    {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        this.instanceClass = instanceClass;
+        this.interceptorChain = interceptorChain;
+        this.generateProxyClass = generateProxyClass;
+
+        if (parameterTypes == null)
+        {
+            // a plan which only wraps instances constructed elsewhere.
+            this.constructor = null;
+            this.parameterCount = 0;
+        }
+        else
+        {
+            Constructor instanceConstructor = instanceClass.getConstructor(parameterTypes);
+            this.parameterCount = instanceConstructor.getParameterCount();
+            this.constructor = lookup.unreflectConstructor(instanceConstructor)
+                    .asSpreader(Object[].class, instanceConstructor.getParameterCount())
+                    .asType(CONSTRUCTOR_TYPE);
+        }
+
+        this.handlerConstructors = new MethodHandle[invocationHandlers.length];
+        for (int i = 0; i < invocationHandlers.length; i++)
+        {
+            Constructor handlerConstructor = invocationHandlers[i].getConstructor(new Class[] { Object.class });
+            if (interceptorChain)
+            {
+                Verifier.verifyTrue(Interceptor.class.isAssignableFrom(invocationHandlers[i]), invocationHandlers[i].getName()
+                        + " cannot be used in an interceptor chain as it does not implement Interceptor");
+                handlerConstructors[i] = lookup.unreflectConstructor(handlerConstructor).asType(INTERCEPTOR_CONSTRUCTOR_TYPE);
+            }
+            else
+            {
+                handlerConstructors[i] = lookup.unreflectConstructor(handlerConstructor).asType(HANDLER_CONSTRUCTOR_TYPE);
+            }
+        }
+
+        // every layer of proxies proxies the instance class so they all share one proxy class.
+        this.proxyConstructor = invocationHandlers.length == 0 ? null : findProxyConstructor(lookup, instanceClass, generateProxyClass);
+    }
+
+    /**
+     * @return The class which is instantiated by this plan.
+     */
+    public Class getInstanceClass ()
+    {
+        return instanceClass;
+    }
+
+    /**
+     * Creates an instance and wraps it in the invocation handlers of this plan.
+     * 
+     * @param parameters
+     *            The constructor parameters, may be null for the no argument constructor.
+     * @return The proxied instance.
+     */
+    public Object newInstance (Object[] parameters)
+    {
+        Verifier.verifyTrue(constructor != null, "This plan only wraps instances, it cannot construct them");
+        Object[] arguments = parameters == null ? EMPTY_OBJECT_ARRAY : parameters;
+        if (arguments.length != parameterCount)
+        {
+            throw new RuntimeException(new IllegalArgumentException("wrong number of arguments: " + arguments.length + " expected: "
+                    + parameterCount));
+        }
+        Object instance;
+        try
+        {
+            instance = (Object) constructor.invokeExact(arguments);
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException(new InvocationTargetException(e));
+        }
+        return wrap(instance);
+    }
+
+    /**
+     * Wraps an instance which has already been constructed in the invocation handlers of this plan.
+     * 
+     * @param instance
+     *            An instance of the instance class of this plan (cannot be null).
+     * @return The proxied instance, the instance itself if the plan has no handlers.
+     */
+    public Object wrap (Object instance)
+    {
+        try
+        {
+            if (interceptorChain)
+            {
+                return wrapInInterceptorChain(instance);
+            }
+            for (int i = 0; i < handlerConstructors.length; i++)
+            {
+                InvocationHandler handler = (InvocationHandler) newHandler(i, instance);
+                instance = (Object) proxyConstructor.invokeExact(instance, handler);
+            }
+            return instance;
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates a proxy which only creates the instance, by calling {@link #newInstance(Object[])}, when its first method is called. The lazy
+     * proxy is of the same kind as the proxies of the handlers: a generated proxy class, which runs the no argument constructor of the
+     * instance class on itself if it extends the class, or a JDK proxy implementing the interfaces of the instance class.
+     * 
+     * @param parameters
+     *            The constructor parameters, may be null for the no argument constructor. The array is copied.
+     * @return The lazy proxy.
+     * @throws IllegalArgumentException
+     *             If the proxy cannot be cast to the instance class and the instance class implements no interfaces, so the proxy could not
+     *             be used as an instance at all.
+     */
+    public Object newLazyInstance (Object[] parameters)
+    {
+        Object proxy;
+        try
+        {
+            proxy = (Object) getProxyConstructor().invokeExact((Object) null,
+                    (InvocationHandler) new LazyInstanceHandler(this, parameters));
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException(e);
+        }
+        Verifier.verifyTrue(instanceClass.isInstance(proxy) || instanceClass.getInterfaces().length > 0, "A lazy proxy of "
+                + instanceClass.getName() + " cannot be cast to it and it implements no interfaces, enable class generation or make it"
+                + " implement an interface");
+        return proxy;
+    }
+
+    /**
+     * Creates an instance and wraps it in a single proxy whose interceptors are read from the given switch on every call, rather than in
+     * the invocation handlers of this plan.
+     * 
+     * @param parameters
+     *            The constructor parameters, may be null for the no argument constructor.
+     * @param interceptionSwitch
+     *            Holds the handlers to apply (cannot be null).
+     * @return The proxied instance.
+     */
+    public Object newSwitchableInstance (Object[] parameters, InterceptionSwitch interceptionSwitch)
+    {
+        return wrapSwitchable(newInstance(parameters), interceptionSwitch);
+    }
+
+    /**
+     * Wraps an instance which has already been constructed in a single proxy whose interceptors are read from the given switch.
+     * 
+     * @param instance
+     *            An instance of the instance class of this plan (cannot be null).
+     * @param interceptionSwitch
+     *            Holds the handlers to apply (cannot be null).
+     * @return The proxied instance.
+     */
+    public Object wrapSwitchable (Object instance, InterceptionSwitch interceptionSwitch)
+    {
+        try
+        {
+            return (Object) getProxyConstructor().invokeExact(instance,
+                    (InvocationHandler) new SwitchableInterceptionHandler(instance, interceptionSwitch));
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return The proxy constructor, resolved on first use if the plan has no handlers of its own.
+     */
+    private MethodHandle getProxyConstructor () throws ReflectiveOperationException
+    {
+        if (proxyConstructor != null)
+        {
+            return proxyConstructor;
+        }
+        MethodHandle resolved = resolvedProxyConstructor;
+        if (resolved == null)
+        {
+            resolved = findProxyConstructor(MethodHandles.lookup(), instanceClass, generateProxyClass);
+            resolvedProxyConstructor = resolved;
+        }
+        return resolved;
+    }
+
+    private Object wrapInInterceptorChain (Object instance) throws Throwable
+    {
+        if (handlerConstructors.length == 0)
+        {
+            return instance;
+        }
+        Interceptor[] interceptors = new Interceptor[handlerConstructors.length];
+        for (int i = 0; i < handlerConstructors.length; i++)
+        {
+            interceptors[handlerConstructors.length - 1 - i] = (Interceptor) newHandler(i, instance);
+        }
+        return (Object) proxyConstructor.invokeExact(instance, (InvocationHandler) new InterceptorChainHandler(instance, interceptors));
+    }
+
+    /**
+     * @return A new handler (or interceptor) for the instance.
+     */
+    private Object newHandler (int index, Object instance)
+    {
+        try
+        {
+            MethodHandle handlerConstructor = handlerConstructors[index];
+            return interceptorChain ? (Object) (Interceptor) handlerConstructor.invokeExact(instance)
+                    : (Object) (InvocationHandler) handlerConstructor.invokeExact(instance);
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException(new InvocationTargetException(e));
+        }
+    }
+
+    /**
+     * Resolves a handle of type (Object delegate, InvocationHandler handler)Object which creates the proxies. If class generation is
+     * enabled and the {@link ProxyClassGenerator} can proxy the class the generated proxy class is used.
+     * <p />
+     * Otherwise this is the constructor of the JDK proxy class for the interfaces of the instance class (the delegate is only known to the
+     * handler). If the proxy class is not accessible (the interfaces are not public) the plan falls back to
+     * {@link Proxy#newProxyInstance(ClassLoader, Class[], InvocationHandler)}.
+     */
+    private static MethodHandle findProxyConstructor (MethodHandles.Lookup lookup, Class instanceClass, boolean generateProxyClass)
+            throws ReflectiveOperationException
+    {
+        if (generateProxyClass)
+        {
+            MethodHandle generatedConstructor = ProxyClassGenerator.getProxyConstructor(instanceClass);
+            if (generatedConstructor != null)
+            {
+                return generatedConstructor;
+            }
+        }
+
+        ClassLoader classLoader = instanceClass.getClassLoader();
+        Class[] interfaces = instanceClass.getInterfaces();
+        Object prototype = Proxy.newProxyInstance(classLoader, interfaces, new InvocationHandler()
+        {
+            @Override
+            public Object invoke (Object proxy, Method method, Object[] args)
+            {
+                throw new UnsupportedOperationException();
+            }
+        });
+        try
+        {
+            Constructor proxyConstructor = prototype.getClass().getConstructor(new Class[] { InvocationHandler.class });
+            MethodHandle jdkProxyConstructor = lookup.unreflectConstructor(proxyConstructor);
+            return MethodHandles.dropArguments(jdkProxyConstructor, 0, Object.class).asType(PROXY_CONSTRUCTOR_TYPE);
+        }
+        catch (IllegalAccessException e)
+        {
+            MethodHandle newProxyInstance = lookup.findStatic(Proxy.class, "newProxyInstance",
+                    MethodType.methodType(Object.class, ClassLoader.class, Class[].class, InvocationHandler.class));
+            newProxyInstance = MethodHandles.insertArguments(newProxyInstance, 0, classLoader, interfaces);
+            return MethodHandles.dropArguments(newProxyInstance, 0, Object.class);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package info.tholstrup.utils.code.injection;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * The interceptors currently applied to a set of proxies, held in a single volatile reference which can be swapped at any time. Each proxy
+ * created with {@link ProxyAssistant#createSwitchableInstance(Class, Class[], Object[], InterceptionSwitch)} checks the switch on every
+ * call and rebuilds its chain when the handlers have changed, so turning diagnostics on or off takes effect on existing instances. While no
+ * handlers are set the proxies call straight through to their delegates.
+ */
+public final class InterceptionSwitch
+{
+    private static final Class[] EMPTY_CLASS_ARRAY = new Class[] {};
+
+    private volatile Class[] handlers = EMPTY_CLASS_ARRAY;
+
+    public InterceptionSwitch()
+    {
+    }
+
+    /**
+     * @param handlers
+     *            The initial handlers, see {@link #setHandlers(Class[])}.
+     */
+    public InterceptionSwitch(Class[] handlers)
+    {
+        setHandlers(handlers);
+    }
+
+    /**
+     * @param handlers
+     *            {@link Interceptor}s which have a constructor that takes a single object, in the order of the invocation handlers of a
+     *            factory: the last one sees each call first (cannot be null, empty to call straight through).
+     */
+    public void setHandlers (Class[] handlers)
+    {
+        Verifier.verifyNotNull(handlers);
+        for (Class handler : handlers)
+        {
+            Verifier.verifyTrue(Interceptor.class.isAssignableFrom(handler), handler.getName()
+                    + " cannot be switched in as it does not implement Interceptor");
+        }
+        this.handlers = handlers.length == 0 ? EMPTY_CLASS_ARRAY : handlers.clone();
+    }
+
+    /**
+     * @return A copy of the current handlers.
+     */
+    public Class[] getHandlers ()
+    {
+        return handlers.clone();
+    }
+
+    /**
+     * @return The current handlers, the same array until the handlers are set again.
+     */
+    Class[] currentHandlers ()
+    {
+        return handlers;
+    }
+}
@@ -0,0 +1,21 @@
+package info.tholstrup.utils.code.injection;
+
+/**
+ * An aspect which runs around a method call as part of an interceptor chain. Where a {@link FactoryInvocationHandler} wraps the instance in
+ * a proxy of its own, the interceptors of a chain all share the single proxy created by the {@link InterceptorChainHandler} and pass the
+ * call along by calling {@link Invocation#proceed()}.
+ * <p />
+ * Interceptors used with {@link ProxyAssistant} must have a constructor which takes the target object as its only parameter, just like
+ * the FactoryInvocationHandlers.
+ */
+public interface Interceptor
+{
+    /**
+     * @param invocation
+     *            The intercepted call, call {@link Invocation#proceed()} to run the rest of the chain and the target method.
+     * @return The value to return to the caller.
+     * @throws Throwable
+     *             The exception to throw to the caller.
+     */
+    public Object intercept (Invocation invocation) throws Throwable;
+}
@@ -0,0 +1,57 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.reflect.Method;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * An invocation handler which runs an ordered chain of {@link Interceptor}s around a single call to the delegate. Using one chain rather
+ * than nesting a proxy per aspect means each call passes through one proxy dispatch and one reflective call to the target, however many
+ * aspects are applied. The target is called through a method handle. A generated proxy runs the chain itself rather than calling this
+ * handler.
+ */
+public class InterceptorChainHandler extends FactoryInvocationHandler implements InterceptorSource
+{
+    protected Object delegate;
+    private final Interceptor[] interceptors;
+
+    /**
+     * @param delegate
+     *            The object which the chain calls through to.
+     * @param interceptors
+     *            The interceptors, the first interceptor is the first to see each call (cannot be null).
+     */
+    public InterceptorChainHandler(Object delegate, Interceptor[] interceptors)
+    {
+        Verifier.verifyNotNull(delegate);
+        Verifier.verifyNotNull(interceptors);
+        this.delegate = delegate;
+        this.interceptors = interceptors;
+    }
+
+    @Override
+    public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+    {
+        return new Invocation(delegate, getMethodMetadata(method), args, interceptors).proceed();
+    }
+
+    @Override
+    public Object getDelegate ()
+    {
+        return delegate;
+    }
+
+    @Override
+    public Interceptor[] getCurrentInterceptors ()
+    {
+        return interceptors;
+    }
+
+    /**
+     * @return A copy of the interceptors of this chain.
+     */
+    public Interceptor[] getInterceptors ()
+    {
+        return interceptors.clone();
+    }
+}
@@ -0,0 +1,15 @@
+package info.tholstrup.utils.code.injection;
+
+/**
+ * Implemented by the handlers which run every call through a chain of {@link Interceptor}s around their delegate. A proxy generated by
+ * {@link ProxyAssistant} does not pass the calls to such a handler, it asks the handler for the chain and runs the interceptors itself,
+ * calling its delegate directly when the chain is empty. The delegate of the handler must therefore be the delegate of the proxy.
+ */
+public interface InterceptorSource
+{
+    /**
+     * @return The interceptors which are to see the next call, in order (never null, empty to call straight through to the delegate). The
+     *         array is shared and must not be modified.
+     */
+    public Interceptor[] getCurrentInterceptors ();
+}
@@ -0,0 +1,99 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.reflect.Method;
+
+/**
+ * A method call travelling through a chain of {@link Interceptor}s. Each call to {@link #proceed()} runs the next interceptor, the last one
+ * proceeds to the target method. An Invocation belongs to a single call and must not be shared between threads.
+ */
+public final class Invocation
+{
+    private static final Interceptor[] NO_INTERCEPTORS = new Interceptor[] {};
+
+    private final Object target;
+    private final MethodMetadata method;
+    private final Object[] arguments;
+    private final Interceptor[] interceptors;
+    private int index;
+
+    /**
+     * Creates an invocation which goes straight to the target when proceeding.
+     * 
+     * @param target
+     *            The object the method is invoked on.
+     * @param method
+     *            The metadata of the method being invoked.
+     * @param arguments
+     *            The arguments, may be null if the method takes none.
+     */
+    public Invocation(Object target, MethodMetadata method, Object[] arguments)
+    {
+        this(target, method, arguments, NO_INTERCEPTORS);
+    }
+
+    /**
+     * @param target
+     *            The object the method is invoked on.
+     * @param method
+     *            The metadata of the method being invoked.
+     * @param arguments
+     *            The arguments, may be null if the method takes none.
+     * @param interceptors
+     *            The interceptors to run (in order) before the target method.
+     */
+    public Invocation(Object target, MethodMetadata method, Object[] arguments, Interceptor[] interceptors)
+    {
+        this.target = target;
+        this.method = method;
+        this.arguments = arguments;
+        this.interceptors = interceptors;
+    }
+
+    /**
+     * Runs the next interceptor in the chain or the target method once all interceptors have run.
+     * 
+     * @return The result of the target method (possibly replaced by an interceptor).
+     * @throws Throwable
+     *             The exception thrown by the target method (or an interceptor).
+     */
+    public Object proceed () throws Throwable
+    {
+        if (index < interceptors.length)
+        {
+            return interceptors[index++].intercept(this);
+        }
+        return method.invoke(target, arguments);
+    }
+
+    /**
+     * @return The object the method is invoked on.
+     */
+    public Object getTarget ()
+    {
+        return target;
+    }
+
+    /**
+     * @return The method being invoked.
+     */
+    public Method getMethod ()
+    {
+        return method.getMethod();
+    }
+
+    /**
+     * @return The metadata of the method being invoked.
+     */
+    public MethodMetadata getMethodMetadata ()
+    {
+        return method;
+    }
+
+    /**
+     * @return The arguments, may be null if the method takes none.
+     */
+    public Object[] getArguments ()
+    {
+        return arguments;
+    }
+}
@@ -0,0 +1,191 @@
+package info.tholstrup.utils.code.injection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Values are counted in log-linear buckets (HDR style): each power of two is split into
+ * 16 sub buckets so a recorded value is off by at most 1/16th (about 6%) of its size. Durations beyond about 18 minutes all share the last
+ * bucket, the maximum is kept exactly.
+ * <p />
+ * Recording is spread over several stripes, the stripe being picked by the recording thread, so threads recording at the same time rarely
+ * touch the same counters. A stripe is only allocated once a thread records into it. A snapshot adds up the stripes, it is consistent per
+ * counter but not across counters while recording goes on.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long HIGHEST_TRACKABLE_VALUE = (1L << 40) - 1;
+    /**
+     * Values below 2 * SUB_BUCKETS are counted exactly, each following power of two gets SUB_BUCKETS buckets.
+     */
+    private static final int BUCKETS = bucketOf(HIGHEST_TRACKABLE_VALUE) + 1;
+    private static final int STRIPES = stripeCount();
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+    private final AtomicLongArray maximums = new AtomicLongArray(STRIPES);
+
+    /**
+     * @param nanos
+     *            The duration to record, negative durations are recorded as zero.
+     */
+    public void record (long nanos)
+    {
+        record(nanos, 1);
+    }
+
+    /**
+     * @param nanos
+     *            The duration to record, negative durations are recorded as zero.
+     * @param count
+     *            The number of calls this duration stands for, for example when only one in count calls is measured.
+     */
+    public void record (long nanos, long count)
+    {
+        long value = Math.max(nanos, 0);
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        AtomicLongArray counts = stripes.get(stripe);
+        if (counts == null)
+        {
+            stripes.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS));
+            counts = stripes.get(stripe);
+        }
+        counts.getAndAdd(bucketOf(Math.min(value, HIGHEST_TRACKABLE_VALUE)), count);
+        long maximum = maximums.get(stripe);
+        while (value > maximum && !maximums.compareAndSet(stripe, maximum, value))
+        {
+            maximum = maximums.get(stripe);
+        }
+    }
+
+    /**
+     * @return The counts recorded since the last reset.
+     */
+    public Snapshot snapshot ()
+    {
+        return snapshot(false);
+    }
+
+    /**
+     * @return The counts recorded since the last reset, the histogram is reset as the counts are read so no recorded value is lost or
+     *         counted twice.
+     */
+    public Snapshot snapshotAndReset ()
+    {
+        return snapshot(true);
+    }
+
+    private Snapshot snapshot (boolean reset)
+    {
+        long[] bucketCounts = new long[BUCKETS];
+        long maximum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++)
+        {
+            AtomicLongArray counts = stripes.get(stripe);
+            for (int bucket = 0; counts != null && bucket < BUCKETS; bucket++)
+            {
+                bucketCounts[bucket] += reset ? counts.getAndSet(bucket, 0) : counts.get(bucket);
+            }
+            maximum = Math.max(maximum, reset ? maximums.getAndSet(stripe, 0) : maximums.get(stripe));
+        }
+        return new Snapshot(bucketCounts, maximum);
+    }
+
+    static int bucketOf (long value)
+    {
+        if (value < 2 * SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return The highest value counted in the bucket.
+     */
+    static long highestValueOf (int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private static int stripeCount ()
+    {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 16)
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * The counts of a histogram at a point in time.
+     */
+    public static final class Snapshot
+    {
+        private final long[] bucketCounts;
+        private final long count;
+        private final long maximum;
+
+        Snapshot(long[] bucketCounts, long maximum)
+        {
+            this.bucketCounts = bucketCounts;
+            this.maximum = maximum;
+            long total = 0;
+            for (int bucket = 0; bucket < bucketCounts.length; bucket++)
+            {
+                total += bucketCounts[bucket];
+            }
+            this.count = total;
+        }
+
+        /**
+         * @return The number of recorded calls.
+         */
+        public long getCount ()
+        {
+            return count;
+        }
+
+        /**
+         * @return The longest recorded duration in nanoseconds.
+         */
+        public long getMaximum ()
+        {
+            return maximum;
+        }
+
+        /**
+         * @param percentile
+         *            The percentile, between 0 and 100.
+         * @return The duration in nanoseconds which the given percentage of the calls did not exceed, 0 if nothing was recorded.
+         */
+        public long getPercentile (double percentile)
+        {
+            if (count == 0)
+            {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < bucketCounts.length; bucket++)
+            {
+                seen += bucketCounts[bucket];
+                if (seen >= rank)
+                {
+                    return Math.min(highestValueOf(bucket), maximum);
+                }
+            }
+            return maximum;
+        }
+    }
+}
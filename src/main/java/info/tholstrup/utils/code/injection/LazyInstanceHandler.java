@@ -0,0 +1,80 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.reflect.Method;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * The handler of a lazy proxy, it creates the real (proxied) instance from an {@link InstantiationPlan} the first time a method is called
+ * and forwards every call to it. Creation happens at most once, under a lock; once the instance exists calls only read a volatile field.
+ * If the creation fails the exception is thrown to the caller and the next call tries again.
+ */
+public class LazyInstanceHandler extends FactoryInvocationHandler
+{
+    private volatile Object delegate;
+    // only read and written while holding the lock, released once the delegate has been created.
+    private InstantiationPlan plan;
+    private Object[] parameters;
+    private final Class instanceClass;
+
+    /**
+     * @param plan
+     *            Creates the instance (cannot be null).
+     * @param parameters
+     *            The constructor parameters, may be null for the no argument constructor. The array is copied.
+     */
+    public LazyInstanceHandler(InstantiationPlan plan, Object[] parameters)
+    {
+        Verifier.verifyNotNull(plan);
+        this.plan = plan;
+        this.parameters = parameters == null ? null : parameters.clone();
+        this.instanceClass = plan.getInstanceClass();
+    }
+
+    @Override
+    public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+    {
+        return getMethodMetadata(method).invoke(getDelegate(), args);
+    }
+
+    /**
+     * @return The instance, which is created if it does not exist yet.
+     */
+    @Override
+    public Object getDelegate ()
+    {
+        Object instance = delegate;
+        if (instance == null)
+        {
+            synchronized (this)
+            {
+                instance = delegate;
+                if (instance == null)
+                {
+                    instance = plan.newInstance(parameters);
+                    delegate = instance;
+                    plan = null;
+                    parameters = null;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return True if the instance has been created.
+     */
+    public boolean isInitialized ()
+    {
+        return delegate != null;
+    }
+
+    /**
+     * @return The class the plan instantiates, without creating the instance.
+     */
+    @Override
+    public Class getWrappedClass ()
+    {
+        return instanceClass;
+    }
+}
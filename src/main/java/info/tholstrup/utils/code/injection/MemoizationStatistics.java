@@ -0,0 +1,77 @@
+package info.tholstrup.utils.code.injection;
+
+/**
+ * The hits and misses counted by the {@link MemoizingHandler} for one memoized method of one wrapped class, over all its instances.
+ */
+public final class MemoizationStatistics
+{
+    private final Class wrappedClass;
+    private final String methodName;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    MemoizationStatistics(MethodMetadata method, long hits, long misses, long evictions)
+    {
+        this.wrappedClass = method.getWrappedClass();
+        this.methodName = method.getMethod().getName();
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    /**
+     * @return The class wrapped by the memoizing proxy.
+     */
+    public Class getWrappedClass ()
+    {
+        return wrappedClass;
+    }
+
+    /**
+     * @return The name of the memoized method.
+     */
+    public String getMethodName ()
+    {
+        return methodName;
+    }
+
+    /**
+     * @return The number of calls answered with a memoized result.
+     */
+    public long getHits ()
+    {
+        return hits;
+    }
+
+    /**
+     * @return The number of calls which called the method.
+     */
+    public long getMisses ()
+    {
+        return misses;
+    }
+
+    /**
+     * @return The number of results discarded to stay within the maximum size or because they expired.
+     */
+    public long getEvictions ()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return The fraction of calls answered with a memoized result, 0 if there were no calls.
+     */
+    public double getHitRate ()
+    {
+        long calls = hits + misses;
+        return calls == 0 ? 0 : (double) hits / calls;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return wrappedClass.getName() + "." + methodName + ": hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+    }
+}
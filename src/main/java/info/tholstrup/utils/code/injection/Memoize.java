@@ -0,0 +1,36 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks a method whose result only depends on its arguments, so that the {@link MemoizingHandler} can return the result of an earlier call
+ * with equal arguments rather than calling the method again. The annotation may be placed on the method of the interface or of the
+ * implementation class.
+ * <p />
+ * The arguments are compared with equals (arrays by their contents) and must not be changed once they have been passed in.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Memoize
+{
+    /**
+     * @return The maximum number of results kept per instance.
+     */
+    int maximumSize() default 1024;
+
+    /**
+     * @return The time after which a result is discarded, 0 (the default) to keep results until they are evicted.
+     */
+    long expireAfterWrite() default 0;
+
+    /**
+     * @return The unit of expireAfterWrite.
+     */
+    TimeUnit unit() default TimeUnit.SECONDS;
+}
@@ -0,0 +1,306 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import info.tholstrup.utils.cache.ConcurrentInstanceCache;
+import info.tholstrup.utils.cache.EvictionListener;
+import info.tholstrup.utils.cache.ExpiringInstanceCache;
+import info.tholstrup.utils.cache.InstanceCache;
+
+/**
+ * An invocation handler which remembers the results of the methods annotated with {@link Memoize} and answers later calls with equal
+ * arguments from memory, without calling the wrapped instance. Other methods are called straight through. It can also be used as an
+ * {@link Interceptor} in an interceptor chain, in which case the interceptors after it only see the calls which are not memoized.
+ * <p />
+ * Each instance keeps its own results, per method, in a bounded {@link ConcurrentInstanceCache} (expiring the results if the annotation
+ * asks for it) so a memoized result is returned without taking a lock. Calls with a single argument are keyed by the argument itself and
+ * calls with more arguments are looked up with a reused key, so answering a call from memory does not allocate. Exceptions are not
+ * memoized, and concurrent calls with the same arguments may both call the method before the result is remembered.
+ * <p />
+ * The hits and misses of every memoized method are counted over all instances of the wrapped class, {@link #snapshot()} returns them.
+ */
+public class MemoizingHandler extends FactoryInvocationHandler implements Interceptor
+{
+    private static final Object NULL_RESULT = new Object();
+    private static final Object NO_ARGUMENTS = new Object();
+
+    private static final ConcurrentHashMap<MethodMetadata, MemoizedMethod> memoizedMethods =
+            new ConcurrentHashMap<MethodMetadata, MemoizedMethod>();
+    private static final ThreadLocal<ArgumentKey> probeKeys = new ThreadLocal<ArgumentKey>()
+    {
+        @Override
+        protected ArgumentKey initialValue ()
+        {
+            return new ArgumentKey(null);
+        }
+    };
+
+    private final ConcurrentHashMap<MethodMetadata, InstanceCache<Object, Object>> results =
+            new ConcurrentHashMap<MethodMetadata, InstanceCache<Object, Object>>();
+    protected Object delegate;
+
+    /**
+     * @param delegate
+     *            The object whose results are memoized.
+     */
+    public MemoizingHandler(Object delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+    {
+        return intercept(new Invocation(delegate, getMethodMetadata(method), args));
+    }
+
+    @Override
+    public Object intercept (Invocation invocation) throws Throwable
+    {
+        MethodMetadata method = invocation.getMethodMetadata();
+        MemoizedMethod memoizedMethod = memoizedMethodOf(method);
+        if (memoizedMethod.memoize == null)
+        {
+            return invocation.proceed();
+        }
+        InstanceCache<Object, Object> methodResults = resultsOf(method, memoizedMethod);
+
+        Object[] args = invocation.getArguments();
+        Object probeKey = probeKey(args);
+        Object result;
+        try
+        {
+            result = methodResults.get(probeKey);
+        }
+        finally
+        {
+            releaseProbeKey(probeKey);
+        }
+        if (result != null)
+        {
+            memoizedMethod.hits.increment();
+            return result == NULL_RESULT ? null : result;
+        }
+        memoizedMethod.misses.increment();
+
+        result = invocation.proceed();
+        methodResults.put(createKey(args), result == null ? NULL_RESULT : result);
+        return result;
+    }
+
+    @Override
+    public Object getDelegate ()
+    {
+        return delegate;
+    }
+
+    /**
+     * @return The hits and misses of every memoized method which has been called since the last reset.
+     */
+    public static List<MemoizationStatistics> snapshot ()
+    {
+        List<MemoizationStatistics> statistics = new ArrayList<MemoizationStatistics>();
+        for (MemoizedMethod memoizedMethod : memoizedMethods.values())
+        {
+            long hits = memoizedMethod.hits.sum();
+            long misses = memoizedMethod.misses.sum();
+            if (hits + misses > 0)
+            {
+                statistics.add(new MemoizationStatistics(memoizedMethod.method, hits, misses, memoizedMethod.evictions.sum()));
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Resets the hits and misses, the memoized results are kept.
+     */
+    public static void reset ()
+    {
+        for (MemoizedMethod memoizedMethod : memoizedMethods.values())
+        {
+            memoizedMethod.hits.reset();
+            memoizedMethod.misses.reset();
+            memoizedMethod.evictions.reset();
+        }
+    }
+
+    private InstanceCache<Object, Object> resultsOf (MethodMetadata method, final MemoizedMethod memoizedMethod)
+    {
+        InstanceCache<Object, Object> methodResults = results.get(method);
+        if (methodResults == null)
+        {
+            Memoize memoize = memoizedMethod.memoize;
+            methodResults = new ConcurrentInstanceCache<Object, Object>(memoize.maximumSize());
+            if (memoize.expireAfterWrite() > 0)
+            {
+                methodResults = new ExpiringInstanceCache<Object, Object>(methodResults, memoize.expireAfterWrite(), 0, memoize.unit());
+            }
+            methodResults.setEvictionListener(new EvictionListener<Object, Object>()
+            {
+                public void onEviction (Object key, Object value)
+                {
+                    memoizedMethod.evictions.increment();
+                }
+            });
+            InstanceCache<Object, Object> existing = results.putIfAbsent(method, methodResults);
+            if (existing != null)
+            {
+                methodResults = existing;
+            }
+        }
+        return methodResults;
+    }
+
+    private static MemoizedMethod memoizedMethodOf (MethodMetadata method)
+    {
+        MemoizedMethod memoizedMethod = memoizedMethods.get(method);
+        if (memoizedMethod == null)
+        {
+            memoizedMethod = new MemoizedMethod(method, findMemoize(method));
+            MemoizedMethod existing = memoizedMethods.putIfAbsent(method, memoizedMethod);
+            if (existing != null)
+            {
+                memoizedMethod = existing;
+            }
+        }
+        return memoizedMethod;
+    }
+
+    /**
+     * @return The annotation on the proxied method or, failing that, on the method of the wrapped class. Null if neither is annotated.
+     */
+    private static Memoize findMemoize (MethodMetadata method)
+    {
+        Memoize memoize = method.getMethod().getAnnotation(Memoize.class);
+        if (memoize != null)
+        {
+            return memoize;
+        }
+        try
+        {
+            Method implementation = method.getWrappedClass().getMethod(method.getMethod().getName(),
+                    method.getMethod().getParameterTypes());
+            return implementation.getAnnotation(Memoize.class);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return A key to look up the arguments with, which must not be retained and must be passed to releaseProbeKey afterwards.
+     */
+    private static Object probeKey (Object[] args)
+    {
+        if (isSimple(args))
+        {
+            return simpleKey(args);
+        }
+        ArgumentKey probeKey = probeKeys.get();
+        probeKey.set(args);
+        return probeKey;
+    }
+
+    private static void releaseProbeKey (Object probeKey)
+    {
+        if (probeKey instanceof ArgumentKey)
+        {
+            // do not keep the arguments reachable from the thread.
+            ((ArgumentKey) probeKey).set(null);
+        }
+    }
+
+    /**
+     * @return The key under which the result for the arguments is stored.
+     */
+    private static Object createKey (Object[] args)
+    {
+        if (isSimple(args))
+        {
+            return simpleKey(args);
+        }
+        return new ArgumentKey(args.clone());
+    }
+
+    /**
+     * @return True if the arguments can be keyed without a key object: there are none, or there is one which is not null or an array.
+     */
+    private static boolean isSimple (Object[] args)
+    {
+        return args == null || args.length == 0 || (args.length == 1 && args[0] != null && !args[0].getClass().isArray());
+    }
+
+    private static Object simpleKey (Object[] args)
+    {
+        return args == null || args.length == 0 ? NO_ARGUMENTS : args[0];
+    }
+
+    /**
+     * A memoized method and its counters, shared by the handlers of every instance of the wrapped class.
+     */
+    private static final class MemoizedMethod
+    {
+        final MethodMetadata method;
+        /**
+         * Null if the method is not memoized.
+         */
+        final Memoize memoize;
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+
+        MemoizedMethod(MethodMetadata method, Memoize memoize)
+        {
+            this.method = method;
+            this.memoize = memoize;
+        }
+    }
+
+    /**
+     * The key of several arguments (or of a null or array argument), compared by the contents of the arguments.
+     */
+    private static final class ArgumentKey
+    {
+        private Object[] args;
+        private int hash;
+
+        ArgumentKey(Object[] args)
+        {
+            set(args);
+        }
+
+        void set (Object[] args)
+        {
+            this.args = args;
+            this.hash = args == null ? 0 : Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals (Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof ArgumentKey))
+            {
+                return false;
+            }
+            ArgumentKey other = (ArgumentKey) obj;
+            return hash == other.hash && Arrays.deepEquals(args, other.args);
+        }
+    }
+}
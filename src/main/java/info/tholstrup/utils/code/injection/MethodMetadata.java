@@ -0,0 +1,203 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * What the invocation handlers need to know about a proxied method, worked out once per wrapped class and method: a {@link MethodHandle}
+ * which invokes the method on a target and the names used in log messages.
+ * <p />
+ * Instances are shared by every handler wrapping the same class, use {@link FactoryInvocationHandler#getMethodMetadata(Method)} to obtain
+ * them.
+ */
+public final class MethodMetadata
+{
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private static final ClassValue<ConcurrentHashMap<Method, MethodMetadata>> metadataByWrappedClass =
+            new ClassValue<ConcurrentHashMap<Method, MethodMetadata>>()
+    {
+        @Override
+        protected ConcurrentHashMap<Method, MethodMetadata> computeValue (Class<?> type)
+        {
+            return new ConcurrentHashMap<Method, MethodMetadata>();
+        }
+    };
+
+    private final Method method;
+    private final Class wrappedClass;
+    private final String qualifiedName;
+    private final String entryMessage;
+    private final String exitMessage;
+    private final MethodHandle invoker;
+    /**
+     * The sampling countdowns of each thread, one thread local per {@link CallSampler}, created when the sampler first needs it.
+     */
+    private final AtomicReferenceArray<ThreadLocal<CallSampler.Countdown>> countdowns =
+            new AtomicReferenceArray<ThreadLocal<CallSampler.Countdown>>(CallSampler.MAXIMUM_SAMPLERS);
+
+    private MethodMetadata(Class wrappedClass, Method method)
+    {
+        this.method = method;
+        this.wrappedClass = wrappedClass;
+        this.qualifiedName = wrappedClass.getName() + "." + method.getName();
+        this.entryMessage = "Entering method " + qualifiedName;
+        this.exitMessage = "Exiting method " + qualifiedName;
+        this.invoker = createInvoker(method);
+    }
+
+    /**
+     * @param wrappedClass
+     *            The class ultimately wrapped by the proxy.
+     * @param method
+     *            The method called on the proxy.
+     * @return The (shared) metadata for the method.
+     */
+    static MethodMetadata forMethod (Class wrappedClass, Method method)
+    {
+        ConcurrentHashMap<Method, MethodMetadata> metadataByMethod = metadataByWrappedClass.get(wrappedClass);
+        MethodMetadata metadata = metadataByMethod.get(method);
+        if (metadata == null)
+        {
+            metadata = new MethodMetadata(wrappedClass, method);
+            MethodMetadata existing = metadataByMethod.putIfAbsent(method, metadata);
+            if (existing != null)
+            {
+                metadata = existing;
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Invokes the method on the target, exceptions thrown by the method are rethrown as they are (not wrapped in an
+     * InvocationTargetException).
+     * 
+     * @param target
+     *            The object to invoke the method on.
+     * @param args
+     *            The arguments, may be null if the method takes none.
+     * @return The result of the method, null for void methods.
+     * @throws Throwable
+     *             The exception thrown by the method.
+     */
+    public Object invoke (Object target, Object[] args) throws Throwable
+    {
+        return (Object) invoker.invokeExact(target, args);
+    }
+
+    /**
+     * @return The method called on the proxy.
+     */
+    public Method getMethod ()
+    {
+        return method;
+    }
+
+    /**
+     * @return The class ultimately wrapped by the proxy.
+     */
+    public Class getWrappedClass ()
+    {
+        return wrappedClass;
+    }
+
+    /**
+     * @return The name of the wrapped class and the method, separated by a dot.
+     */
+    public String getQualifiedName ()
+    {
+        return qualifiedName;
+    }
+
+    /**
+     * @return The prefix of the message logged when the method is entered.
+     */
+    public String getEntryMessage ()
+    {
+        return entryMessage;
+    }
+
+    /**
+     * @return The prefix of the message logged when the method exits.
+     */
+    public String getExitMessage ()
+    {
+        return exitMessage;
+    }
+
+    /**
+     * @param samplerIndex
+     *            The index of the sampler asking.
+     * @return The countdown of the current thread for this method.
+     */
+    CallSampler.Countdown getCountdown (int samplerIndex)
+    {
+        ThreadLocal<CallSampler.Countdown> threadCountdowns = countdowns.get(samplerIndex);
+        if (threadCountdowns == null)
+        {
+            countdowns.compareAndSet(samplerIndex, null, new ThreadLocal<CallSampler.Countdown>()
+            {
+                @Override
+                protected CallSampler.Countdown initialValue ()
+                {
+                    return new CallSampler.Countdown();
+                }
+            });
+            threadCountdowns = countdowns.get(samplerIndex);
+        }
+        return threadCountdowns.get();
+    }
+
+    /**
+     * Creates a handle of type (Object target, Object[] args)Object for the method. If the method cannot be reached through a method handle
+     * (e.g. it belongs to a non public interface in a module) the handle falls back to {@link Method#invoke(Object, Object...)}.
+     */
+    private static MethodHandle createInvoker (Method method)
+    {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try
+        {
+            MethodHandle handle;
+            try
+            {
+                handle = lookup.unreflect(method);
+            }
+            catch (IllegalAccessException e)
+            {
+                method.setAccessible(true);
+                handle = lookup.unreflect(method);
+            }
+            return handle.asSpreader(Object[].class, method.getParameterCount()).asType(INVOKER_TYPE);
+        }
+        catch (Exception e)
+        {
+            return createReflectiveInvoker(lookup, method);
+        }
+    }
+
+    private static MethodHandle createReflectiveInvoker (MethodHandles.Lookup lookup, Method method)
+    {
+        try
+        {
+            MethodHandle invoke = lookup.findVirtual(Method.class, "invoke", INVOKER_TYPE).bindTo(method);
+            MethodHandle unwrap = lookup.findStatic(MethodMetadata.class, "rethrowTargetException",
+                    MethodType.methodType(Object.class, InvocationTargetException.class, Object.class, Object[].class));
+            return MethodHandles.catchException(invoke, InvocationTargetException.class, unwrap);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object rethrowTargetException (InvocationTargetException e, Object target, Object[] args) throws Throwable
+    {
+        throw e.getTargetException();
+    }
+}
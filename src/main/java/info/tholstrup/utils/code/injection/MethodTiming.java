@@ -0,0 +1,89 @@
+package info.tholstrup.utils.code.injection;
+
+/**
+ * The latencies recorded by the {@link TimingHandler} for one method of one wrapped class. All durations are in nanoseconds.
+ */
+public final class MethodTiming
+{
+    private final Class wrappedClass;
+    private final String methodName;
+    private final long count;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long maximum;
+
+    MethodTiming(MethodMetadata method, LatencyHistogram.Snapshot snapshot)
+    {
+        this.wrappedClass = method.getWrappedClass();
+        this.methodName = method.getMethod().getName();
+        this.count = snapshot.getCount();
+        this.p50 = snapshot.getPercentile(50);
+        this.p99 = snapshot.getPercentile(99);
+        this.p999 = snapshot.getPercentile(99.9);
+        this.maximum = snapshot.getMaximum();
+    }
+
+    /**
+     * @return The class wrapped by the timed proxy.
+     */
+    public Class getWrappedClass ()
+    {
+        return wrappedClass;
+    }
+
+    /**
+     * @return The name of the timed method.
+     */
+    public String getMethodName ()
+    {
+        return methodName;
+    }
+
+    /**
+     * @return The number of timed calls.
+     */
+    public long getCount ()
+    {
+        return count;
+    }
+
+    /**
+     * @return The median duration.
+     */
+    public long getP50 ()
+    {
+        return p50;
+    }
+
+    /**
+     * @return The 99th percentile duration.
+     */
+    public long getP99 ()
+    {
+        return p99;
+    }
+
+    /**
+     * @return The 99.9th percentile duration.
+     */
+    public long getP999 ()
+    {
+        return p999;
+    }
+
+    /**
+     * @return The longest duration.
+     */
+    public long getMaximum ()
+    {
+        return maximum;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return wrappedClass.getName() + "." + methodName + " count=" + count + " p50=" + p50 + "ns p99=" + p99 + "ns p999=" + p999
+                + "ns max=" + maximum + "ns";
+    }
+}
@@ -1,18 +1,73 @@
 package info.tholstrup.utils.code.injection;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides convenience method to create proxied objects.
+ * <p />
+ * The constructors involved in creating a proxied instance are resolved once per instance class, parameter types and handler chain and
+ * kept in an {@link InstantiationPlan}, later creations reuse the plan. The plans are held by the instance class itself (through a
+ * ClassValue), so they do not keep the class or its class loader from being unloaded.
+ * <p />
+ * By default the proxies are JDK proxies, which only implement the interfaces of the instance class. If class generation is enabled
+ * (either with {@link #setClassGenerationEnabled(boolean)} or by setting the system property {@value #CLASS_GENERATION_PROPERTY} to true)
+ * proxy classes are generated at runtime instead, these extend the instance class where possible so the proxy can be cast to it. A
+ * generated proxy runs interceptor chains (and the interceptors of an {@link InterceptionSwitch}) itself and calls the instance directly
+ * when there are no interceptors, other handlers are called just as from JDK proxies. Classes which cannot be proxied by a generated class
+ * still get JDK proxies.
  */
 public class ProxyAssistant
 {
 
+    /**
+     * The system property which enables class generation when set to true.
+     */
+    public static final String CLASS_GENERATION_PROPERTY = "info.tholstrup.utils.code.injection.generateProxyClasses";
+
     private static final Object[] EMPTY_OBJECT_ARRAY = new Object[] {};
     private static final Class[] EMPTY_CLASS_ARRAY = new Class[] {};
 
+    private static final ClassValue<ConcurrentHashMap<PlanKey, InstantiationPlan>> plansByClass =
+            new ClassValue<ConcurrentHashMap<PlanKey, InstantiationPlan>>()
+            {
+                @Override
+                protected ConcurrentHashMap<PlanKey, InstantiationPlan> computeValue (Class instanceClass)
+                {
+                    return new ConcurrentHashMap<PlanKey, InstantiationPlan>();
+                }
+            };
+    private static final ClassValue<ConcurrentHashMap<PlanKey, InstantiationPlan>> wrappingPlansByClass =
+            new ClassValue<ConcurrentHashMap<PlanKey, InstantiationPlan>>()
+            {
+                @Override
+                protected ConcurrentHashMap<PlanKey, InstantiationPlan> computeValue (Class instanceClass)
+                {
+                    return new ConcurrentHashMap<PlanKey, InstantiationPlan>();
+                }
+            };
+    private static volatile boolean classGenerationEnabled = Boolean.getBoolean(CLASS_GENERATION_PROPERTY);
+
+    /**
+     * @param enabled
+     *            True to generate proxy classes at runtime, false to use JDK proxies. Instances created before the change keep their
+     *            proxies.
+     */
+    public static void setClassGenerationEnabled (boolean enabled)
+    {
+        classGenerationEnabled = enabled;
+    }
+
+    /**
+     * @return True if proxy classes are generated at runtime.
+     */
+    public static boolean isClassGenerationEnabled ()
+    {
+        return classGenerationEnabled;
+    }
+
     /**
      * 
      * @param instanceClass
@@ -43,25 +98,216 @@ public class ProxyAssistant
     public static <T> T createProxiedInstance (Class<T> instanceClass, Class[] parameterTypes, Object[] parameters,
             Class[] invocationHandlers)
     {
-        T instance = null;
+        return (T) getInstantiationPlan(instanceClass, parameterTypes, invocationHandlers, false).newInstance(parameters);
+    }
+
+    /**
+     * Like {@link #createProxiedInstance(Class, Class[], Object[], Class[])} but rather than nesting a proxy per handler the handlers are
+     * run as an interceptor chain inside a single proxy.
+     * 
+     * @param instanceClass
+     *            The Class which is to be instantiated (cannot be null).
+     * @param parameterTypes
+     *            The constructor parameter types (cannot be null).
+     * @param parameters
+     *            The constructor parameters (cannot be null).
+     * @param interceptors
+     *            An array of {@link Interceptor}s which have a constructor that takes a single object (cannot be null).
+     * @return The proxied instance of the class wrapped with an {@link InterceptorChainHandler}.
+     */
+    public static <T> T createInterceptedInstance (Class<T> instanceClass, Class[] parameterTypes, Object[] parameters,
+            Class[] interceptors)
+    {
+        return (T) getInstantiationPlan(instanceClass, parameterTypes, interceptors, true).newInstance(parameters);
+    }
+
+    /**
+     * Like {@link #createProxiedInstance(Class, Class[], Object[], Class[])} (or
+     * {@link #createInterceptedInstance(Class, Class[], Object[], Class[])}) except that the instance is not created until the first method
+     * is called on the returned proxy.
+     * 
+     * @param instanceClass
+     *            The Class which is to be instantiated (cannot be null).
+     * @param parameterTypes
+     *            The constructor parameter types (cannot be null).
+     * @param parameters
+     *            The constructor parameters (cannot be null).
+     * @param invocationHandlers
+     *            The handlers to wrap the instance in once it is created (cannot be null).
+     * @param interceptorChain
+     *            True to run the handlers as an interceptor chain.
+     * @return A proxy handled by a {@link LazyInstanceHandler}.
+     */
+    public static <T> T createLazyInstance (Class<T> instanceClass, Class[] parameterTypes, Object[] parameters,
+            Class[] invocationHandlers, boolean interceptorChain)
+    {
+        return (T) getInstantiationPlan(instanceClass, parameterTypes, invocationHandlers, interceptorChain).newLazyInstance(parameters);
+    }
 
-        try
+    /**
+     * Creates an instance wrapped in a single proxy which applies the handlers currently set on the given switch, so the handlers can be
+     * changed after the instance has been created.
+     * 
+     * @param instanceClass
+     *            The Class which is to be instantiated (cannot be null).
+     * @param parameterTypes
+     *            The constructor parameter types (cannot be null).
+     * @param parameters
+     *            The constructor parameters (cannot be null).
+     * @param interceptionSwitch
+     *            Holds the handlers to apply (cannot be null).
+     * @return A proxy handled by a {@link SwitchableInterceptionHandler}.
+     */
+    public static <T> T createSwitchableInstance (Class<T> instanceClass, Class[] parameterTypes, Object[] parameters,
+            InterceptionSwitch interceptionSwitch)
+    {
+        return (T) getInstantiationPlan(instanceClass, parameterTypes, EMPTY_CLASS_ARRAY, false).newSwitchableInstance(parameters,
+                interceptionSwitch);
+    }
+
+    /**
+     * @param instance
+     *            Any object (may be null).
+     * @return True if the object is a JDK proxy or a generated proxy.
+     */
+    public static boolean isProxy (Object instance)
+    {
+        return instance instanceof GeneratedProxy || (instance != null && Proxy.isProxyClass(instance.getClass()));
+    }
+
+    /**
+     * @param proxy
+     *            A JDK proxy or a generated proxy.
+     * @return The handler of the proxy.
+     * @throws IllegalArgumentException
+     *             if the object is not a proxy.
+     */
+    public static InvocationHandler getInvocationHandler (Object proxy)
+    {
+        if (proxy instanceof GeneratedProxy)
         {
-            Constructor<T> constructor = instanceClass.getConstructor(parameterTypes);
-            instance = constructor.newInstance(parameters);
+            return ((GeneratedProxy) proxy).$$getInvocationHandler();
+        }
+        return Proxy.getInvocationHandler(proxy);
+    }
+
+    /**
+     * Returns the plan for creating proxied instances of the given class, the plan is compiled the first time it is requested.
+     * 
+     * @param instanceClass
+     *            The Class which is to be instantiated (cannot be null).
+     * @param parameterTypes
+     *            The constructor parameter types, null for the no argument constructor.
+     * @param invocationHandlers
+     *            An array of {@link FactoryInvocationHandler}s which have a constructor that takes a single object (cannot be null).
+     * @param interceptorChain
+     *            True to run the handlers as an interceptor chain in a single proxy, in which case they must implement
+     *            {@link Interceptor}.
+     * @return The plan.
+     */
+    public static InstantiationPlan getInstantiationPlan (Class instanceClass, Class[] parameterTypes, Class[] invocationHandlers,
+            boolean interceptorChain)
+    {
+        PlanKey key = new PlanKey(parameterTypes == null ? EMPTY_CLASS_ARRAY : parameterTypes, invocationHandlers, interceptorChain,
+                classGenerationEnabled);
+        return getPlan(plansByClass.get(instanceClass), instanceClass, key, key.parameterTypes);
+    }
+
+    /**
+     * Returns a plan which wraps instances constructed by the caller, see {@link InstantiationPlan#wrap(Object)}. Unlike
+     * {@link #getInstantiationPlan(Class, Class[], Class[], boolean)} it does not need a public constructor.
+     * 
+     * @param instanceClass
+     *            The class of the instances to wrap (cannot be null).
+     * @param invocationHandlers
+     *            An array of {@link FactoryInvocationHandler}s which have a constructor that takes a single object (cannot be null).
+     * @param interceptorChain
+     *            True to run the handlers as an interceptor chain in a single proxy.
+     * @return The plan.
+     */
+    public static InstantiationPlan getWrappingPlan (Class instanceClass, Class[] invocationHandlers, boolean interceptorChain)
+    {
+        return getPlan(wrappingPlansByClass.get(instanceClass), instanceClass, new PlanKey(EMPTY_CLASS_ARRAY, invocationHandlers,
+                interceptorChain, classGenerationEnabled), null);
+    }
 
-            for (int i = 0; i < invocationHandlers.length; i++)
+    /**
+     * @param parameterTypes
+     *            The constructor parameter types of the plan, null for a plan which only wraps instances.
+     */
+    private static InstantiationPlan getPlan (ConcurrentHashMap<PlanKey, InstantiationPlan> planCache, Class instanceClass, PlanKey key,
+            Class[] parameterTypes)
+    {
+        InstantiationPlan plan = planCache.get(key);
+        if (plan == null)
+        {
+            try
+            {
+                plan = new InstantiationPlan(instanceClass, parameterTypes, key.invocationHandlers, key.interceptorChain,
+                        key.generateProxyClass);
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+            InstantiationPlan existing = planCache.putIfAbsent(key.copy(), plan);
+            if (existing != null)
             {
-                Constructor<T> invocationHandlerConstructor = invocationHandlers[i].getConstructor(new Class[] { Object.class });
-                InvocationHandler handler = (InvocationHandler) invocationHandlerConstructor.newInstance(new Object[] { instance });
-                instance = (T) Proxy.newProxyInstance(instance.getClass().getClassLoader(), instance.getClass().getInterfaces(), handler);
+                plan = existing;
             }
         }
-        catch (Exception e)
+        return plan;
+    }
+
+    /**
+     * Cache key for the plans of an instance class. Lookups are made with the arrays given by the caller, the key is copied before it is
+     * stored as callers are free to reuse their arrays. Whether proxy classes are generated is part of the key, so plans made before the
+     * setting changed are simply no longer looked up.
+     */
+    private static final class PlanKey
+    {
+        final Class[] parameterTypes;
+        final Class[] invocationHandlers;
+        final boolean interceptorChain;
+        final boolean generateProxyClass;
+        final int hashCode;
+
+        PlanKey(Class[] parameterTypes, Class[] invocationHandlers, boolean interceptorChain, boolean generateProxyClass)
         {
-            throw new RuntimeException(e);
+            this.parameterTypes = parameterTypes;
+            this.invocationHandlers = invocationHandlers;
+            this.interceptorChain = interceptorChain;
+            this.generateProxyClass = generateProxyClass;
+            int result = 31 * Arrays.hashCode(parameterTypes) + Arrays.hashCode(invocationHandlers);
+            result = 31 * result + (interceptorChain ? 1 : 0);
+            this.hashCode = 31 * result + (generateProxyClass ? 1 : 0);
         }
-        return instance;
-    }
 
+        PlanKey copy ()
+        {
+            return new PlanKey(parameterTypes.clone(), invocationHandlers.clone(), interceptorChain, generateProxyClass);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals (Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof PlanKey))
+            {
+                return false;
+            }
+            PlanKey other = (PlanKey) obj;
+            return interceptorChain == other.interceptorChain && generateProxyClass == other.generateProxyClass
+                    && Arrays.equals(parameterTypes, other.parameterTypes) && Arrays.equals(invocationHandlers, other.invocationHandlers);
+        }
+    }
 }
@@ -0,0 +1,1013 @@
+package info.tholstrup.utils.code.injection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates proxy classes at runtime and defines them as hidden classes (see
+ * {@link MethodHandles.Lookup#defineHiddenClassWithClassData(byte[], Object, boolean, MethodHandles.Lookup.ClassOption...)}) in the
+ * package of the class being proxied.
+ * <p />
+ * If the class can be subclassed the proxy extends it, so unlike a JDK proxy it can be cast to the class itself and not just to its
+ * interfaces. Otherwise the proxy implements the interfaces of the class.
+ * <p />
+ * Every method of a proxy keeps the {@link MethodMetadata} of the method it proxies in a static final field. If the handler of the proxy is
+ * an {@link InterceptorSource} the method runs the current interceptors itself, with an {@link Invocation} built from that metadata, and
+ * when there are no interceptors it calls the delegate with a plain invokevirtual which the JIT can inline, so neither path looks anything
+ * up and the direct path allocates nothing. Any other handler is called just like from a JDK proxy, with the {@link Method} and the boxed
+ * arguments. As with JDK proxies checked exceptions which the method does not declare are wrapped in an
+ * {@link UndeclaredThrowableException}.
+ * <p />
+ * The constructor of a proxy sets its fields and then runs the no argument constructor of the class it extends, so calls that constructor
+ * makes to overridden methods are already forwarded. A class is only subclassed if it is not final or sealed, it has a no argument
+ * constructor, all of its (non private) instance methods are public and not final, so every one of them is forwarded, and it has no non
+ * private instance fields.
+ */
+final class ProxyClassGenerator
+{
+    private static final Logger log = LoggerFactory.getLogger(ProxyClassGenerator.class);
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(void.class, Object.class, InvocationHandler.class,
+            InterceptorSource.class);
+    private static final MethodType PROXY_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Object.class, InvocationHandler.class);
+    private static final MethodType INTERCEPTOR_SOURCE_TYPE = MethodType.methodType(InterceptorSource.class, InvocationHandler.class);
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String THROWABLE = "java/lang/Throwable";
+    private static final String UNDECLARED_THROWABLE_EXCEPTION = "java/lang/reflect/UndeclaredThrowableException";
+    private static final String METHOD_HANDLES = "java/lang/invoke/MethodHandles";
+    private static final String INVOCATION_HANDLER = "java/lang/reflect/InvocationHandler";
+    private static final String GENERATED_PROXY = "info/tholstrup/utils/code/injection/GeneratedProxy";
+    private static final String INTERCEPTOR_SOURCE = "info/tholstrup/utils/code/injection/InterceptorSource";
+    private static final String INVOCATION = "info/tholstrup/utils/code/injection/Invocation";
+    private static final String METHOD_METADATA = "info/tholstrup/utils/code/injection/MethodMetadata";
+    private static final String INVOCATION_HANDLER_DESCRIPTOR = "L" + INVOCATION_HANDLER + ";";
+    private static final String INTERCEPTOR_SOURCE_DESCRIPTOR = "L" + INTERCEPTOR_SOURCE + ";";
+    private static final String INTERCEPTOR_ARRAY_DESCRIPTOR = "[Linfo/tholstrup/utils/code/injection/Interceptor;";
+    private static final String METHOD_METADATA_DESCRIPTOR = "L" + METHOD_METADATA + ";";
+    private static final String DELEGATE_FIELD = "delegate";
+    private static final String HANDLER_FIELD = "handler";
+    private static final String INTERCEPTOR_SOURCE_FIELD = "interceptorSource";
+    private static final String METADATA_FIELD_PREFIX = "method";
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    // verification types of the StackMapTable, references are written as the constant pool index of their class shifted left by 8 bits.
+    private static final int ITEM_INTEGER = 1;
+    private static final int ITEM_FLOAT = 2;
+    private static final int ITEM_DOUBLE = 3;
+    private static final int ITEM_LONG = 4;
+    private static final int ITEM_OBJECT = 7;
+
+    /**
+     * The generated proxy constructors, null if a class cannot be proxied by a generated class.
+     */
+    private static final ClassValue<MethodHandle> proxyConstructors = new ClassValue<MethodHandle>()
+    {
+        @Override
+        protected MethodHandle computeValue (Class<?> type)
+        {
+            try
+            {
+                return new ProxyClassGenerator(type).define();
+            }
+            catch (Throwable e)
+            {
+                log.debug("Unable to generate a proxy class for " + type.getName() + ", JDK proxies will be used.", e);
+                return null;
+            }
+        }
+    };
+
+    private final Class instanceClass;
+    private final boolean subclass;
+    private final String className;
+    private final String superName;
+    private final String delegateDescriptor;
+    private final List<Method> methods;
+    private final ConstantPool pool = new ConstantPool();
+
+    /**
+     * @param instanceClass
+     *            The class to proxy.
+     * @return A handle of type (Object delegate, InvocationHandler handler)Object which creates a proxy, or null if a proxy class cannot be
+     *         generated for the class.
+     */
+    static MethodHandle getProxyConstructor (Class instanceClass)
+    {
+        return proxyConstructors.get(instanceClass);
+    }
+
+    /**
+     * @param instanceClass
+     *            The class to proxy.
+     * @return True if a generated proxy of the class extends the class.
+     */
+    static boolean canSubclass (Class instanceClass)
+    {
+        if (instanceClass.isInterface() || instanceClass.isArray() || instanceClass.isPrimitive() || instanceClass.isHidden()
+                || instanceClass.isSealed() || Modifier.isFinal(instanceClass.getModifiers()))
+        {
+            return false;
+        }
+        try
+        {
+            // the proxy is a nestmate of the class so it may call the constructor even if it is private.
+            instanceClass.getDeclaredConstructor();
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+        for (Class type = instanceClass; type != null && type != Object.class; type = type.getSuperclass())
+        {
+            for (Method method : type.getDeclaredMethods())
+            {
+                int modifiers = method.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isPrivate(modifiers)
+                        && (!Modifier.isPublic(modifiers) || Modifier.isFinal(modifiers)))
+                {
+                    return false;
+                }
+            }
+            for (Field field : type.getDeclaredFields())
+            {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isPrivate(modifiers))
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private ProxyClassGenerator(Class instanceClass)
+    {
+        this.instanceClass = instanceClass;
+        this.subclass = canSubclass(instanceClass);
+        this.className = internalName(instanceClass) + "$$FactoryProxy";
+        this.superName = subclass ? internalName(instanceClass) : OBJECT;
+        this.delegateDescriptor = descriptor(instanceClass);
+        this.methods = subclass ? collectClassMethods(instanceClass) : collectInterfaceMethods(instanceClass);
+    }
+
+    /**
+     * Defines the proxy class, with the metadata of its methods as class data, and returns a handle which creates a proxy with the
+     * generated constructor.
+     */
+    private MethodHandle define () throws Throwable
+    {
+        MethodMetadata[] metadata = new MethodMetadata[methods.size()];
+        for (int i = 0; i < metadata.length; i++)
+        {
+            Method method = methods.get(i);
+            verifyAccessible(method.getReturnType());
+            for (Class parameterType : method.getParameterTypes())
+            {
+                verifyAccessible(parameterType);
+            }
+            for (Class exceptionType : method.getExceptionTypes())
+            {
+                verifyAccessible(exceptionType);
+            }
+            metadata[i] = MethodMetadata.forMethod(instanceClass, method);
+        }
+        if (!subclass)
+        {
+            for (Class proxyInterface : instanceClass.getInterfaces())
+            {
+                verifyAccessible(proxyInterface);
+            }
+        }
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(instanceClass, MethodHandles.lookup());
+        MethodHandles.Lookup proxyLookup = lookup.defineHiddenClassWithClassData(generate(), metadata, true,
+                MethodHandles.Lookup.ClassOption.NESTMATE);
+        MethodHandle constructor = proxyLookup.findConstructor(proxyLookup.lookupClass(), CONSTRUCTOR_TYPE);
+        MethodHandle interceptorSource = MethodHandles.lookup().findStatic(ProxyClassGenerator.class, "interceptorSource",
+                INTERCEPTOR_SOURCE_TYPE);
+        // (delegate, handler) -> new Proxy(delegate, handler, interceptorSource(handler))
+        constructor = MethodHandles.filterArguments(constructor.asType(constructor.type().changeReturnType(Object.class)), 2,
+                interceptorSource);
+        return MethodHandles.permuteArguments(constructor, PROXY_CONSTRUCTOR_TYPE, new int[] { 0, 1, 1 });
+    }
+
+    /**
+     * @return The handler if the proxy is to run its interceptors itself, null if calls are to be passed to the handler.
+     */
+    private static InterceptorSource interceptorSource (InvocationHandler handler)
+    {
+        return handler instanceof InterceptorSource ? (InterceptorSource) handler : null;
+    }
+
+    /**
+     * The generated class lives in the package of the instance class, so every class it refers to by name must be public or in that
+     * package.
+     */
+    private void verifyAccessible (Class type)
+    {
+        while (type.isArray())
+        {
+            type = type.getComponentType();
+        }
+        if (type.isPrimitive() || Modifier.isPublic(type.getModifiers()) || type == instanceClass)
+        {
+            return;
+        }
+        if (type.getPackageName().equals(instanceClass.getPackageName()) && type.getClassLoader() == instanceClass.getClassLoader())
+        {
+            return;
+        }
+        throw new IllegalArgumentException(type.getName() + " is not accessible from the package of " + instanceClass.getName());
+    }
+
+    private static List<Method> collectClassMethods (Class type)
+    {
+        Map<String, Method> methods = new LinkedHashMap<String, Method>();
+        for (Method method : type.getMethods())
+        {
+            int modifiers = method.getModifiers();
+            // the only final methods left are those of Object, which do not touch the state of the proxy.
+            if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers))
+            {
+                continue;
+            }
+            String signature = method.getName() + methodDescriptor(method);
+            if (!methods.containsKey(signature))
+            {
+                methods.put(signature, method);
+            }
+        }
+        return new ArrayList<Method>(methods.values());
+    }
+
+    private static List<Method> collectInterfaceMethods (Class type)
+    {
+        Map<String, Method> methods = new LinkedHashMap<String, Method>();
+        for (Class proxyInterface : type.getInterfaces())
+        {
+            for (Method method : proxyInterface.getMethods())
+            {
+                String signature = method.getName() + methodDescriptor(method);
+                if (!Modifier.isStatic(method.getModifiers()) && !methods.containsKey(signature))
+                {
+                    methods.put(signature, method);
+                }
+            }
+        }
+        try
+        {
+            // JDK proxies also pass these three to the handler.
+            methods.put("equals(Ljava/lang/Object;)Z", Object.class.getMethod("equals", new Class[] { Object.class }));
+            methods.put("hashCode()I", Object.class.getMethod("hashCode", new Class[] {}));
+            methods.put("toString()Ljava/lang/String;", Object.class.getMethod("toString", new Class[] {}));
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return new ArrayList<Method>(methods.values());
+    }
+
+    private byte[] generate () throws IOException
+    {
+        int thisClass = pool.classInfo(className);
+        int superClass = pool.classInfo(superName);
+        Class[] proxiedInterfaces = subclass ? new Class[] {} : instanceClass.getInterfaces();
+        int[] interfaces = new int[proxiedInterfaces.length + 1];
+        for (int i = 0; i < proxiedInterfaces.length; i++)
+        {
+            interfaces[i] = pool.classInfo(internalName(proxiedInterfaces[i]));
+        }
+        interfaces[proxiedInterfaces.length] = pool.classInfo(GENERATED_PROXY);
+
+        ByteArrayOutputStream fieldAndMethodBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(fieldAndMethodBytes);
+        out.writeShort(3 + methods.size());
+        writeField(out, ACC_PRIVATE | ACC_FINAL, DELEGATE_FIELD, delegateDescriptor);
+        writeField(out, ACC_PRIVATE | ACC_FINAL, HANDLER_FIELD, INVOCATION_HANDLER_DESCRIPTOR);
+        writeField(out, ACC_PRIVATE | ACC_FINAL, INTERCEPTOR_SOURCE_FIELD, INTERCEPTOR_SOURCE_DESCRIPTOR);
+        for (int i = 0; i < methods.size(); i++)
+        {
+            writeField(out, ACC_PRIVATE | ACC_STATIC | ACC_FINAL, METADATA_FIELD_PREFIX + i, METHOD_METADATA_DESCRIPTOR);
+        }
+        out.writeShort(3 + methods.size());
+        writeStaticInitializer(out);
+        writeConstructor(out);
+        writeHandlerGetter(out);
+        for (int i = 0; i < methods.size(); i++)
+        {
+            writeMethod(out, i, methods.get(i));
+        }
+        out.writeShort(0); // class attributes
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream classFile = new DataOutputStream(classBytes);
+        classFile.writeInt(0xCAFEBABE);
+        classFile.writeShort(0);
+        classFile.writeShort(55); // Java 11
+        pool.write(classFile);
+        classFile.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+        classFile.writeShort(thisClass);
+        classFile.writeShort(superClass);
+        classFile.writeShort(interfaces.length);
+        for (int i = 0; i < interfaces.length; i++)
+        {
+            classFile.writeShort(interfaces[i]);
+        }
+        fieldAndMethodBytes.writeTo(classBytes);
+        return classBytes.toByteArray();
+    }
+
+    private void writeField (DataOutputStream out, int access, String name, String descriptor) throws IOException
+    {
+        out.writeShort(access);
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(descriptor));
+        out.writeShort(0);
+    }
+
+    /**
+     * Copies the metadata of the methods from the class data into the static fields:
+     * MethodMetadata[] metadata = MethodHandles.classData(MethodHandles.lookup(), "_", MethodMetadata[].class); method0 = metadata[0]; ...
+     */
+    private void writeStaticInitializer (DataOutputStream out) throws IOException
+    {
+        String lookupDescriptor = "Ljava/lang/invoke/MethodHandles$Lookup;";
+        Code code = new Code();
+        code.op(0xb8).u2(pool.methodRef(METHOD_HANDLES, "lookup", "()" + lookupDescriptor, false)); // invokestatic
+        code.op(0x13).u2(pool.string("_")); // ldc_w
+        code.op(0x13).u2(pool.classInfo("[" + METHOD_METADATA_DESCRIPTOR));
+        code.op(0xb8).u2(pool.methodRef(METHOD_HANDLES, "classData",
+                "(" + lookupDescriptor + "Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;", false));
+        code.op(0xc0).u2(pool.classInfo("[" + METHOD_METADATA_DESCRIPTOR)); // checkcast
+        code.op(0x4b); // astore_0
+        for (int i = 0; i < methods.size(); i++)
+        {
+            code.op(0x2a); // aload_0
+            code.pushInt(i);
+            code.op(0x32); // aaload
+            code.op(0xb3).u2(pool.fieldRef(className, METADATA_FIELD_PREFIX + i, METHOD_METADATA_DESCRIPTOR)); // putstatic
+        }
+        code.op(0xb1); // return
+        writeCode(out, ACC_STATIC, "<clinit>", "()V", code, 3, 1);
+    }
+
+    /**
+     * (Object delegate, InvocationHandler handler, InterceptorSource interceptorSource): this.delegate = (InstanceClass) delegate;
+     * this.handler = handler; this.interceptorSource = interceptorSource; super();
+     */
+    private void writeConstructor (DataOutputStream out) throws IOException
+    {
+        Code code = new Code();
+        code.op(0x2a); // aload_0
+        code.op(0x2b); // aload_1
+        code.op(0xc0).u2(pool.classInfo(internalName(instanceClass))); // checkcast
+        code.op(0xb5).u2(pool.fieldRef(className, DELEGATE_FIELD, delegateDescriptor)); // putfield
+        code.op(0x2a);
+        code.op(0x2c); // aload_2
+        code.op(0xb5).u2(pool.fieldRef(className, HANDLER_FIELD, INVOCATION_HANDLER_DESCRIPTOR));
+        code.op(0x2a);
+        code.op(0x2d); // aload_3
+        code.op(0xb5).u2(pool.fieldRef(className, INTERCEPTOR_SOURCE_FIELD, INTERCEPTOR_SOURCE_DESCRIPTOR));
+        code.op(0x2a);
+        code.op(0xb7).u2(pool.methodRef(superName, "<init>", "()V", false)); // invokespecial
+        code.op(0xb1); // return
+        writeCode(out, ACC_PUBLIC, "<init>", "(Ljava/lang/Object;" + INVOCATION_HANDLER_DESCRIPTOR + INTERCEPTOR_SOURCE_DESCRIPTOR + ")V",
+                code, 2, 4);
+    }
+
+    /**
+     * {@link GeneratedProxy#$$getInvocationHandler()}: return this.handler;
+     */
+    private void writeHandlerGetter (DataOutputStream out) throws IOException
+    {
+        Code code = new Code();
+        code.op(0x2a); // aload_0
+        code.op(0xb4).u2(pool.fieldRef(className, HANDLER_FIELD, INVOCATION_HANDLER_DESCRIPTOR)); // getfield
+        code.op(0xb0); // areturn
+        writeCode(out, ACC_PUBLIC | ACC_FINAL, "$$getInvocationHandler", "()" + INVOCATION_HANDLER_DESCRIPTOR, code, 1, 1);
+    }
+
+    /**
+     * Writes a proxy method:
+     *
+     * <pre>
+     * InterceptorSource source = this.interceptorSource;
+     * if (source != null)
+     * {
+     *     Interceptor[] interceptors = source.getCurrentInterceptors();
+     *     if (interceptors.length == 0)
+     *     {
+     *         return this.delegate.method(args);
+     *     }
+     *     try
+     *     {
+     *         return (ReturnType) new Invocation(this.delegate, methodN, new Object[] { args }, interceptors).proceed();
+     *     }
+     *     ...
+     * }
+     * try
+     * {
+     *     return (ReturnType) this.handler.invoke(this, methodN.getMethod(), new Object[] { args });
+     * }
+     * catch (RuntimeException | Error | DeclaredException e)
+     * {
+     *     throw e;
+     * }
+     * catch (Throwable e)
+     * {
+     *     throw new UndeclaredThrowableException(e);
+     * }
+     * </pre>
+     */
+    private void writeMethod (DataOutputStream out, int index, Method method) throws IOException
+    {
+        Class[] parameterTypes = method.getParameterTypes();
+        Class returnType = method.getReturnType();
+        String descriptor = methodDescriptor(method);
+        String metadataField = METADATA_FIELD_PREFIX + index;
+        int argumentSlots = 0;
+        for (int i = 0; i < parameterTypes.length; i++)
+        {
+            argumentSlots += slots(parameterTypes[i]);
+        }
+        int sourceLocal = 1 + argumentSlots;
+        int interceptorsLocal = sourceLocal + 1;
+
+        Code code = new Code();
+        code.op(0x2a);
+        code.op(0xb4).u2(pool.fieldRef(className, INTERCEPTOR_SOURCE_FIELD, INTERCEPTOR_SOURCE_DESCRIPTOR));
+        code.store(sourceLocal);
+        code.load(Object.class, sourceLocal);
+        int toHandler = code.jump(0xc6); // ifnull
+        code.load(Object.class, sourceLocal);
+        code.op(0xb9).u2(pool.methodRef(INTERCEPTOR_SOURCE, "getCurrentInterceptors", "()" + INTERCEPTOR_ARRAY_DESCRIPTOR, true)).u1(1)
+                .u1(0); // invokeinterface
+        code.store(interceptorsLocal);
+        code.load(Object.class, interceptorsLocal);
+        code.op(0xbe); // arraylength
+        int toChain = code.jump(0x9a); // ifne
+
+        // no interceptors, call the delegate directly.
+        code.op(0x2a);
+        code.op(0xb4).u2(pool.fieldRef(className, DELEGATE_FIELD, delegateDescriptor));
+        int local = 1;
+        for (int i = 0; i < parameterTypes.length; i++)
+        {
+            code.load(parameterTypes[i], local);
+            local += slots(parameterTypes[i]);
+        }
+        if (instanceClass.isInterface())
+        {
+            code.op(0xb9).u2(pool.methodRef(internalName(instanceClass), method.getName(), descriptor, true)).u1(1 + argumentSlots).u1(0);
+        }
+        else
+        {
+            code.op(0xb6).u2(pool.methodRef(internalName(instanceClass), method.getName(), descriptor, false)); // invokevirtual
+        }
+        code.returnValue(returnType);
+
+        int chainStart = code.size();
+        code.land(toChain);
+        frame(code, parameterTypes, new String[] { INTERCEPTOR_SOURCE, INTERCEPTOR_ARRAY_DESCRIPTOR }, null);
+        code.op(0xbb).u2(pool.classInfo(INVOCATION)); // new
+        code.op(0x59); // dup
+        code.op(0x2a);
+        code.op(0xb4).u2(pool.fieldRef(className, DELEGATE_FIELD, delegateDescriptor));
+        code.op(0xb2).u2(pool.fieldRef(className, metadataField, METHOD_METADATA_DESCRIPTOR)); // getstatic
+        writeArguments(code, parameterTypes);
+        code.load(Object.class, interceptorsLocal);
+        code.op(0xb7).u2(pool.methodRef(INVOCATION, "<init>",
+                "(Ljava/lang/Object;" + METHOD_METADATA_DESCRIPTOR + "[Ljava/lang/Object;" + INTERCEPTOR_ARRAY_DESCRIPTOR + ")V", false));
+        code.op(0xb6).u2(pool.methodRef(INVOCATION, "proceed", "()Ljava/lang/Object;", false));
+        unbox(code, returnType);
+        code.returnValue(returnType);
+
+        code.land(toHandler);
+        frame(code, parameterTypes, new String[] { INTERCEPTOR_SOURCE }, null);
+        code.op(0x2a);
+        code.op(0xb4).u2(pool.fieldRef(className, HANDLER_FIELD, INVOCATION_HANDLER_DESCRIPTOR));
+        code.op(0x2a);
+        code.op(0xb2).u2(pool.fieldRef(className, metadataField, METHOD_METADATA_DESCRIPTOR));
+        code.op(0xb6).u2(pool.methodRef(METHOD_METADATA, "getMethod", "()Ljava/lang/reflect/Method;", false));
+        writeArguments(code, parameterTypes);
+        code.op(0xb9).u2(pool.methodRef(INVOCATION_HANDLER, "invoke",
+                "(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;", true)).u1(4).u1(0);
+        unbox(code, returnType);
+        code.returnValue(returnType);
+
+        int tryEnd = code.size();
+        code.catchRange(chainStart, tryEnd, tryEnd, pool.classInfo("java/lang/RuntimeException"));
+        code.catchRange(chainStart, tryEnd, tryEnd, pool.classInfo("java/lang/Error"));
+        for (Class exceptionType : method.getExceptionTypes())
+        {
+            code.catchRange(chainStart, tryEnd, tryEnd, pool.classInfo(internalName(exceptionType)));
+        }
+        frame(code, parameterTypes, new String[] {}, THROWABLE);
+        code.op(0xbf); // athrow
+        code.catchRange(chainStart, tryEnd, code.size(), pool.classInfo(THROWABLE));
+        frame(code, parameterTypes, new String[] {}, THROWABLE);
+        code.op(0xbb).u2(pool.classInfo(UNDECLARED_THROWABLE_EXCEPTION));
+        code.op(0x5a); // dup_x1
+        code.op(0x5f); // swap
+        code.op(0xb7).u2(pool.methodRef(UNDECLARED_THROWABLE_EXCEPTION, "<init>", "(Ljava/lang/Throwable;)V", false));
+        code.op(0xbf);
+
+        // the invocation twice, the delegate, the metadata, the array twice, an index and a (wide) argument.
+        writeCode(out, ACC_PUBLIC | ACC_FINAL, method.getName(), descriptor, code, Math.max(9, 1 + argumentSlots), interceptorsLocal + 1);
+    }
+
+    /**
+     * Pushes the arguments boxed into a new Object[], or null if the method takes none (like JDK proxies).
+     */
+    private void writeArguments (Code code, Class[] parameterTypes)
+    {
+        if (parameterTypes.length == 0)
+        {
+            code.op(0x01); // aconst_null
+            return;
+        }
+        code.pushInt(parameterTypes.length);
+        code.op(0xbd).u2(pool.classInfo(OBJECT)); // anewarray
+        int local = 1;
+        for (int i = 0; i < parameterTypes.length; i++)
+        {
+            code.op(0x59); // dup
+            code.pushInt(i);
+            code.load(parameterTypes[i], local);
+            box(code, parameterTypes[i]);
+            code.op(0x53); // aastore
+            local += slots(parameterTypes[i]);
+        }
+    }
+
+    /**
+     * Adds a full frame at the current offset: the locals are this, the parameters and the given references, the stack is empty or holds
+     * the given reference.
+     */
+    private void frame (Code code, Class[] parameterTypes, String[] extraLocals, String stackItem)
+    {
+        int[] locals = new int[1 + parameterTypes.length + extraLocals.length];
+        locals[0] = objectItem(className);
+        for (int i = 0; i < parameterTypes.length; i++)
+        {
+            locals[1 + i] = verificationItem(parameterTypes[i]);
+        }
+        for (int i = 0; i < extraLocals.length; i++)
+        {
+            locals[1 + parameterTypes.length + i] = objectItem(extraLocals[i]);
+        }
+        code.frame(locals, stackItem == null ? new int[] {} : new int[] { objectItem(stackItem) });
+    }
+
+    private int verificationItem (Class type)
+    {
+        if (type == long.class)
+        {
+            return ITEM_LONG;
+        }
+        if (type == double.class)
+        {
+            return ITEM_DOUBLE;
+        }
+        if (type == float.class)
+        {
+            return ITEM_FLOAT;
+        }
+        if (type.isPrimitive())
+        {
+            return ITEM_INTEGER;
+        }
+        return objectItem(internalName(type));
+    }
+
+    private int objectItem (String internalName)
+    {
+        return pool.classInfo(internalName) << 8 | ITEM_OBJECT;
+    }
+
+    private void writeCode (DataOutputStream out, int access, String name, String descriptor, Code code, int maxStack, int maxLocals)
+            throws IOException
+    {
+        boolean frames = code.frameCount > 0;
+        out.writeShort(access);
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(pool.utf8("Code"));
+        int stackMapTableLength = frames ? 8 + code.frames.size() : 0;
+        out.writeInt(12 + code.size() + code.exceptionTable.size() + stackMapTableLength);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        code.writeTo(out);
+        out.writeShort(code.exceptionTableLength);
+        code.exceptionTable.writeTo(out);
+        if (frames)
+        {
+            out.writeShort(1);
+            out.writeShort(pool.utf8("StackMapTable"));
+            out.writeInt(2 + code.frames.size());
+            out.writeShort(code.frameCount);
+            code.frames.writeTo(out);
+        }
+        else
+        {
+            out.writeShort(0); // attributes, code without branches needs no StackMapTable
+        }
+    }
+
+    private void box (Code code, Class type)
+    {
+        if (type.isPrimitive())
+        {
+            Class wrapper = wrapperOf(type);
+            code.op(0xb8).u2(pool.methodRef(internalName(wrapper), "valueOf", "(" + descriptor(type) + ")" + descriptor(wrapper), false));
+        }
+    }
+
+    private void unbox (Code code, Class type)
+    {
+        if (type == void.class)
+        {
+            code.op(0x57); // pop
+        }
+        else if (type.isPrimitive())
+        {
+            Class wrapper = wrapperOf(type);
+            code.op(0xc0).u2(pool.classInfo(internalName(wrapper)));
+            code.op(0xb6).u2(pool.methodRef(internalName(wrapper), type.getName() + "Value", "()" + descriptor(type), false));
+        }
+        else if (type != Object.class)
+        {
+            code.op(0xc0).u2(pool.classInfo(internalName(type)));
+        }
+    }
+
+    private static Class wrapperOf (Class type)
+    {
+        if (type == int.class)
+        {
+            return Integer.class;
+        }
+        if (type == long.class)
+        {
+            return Long.class;
+        }
+        if (type == boolean.class)
+        {
+            return Boolean.class;
+        }
+        if (type == double.class)
+        {
+            return Double.class;
+        }
+        if (type == float.class)
+        {
+            return Float.class;
+        }
+        if (type == char.class)
+        {
+            return Character.class;
+        }
+        if (type == byte.class)
+        {
+            return Byte.class;
+        }
+        return Short.class;
+    }
+
+    private static int slots (Class type)
+    {
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static String internalName (Class type)
+    {
+        return type.isArray() ? descriptor(type) : type.getName().replace('.', '/');
+    }
+
+    private static String descriptor (Class type)
+    {
+        return type.descriptorString();
+    }
+
+    private static String methodDescriptor (Method method)
+    {
+        return MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString();
+    }
+
+    /**
+     * The bytecode of a single method, with its exception table and stack map frames.
+     */
+    private static final class Code
+    {
+        private byte[] bytes = new byte[64];
+        private int size;
+        private final ByteArrayOutputStream exceptionTable = new ByteArrayOutputStream();
+        private int exceptionTableLength;
+        private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        private int frameCount;
+        private int lastFrameOffset = -1;
+
+        Code op (int opcode)
+        {
+            return u1(opcode);
+        }
+
+        Code u1 (int value)
+        {
+            if (size == bytes.length)
+            {
+                byte[] grown = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        Code u2 (int value)
+        {
+            u1(value >>> 8);
+            return u1(value);
+        }
+
+        /**
+         * Writes a branch whose target is set by {@link #land(int)}.
+         *
+         * @return The offset of the branch.
+         */
+        int jump (int opcode)
+        {
+            int offset = size;
+            op(opcode).u2(0);
+            return offset;
+        }
+
+        /**
+         * Makes the branch at the given offset jump to the current offset.
+         */
+        void land (int jump)
+        {
+            int distance = size - jump;
+            bytes[jump + 1] = (byte) (distance >>> 8);
+            bytes[jump + 2] = (byte) distance;
+        }
+
+        void catchRange (int start, int end, int handler, int catchType)
+        {
+            exceptionTableLength++;
+            writeShorts(exceptionTable, new int[] { start, end, handler, catchType });
+        }
+
+        /**
+         * Adds a full_frame at the current offset.
+         */
+        void frame (int[] locals, int[] stack)
+        {
+            frames.write(255);
+            writeShorts(frames, new int[] { size - lastFrameOffset - 1, locals.length });
+            writeItems(locals);
+            writeShorts(frames, new int[] { stack.length });
+            writeItems(stack);
+            lastFrameOffset = size;
+            frameCount++;
+        }
+
+        private void writeItems (int[] items)
+        {
+            for (int i = 0; i < items.length; i++)
+            {
+                frames.write(items[i] & 0xff);
+                if ((items[i] & 0xff) == ITEM_OBJECT)
+                {
+                    writeShorts(frames, new int[] { items[i] >>> 8 });
+                }
+            }
+        }
+
+        private static void writeShorts (ByteArrayOutputStream out, int[] values)
+        {
+            for (int i = 0; i < values.length; i++)
+            {
+                out.write(values[i] >>> 8);
+                out.write(values[i]);
+            }
+        }
+
+        void pushInt (int value)
+        {
+            if (value <= 5)
+            {
+                op(0x03 + value); // iconst_<n>
+            }
+            else if (value <= Byte.MAX_VALUE)
+            {
+                op(0x10).u1(value); // bipush
+            }
+            else
+            {
+                op(0x11).u2(value); // sipush
+            }
+        }
+
+        void load (Class type, int local)
+        {
+            if (type == long.class)
+            {
+                localInstruction(0x16, local);
+            }
+            else if (type == double.class)
+            {
+                localInstruction(0x18, local);
+            }
+            else if (type == float.class)
+            {
+                localInstruction(0x17, local);
+            }
+            else if (type.isPrimitive())
+            {
+                localInstruction(0x15, local);
+            }
+            else
+            {
+                localInstruction(0x19, local);
+            }
+        }
+
+        /**
+         * Stores a reference.
+         */
+        void store (int local)
+        {
+            localInstruction(0x3a, local);
+        }
+
+        void returnValue (Class type)
+        {
+            if (type == void.class)
+            {
+                op(0xb1);
+            }
+            else if (type == long.class)
+            {
+                op(0xad);
+            }
+            else if (type == double.class)
+            {
+                op(0xaf);
+            }
+            else if (type == float.class)
+            {
+                op(0xae);
+            }
+            else if (type.isPrimitive())
+            {
+                op(0xac);
+            }
+            else
+            {
+                op(0xb0);
+            }
+        }
+
+        private void localInstruction (int opcode, int local)
+        {
+            if (local <= 0xff)
+            {
+                op(opcode).u1(local);
+            }
+            else
+            {
+                op(0xc4).op(opcode).u2(local); // wide
+            }
+        }
+
+        int size ()
+        {
+            return size;
+        }
+
+        void writeTo (DataOutputStream out) throws IOException
+        {
+            out.write(bytes, 0, size);
+        }
+    }
+
+    /**
+     * The constant pool of the generated class, entries are shared.
+     */
+    private static final class ConstantPool
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<String, Integer>();
+        private int count = 1;
+
+        int utf8 (String value)
+        {
+            String key = "U" + value;
+            Integer index = entries.get(key);
+            if (index == null)
+            {
+                index = add(key);
+                try
+                {
+                    out.writeByte(1);
+                    out.writeUTF(value);
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        int classInfo (String internalName)
+        {
+            return entry("C" + internalName, 7, utf8(internalName), -1);
+        }
+
+        int string (String value)
+        {
+            return entry("S" + value, 8, utf8(value), -1);
+        }
+
+        int fieldRef (String owner, String name, String descriptor)
+        {
+            return entry("F" + owner + "." + name + descriptor, 9, classInfo(owner), nameAndType(name, descriptor));
+        }
+
+        int methodRef (String owner, String name, String descriptor, boolean interfaceMethod)
+        {
+            return entry((interfaceMethod ? "I" : "M") + owner + "." + name + descriptor, interfaceMethod ? 11 : 10, classInfo(owner),
+                    nameAndType(name, descriptor));
+        }
+
+        private int nameAndType (String name, String descriptor)
+        {
+            return entry("N" + name + descriptor, 12, utf8(name), utf8(descriptor));
+        }
+
+        private int entry (String key, int tag, int first, int second)
+        {
+            Integer index = entries.get(key);
+            if (index == null)
+            {
+                index = add(key);
+                try
+                {
+                    out.writeByte(tag);
+                    out.writeShort(first);
+                    if (second >= 0)
+                    {
+                        out.writeShort(second);
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        private Integer add (String key)
+        {
+            Integer index = Integer.valueOf(count++);
+            entries.put(key, index);
+            return index;
+        }
+
+        void write (DataOutputStream classFile) throws IOException
+        {
+            classFile.writeShort(count);
+            bytes.writeTo(classFile);
+        }
+    }
+}
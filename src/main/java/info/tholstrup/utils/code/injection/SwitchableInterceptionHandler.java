@@ -0,0 +1,110 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicReference;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * An invocation handler which runs the interceptors currently set on an {@link InterceptionSwitch} around each call to the delegate. The
+ * handler keeps the interceptors it built for the handlers it last saw and only builds new ones when the switch has changed, so a call
+ * costs one volatile read on top of the chain; with no handlers set the call goes straight to the delegate.
+ * <p />
+ * Every switch builds new interceptors, so stateful interceptors such as {@link MemoizingHandler} and {@link BatchingHandler} start over
+ * with an empty cache or batch when the handlers are changed. Calls already running finish on the interceptors they started with.
+ */
+public class SwitchableInterceptionHandler extends FactoryInvocationHandler implements InterceptorSource
+{
+    protected Object delegate;
+    private final InterceptionSwitch interceptionSwitch;
+    private final AtomicReference<Chain> chain = new AtomicReference<Chain>();
+
+    /**
+     * @param delegate
+     *            The object which calls are forwarded to (cannot be null).
+     * @param interceptionSwitch
+     *            Holds the handlers to apply (cannot be null).
+     */
+    public SwitchableInterceptionHandler(Object delegate, InterceptionSwitch interceptionSwitch)
+    {
+        Verifier.verifyNotNull(delegate);
+        Verifier.verifyNotNull(interceptionSwitch);
+        this.delegate = delegate;
+        this.interceptionSwitch = interceptionSwitch;
+    }
+
+    @Override
+    public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+    {
+        Interceptor[] interceptors = getCurrentInterceptors();
+        if (interceptors.length == 0)
+        {
+            return getMethodMetadata(method).invoke(delegate, args);
+        }
+        return new Invocation(delegate, getMethodMetadata(method), args, interceptors).proceed();
+    }
+
+    /**
+     * @return The interceptors for the handlers currently set on the switch, which are built if the switch has changed.
+     */
+    @Override
+    public Interceptor[] getCurrentInterceptors ()
+    {
+        Class[] handlers = interceptionSwitch.currentHandlers();
+        Chain current = chain.get();
+        while (current == null || current.handlers != handlers)
+        {
+            // racing threads may each build a chain but only the one which is published is ever called, the others are dropped unused.
+            Chain built = new Chain(handlers, createInterceptors(handlers));
+            if (chain.compareAndSet(current, built))
+            {
+                current = built;
+            }
+            else
+            {
+                handlers = interceptionSwitch.currentHandlers();
+                current = chain.get();
+            }
+        }
+        return current.interceptors;
+    }
+
+    @Override
+    public Object getDelegate ()
+    {
+        return delegate;
+    }
+
+    /**
+     * @return The interceptors for the given handlers, in the order they see each call (the last handler first).
+     */
+    private Interceptor[] createInterceptors (Class[] handlers)
+    {
+        Interceptor[] interceptors = new Interceptor[handlers.length];
+        try
+        {
+            for (int i = 0; i < handlers.length; i++)
+            {
+                interceptors[handlers.length - 1 - i] =
+                        (Interceptor) handlers[i].getConstructor(new Class[] { Object.class }).newInstance(new Object[] { delegate });
+            }
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return interceptors;
+    }
+
+    private static final class Chain
+    {
+        final Class[] handlers;
+        final Interceptor[] interceptors;
+
+        Chain(Class[] handlers, Interceptor[] interceptors)
+        {
+            this.handlers = handlers;
+            this.interceptors = interceptors;
+        }
+    }
+}
@@ -1,17 +1,33 @@
 package info.tholstrup.utils.code.injection;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * An invocation handler which times method calls and logs the time to the debug level logger.
+ * An invocation handler which times method calls and logs the time to the debug level logger. It can also be used as an {@link Interceptor}
+ * in an interceptor chain.
+ * <p />
+ * When recording is enabled (see {@link #setRecordingEnabled(boolean)}) the durations are also counted in a {@link LatencyHistogram} per
+ * wrapped class and method, {@link #snapshot()} returns the percentiles of every timed method. Recording does not take any locks. Logging
+ * a line per call can be turned off with {@link #setLoggingEnabled(boolean)} when only the histograms are wanted.
+ * <p />
+ * Methods called very often can be sampled rather than timed on every call, either one in every N calls
+ * ({@link #setSamplingInterval(int)}) or as often as an overhead budget allows ({@link #setOverheadBudget(double)}). Each measured duration
+ * is recorded with the number of calls it stands for so the counts in the histograms remain estimates of the real number of calls.
  */
-public class TimingHandler extends FactoryInvocationHandler
+public class TimingHandler extends FactoryInvocationHandler implements Interceptor
 {
+    private static final ConcurrentHashMap<MethodMetadata, LatencyHistogram> histograms =
+            new ConcurrentHashMap<MethodMetadata, LatencyHistogram>();
+    private static volatile boolean recordingEnabled;
+    private static volatile boolean loggingEnabled = true;
+    private static final CallSampler sampler = new CallSampler();
 
     private Logger logger;
     protected Object delegate;
@@ -29,35 +45,71 @@ public class TimingHandler extends FactoryInvocationHandler
     @Override
     public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
     {
-        Object result = null;
-        Date timeStart = new Date();
-        Class wrappedClass = getWrappedClass();
-        try
+        MethodMetadata metadata = getMethodMetadata(method);
+        boolean recording = recordingEnabled;
+        boolean logging = loggingEnabled && logger.isDebugEnabled();
+        CallSampler.Countdown sample = recording || logging ? sampler.sample(metadata) : null;
+        if (sample == null)
         {
-            result = method.invoke(delegate, args);
+            return metadata.invoke(delegate, args);
         }
-        catch (InvocationTargetException e)
+        return time(metadata, sample, recording, logging, null, args);
+    }
+
+    @Override
+    public Object intercept (Invocation invocation) throws Throwable
+    {
+        boolean recording = recordingEnabled;
+        boolean logging = loggingEnabled && logger.isDebugEnabled();
+        CallSampler.Countdown sample = recording || logging ? sampler.sample(invocation.getMethodMetadata()) : null;
+        if (sample == null)
         {
-            throw e.getTargetException();
+            return invocation.proceed();
+        }
+        return time(invocation.getMethodMetadata(), sample, recording, logging, invocation, null);
+    }
+
+    /**
+     * Times a call which has been sampled.
+     * 
+     * @param invocation
+     *            The call when intercepting, null to call the delegate with the given arguments.
+     */
+    private Object time (MethodMetadata method, CallSampler.Countdown sample, boolean recording, boolean logging, Invocation invocation,
+            Object[] args) throws Throwable
+    {
+        long timeStart = System.nanoTime();
+        try
+        {
+            return invocation != null ? invocation.proceed() : method.invoke(delegate, args);
         }
         finally
         {
-            if (logger.isDebugEnabled())
+            long timeEnd = System.nanoTime();
+            long duration = timeEnd - timeStart;
+            int weight = sample.getWeight();
+            if (recording)
+            {
+                histogramOf(method).record(duration, weight);
+            }
+            if (logging)
             {
-                Date timeEnd = new Date();
-
                 StringBuffer buffer = new StringBuffer();
-                buffer.append(wrappedClass.getName());
-                buffer.append(".");
-                buffer.append(method.getName());
+                buffer.append(method.getQualifiedName());
                 buffer.append(" took ");
-                buffer.append((timeEnd.getTime() - timeStart.getTime()));
+                buffer.append(duration / 1000000);
                 buffer.append(" milliseconds to complete.");
+                if (weight > 1)
+                {
+                    buffer.append(" (sampled 1 in ");
+                    buffer.append(weight);
+                    buffer.append(" calls)");
+                }
 
                 logger.debug(buffer.toString());
             }
+            sampler.sampled(sample, duration, System.nanoTime() - timeEnd);
         }
-        return result;
     }
 
     @Override
@@ -65,4 +117,98 @@ public class TimingHandler extends FactoryInvocationHandler
     {
         return delegate;
     }
-}
\ No newline at end of file
+
+    /**
+     * @param enabled
+     *            True to record the duration of every timed call in the histograms.
+     */
+    public static void setRecordingEnabled (boolean enabled)
+    {
+        recordingEnabled = enabled;
+    }
+
+    /**
+     * @param enabled
+     *            True (the default) to log the duration of every timed call when the debug level is enabled.
+     */
+    public static void setLoggingEnabled (boolean enabled)
+    {
+        loggingEnabled = enabled;
+    }
+
+    /**
+     * @param samplingInterval
+     *            Time one in every this many calls on each thread, 1 (the default) to time every call.
+     */
+    public static void setSamplingInterval (int samplingInterval)
+    {
+        sampler.setInterval(samplingInterval);
+    }
+
+    /**
+     * Samples the calls adaptively: each thread times as many calls as it can while keeping the time spent timing them (recording and
+     * logging) below the given fraction of the time spent in the timed methods. Use {@link #setSamplingInterval(int)} to go back to a fixed
+     * interval.
+     * 
+     * @param budget
+     *            The fraction, for instance 0.01 for 1% (greater than 0 and at most 1).
+     */
+    public static void setOverheadBudget (double budget)
+    {
+        sampler.setOverheadBudget(budget);
+    }
+
+    /**
+     * @return The timings of every method recorded since the last reset.
+     */
+    public static List<MethodTiming> snapshot ()
+    {
+        return snapshot(false);
+    }
+
+    /**
+     * @return The timings of every method recorded since the last reset, the histograms are reset as they are read.
+     */
+    public static List<MethodTiming> snapshotAndReset ()
+    {
+        return snapshot(true);
+    }
+
+    /**
+     * Discards all recorded timings.
+     */
+    public static void reset ()
+    {
+        histograms.clear();
+    }
+
+    private static List<MethodTiming> snapshot (boolean reset)
+    {
+        List<MethodTiming> timings = new ArrayList<MethodTiming>();
+        for (Map.Entry<MethodMetadata, LatencyHistogram> entry : histograms.entrySet())
+        {
+            LatencyHistogram histogram = entry.getValue();
+            LatencyHistogram.Snapshot snapshot = reset ? histogram.snapshotAndReset() : histogram.snapshot();
+            if (snapshot.getCount() > 0)
+            {
+                timings.add(new MethodTiming(entry.getKey(), snapshot));
+            }
+        }
+        return timings;
+    }
+
+    private static LatencyHistogram histogramOf (MethodMetadata method)
+    {
+        LatencyHistogram histogram = histograms.get(method);
+        if (histogram == null)
+        {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent(method, histogram);
+            if (existing != null)
+            {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+}
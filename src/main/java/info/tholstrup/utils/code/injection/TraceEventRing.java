@@ -0,0 +1,421 @@
+package info.tholstrup.utils.code.injection;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+
+/**
+ * A fixed size ring of entry and exit events which is written to the log by a background thread. Publishing an event copies the method,
+ * a compact summary of its arguments and the outcome into the fields of a preallocated slot; the messages are built and logged later on
+ * the background thread. If the ring is full the event is dropped rather than blocking the caller.
+ * <p />
+ * Only values which cannot change and whose text is known are kept: boxed primitives by value, strings, the names of enum constants and
+ * the lengths of arrays. Any other argument is described by its class, so the ring never keeps a mutable argument or calls into one from
+ * the background thread, and an expensive or unsafe toString is never called. The background thread parks while the ring is empty and is
+ * woken by the next publisher.
+ */
+final class TraceEventRing
+{
+    static final int ENTRY = 0;
+    static final int EXIT = 1;
+    static final int EXIT_EXCEPTION = 2;
+
+    /**
+     * The most arguments summarized per call, further arguments are only counted.
+     */
+    static final int MAXIMUM_ARGUMENTS = 8;
+
+    private static final int MAXIMUM_STRING_LENGTH = 64;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final byte NULL = 0;
+    private static final byte INTEGER = 1;
+    private static final byte FLOAT = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte CHARACTER = 5;
+    private static final byte STRING = 6;
+    private static final byte ENUM = 7;
+    private static final byte ARRAY = 8;
+    private static final byte OBJECT = 9;
+
+    /**
+     * The slot each thread summarizes the arguments of a synchronously logged call in.
+     */
+    private static final ThreadLocal<Event> scratchEvents = new ThreadLocal<Event>()
+    {
+        @Override
+        protected Event initialValue ()
+        {
+            return new Event();
+        }
+    };
+
+    private final Event[] events;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder droppedEvents = new LongAdder();
+    /**
+     * The sequence of the next event to log, only written by the background thread.
+     */
+    private volatile long head;
+    private final Thread writer;
+    /**
+     * Set by the background thread before it parks on an empty ring, publishers unpark it when set.
+     */
+    private volatile boolean writerParked;
+
+    /**
+     * @param capacity
+     *            The number of slots, rounded up to a power of two.
+     */
+    TraceEventRing(int capacity)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        events = new Event[size];
+        for (int i = 0; i < size; i++)
+        {
+            events[i] = new Event();
+        }
+        mask = size - 1;
+
+        writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run ()
+            {
+                writeEvents();
+            }
+        }, "EntryAndExitHandler-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run ()
+            {
+                awaitEmpty(TimeUnit.SECONDS.toNanos(1));
+            }
+        }, "EntryAndExitHandler-log-flush"));
+    }
+
+    /**
+     * @param weight
+     *            The number of calls the event stands for when sampling.
+     * @param args
+     *            The arguments of an {@link #ENTRY} event, ignored for exit events.
+     * @param thrown
+     *            The exception of an {@link #EXIT_EXCEPTION} event.
+     * @return False if the ring was full and the event was dropped.
+     */
+    boolean publish (Logger logger, MethodMetadata method, int kind, int weight, Object[] args, Throwable thrown)
+    {
+        long sequence;
+        do
+        {
+            sequence = tail.get();
+            if (sequence - head >= events.length)
+            {
+                droppedEvents.increment();
+                return false;
+            }
+        }
+        while (!tail.compareAndSet(sequence, sequence + 1));
+
+        Event event = events[(int) sequence & mask];
+        event.logger = logger;
+        event.method = method;
+        event.kind = kind;
+        event.weight = weight;
+        event.thrown = thrown;
+        if (kind == ENTRY)
+        {
+            event.capture(args);
+        }
+        event.published = sequence + 1;
+        if (writerParked)
+        {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of events dropped because the ring was full.
+     */
+    long getDroppedEvents ()
+    {
+        return droppedEvents.sum();
+    }
+
+    private void writeEvents ()
+    {
+        while (true)
+        {
+            long sequence = head;
+            Event event = events[(int) sequence & mask];
+            if (event.published != sequence + 1)
+            {
+                writerParked = true;
+                // a publisher which missed the flag has published before the check below.
+                if (event.published != sequence + 1)
+                {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+                continue;
+            }
+            try
+            {
+                write(event);
+            }
+            catch (Throwable e)
+            {
+                // never let a misbehaving or appender stop the writer.
+            }
+            event.logger = null;
+            event.method = null;
+            event.thrown = null;
+            event.clearArguments();
+            head = sequence + 1;
+        }
+    }
+
+    private void awaitEmpty (long timeoutNanos)
+    {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (head < tail.get() && System.nanoTime() < deadline)
+        {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static void write (Event event)
+    {
+        switch (event.kind)
+        {
+            case ENTRY:
+                event.logger.debug(entryMessage(event));
+                break;
+            case EXIT:
+                event.logger.debug(event.method.getExitMessage() + " (returned normally).");
+                break;
+            default:
+                event.logger.debug(event.method.getExitMessage() + " (Exception returned).", event.thrown);
+                break;
+        }
+    }
+
+    /**
+     * @param weight
+     *            The number of calls the logged call stands for when sampling.
+     * @return The message logged when a method is entered, the arguments are summarized rather than printed in full.
+     */
+    static String entryMessage (MethodMetadata method, Object[] args, int weight)
+    {
+        Event event = scratchEvents.get();
+        event.method = method;
+        event.weight = weight;
+        event.capture(args);
+        try
+        {
+            return entryMessage(event);
+        }
+        finally
+        {
+            event.method = null;
+            event.clearArguments();
+        }
+    }
+
+    private static String entryMessage (Event event)
+    {
+        StringBuilder message = new StringBuilder(event.method.getEntryMessage());
+        if (event.argumentCount == 0)
+        {
+            message.append(" with no args");
+        }
+        else
+        {
+            message.append(" with the following args [");
+            int summarized = Math.min(event.argumentCount, MAXIMUM_ARGUMENTS);
+            for (int i = 0; i < summarized; i++)
+            {
+                if (i > 0)
+                {
+                    message.append(", ");
+                }
+                event.appendArgument(message, i);
+            }
+            if (event.argumentCount > summarized)
+            {
+                message.append(", ... ").append(event.argumentCount - summarized).append(" more");
+            }
+            message.append(']');
+        }
+        if (event.weight > 1)
+        {
+            message.append(" (sampled 1 in ").append(event.weight).append(" calls)");
+        }
+        return message.toString();
+    }
+
+    /**
+     * A slot of the ring. The arguments are kept as a kind and either a value or an immutable object per argument.
+     */
+    private static final class Event
+    {
+        Logger logger;
+        MethodMetadata method;
+        int kind;
+        int weight;
+        Throwable thrown;
+        int argumentCount;
+        final byte[] argumentKinds = new byte[MAXIMUM_ARGUMENTS];
+        final long[] argumentValues = new long[MAXIMUM_ARGUMENTS];
+        /**
+         * Strings, the names of enum constants and classes, never the arguments themselves unless they are strings.
+         */
+        final Object[] argumentObjects = new Object[MAXIMUM_ARGUMENTS];
+        volatile long published;
+
+        void capture (Object[] args)
+        {
+            argumentCount = args == null ? 0 : args.length;
+            int summarized = Math.min(argumentCount, MAXIMUM_ARGUMENTS);
+            for (int i = 0; i < summarized; i++)
+            {
+                capture(i, args[i]);
+            }
+        }
+
+        /**
+         * Only the exact JDK classes are trusted, a subclass could override toString or be changed after the call.
+         */
+        private void capture (int index, Object arg)
+        {
+            Class type = arg == null ? null : arg.getClass();
+            if (arg == null)
+            {
+                argumentKinds[index] = NULL;
+            }
+            else if (type == Integer.class || type == Long.class || type == Short.class || type == Byte.class)
+            {
+                argumentKinds[index] = INTEGER;
+                argumentValues[index] = ((Number) arg).longValue();
+            }
+            else if (type == Float.class)
+            {
+                argumentKinds[index] = FLOAT;
+                argumentValues[index] = Float.floatToRawIntBits(((Float) arg).floatValue());
+            }
+            else if (type == Double.class)
+            {
+                argumentKinds[index] = DOUBLE;
+                argumentValues[index] = Double.doubleToRawLongBits(((Double) arg).doubleValue());
+            }
+            else if (type == Boolean.class)
+            {
+                argumentKinds[index] = BOOLEAN;
+                argumentValues[index] = ((Boolean) arg).booleanValue() ? 1 : 0;
+            }
+            else if (type == Character.class)
+            {
+                argumentKinds[index] = CHARACTER;
+                argumentValues[index] = ((Character) arg).charValue();
+            }
+            else if (type == String.class)
+            {
+                argumentKinds[index] = STRING;
+                argumentObjects[index] = arg;
+            }
+            else if (type == StringBuilder.class || type == StringBuffer.class)
+            {
+                // these can change once the call returns, so the start of their current contents is copied.
+                CharSequence chars = (CharSequence) arg;
+                argumentKinds[index] = STRING;
+                argumentObjects[index] = chars.subSequence(0, Math.min(chars.length(), MAXIMUM_STRING_LENGTH + 1)).toString();
+            }
+            else if (arg instanceof Enum)
+            {
+                argumentKinds[index] = ENUM;
+                argumentObjects[index] = ((Enum) arg).name();
+            }
+            else if (type.isArray())
+            {
+                argumentKinds[index] = ARRAY;
+                argumentObjects[index] = type.getComponentType();
+                argumentValues[index] = Array.getLength(arg);
+            }
+            else
+            {
+                argumentKinds[index] = OBJECT;
+                argumentObjects[index] = type;
+            }
+        }
+
+        void appendArgument (StringBuilder message, int index)
+        {
+            switch (argumentKinds[index])
+            {
+                case NULL:
+                    message.append("null");
+                    break;
+                case INTEGER:
+                    message.append(argumentValues[index]);
+                    break;
+                case FLOAT:
+                    message.append(Float.intBitsToFloat((int) argumentValues[index]));
+                    break;
+                case DOUBLE:
+                    message.append(Double.longBitsToDouble(argumentValues[index]));
+                    break;
+                case BOOLEAN:
+                    message.append(argumentValues[index] != 0);
+                    break;
+                case CHARACTER:
+                    message.append((char) argumentValues[index]);
+                    break;
+                case STRING:
+                    String chars = (String) argumentObjects[index];
+                    message.append('"');
+                    if (chars.length() > MAXIMUM_STRING_LENGTH)
+                    {
+                        message.append(chars, 0, MAXIMUM_STRING_LENGTH).append("...");
+                    }
+                    else
+                    {
+                        message.append(chars);
+                    }
+                    message.append('"');
+                    break;
+                case ENUM:
+                    message.append(argumentObjects[index]);
+                    break;
+                case ARRAY:
+                    message.append(((Class) argumentObjects[index]).getSimpleName()).append('[').append(argumentValues[index]).append(']');
+                    break;
+                default:
+                    message.append(((Class) argumentObjects[index]).getName());
+                    break;
+            }
+        }
+
+        void clearArguments ()
+        {
+            for (int i = 0; i < argumentObjects.length; i++)
+            {
+                argumentObjects[i] = null;
+            }
+            argumentCount = 0;
+        }
+    }
+}
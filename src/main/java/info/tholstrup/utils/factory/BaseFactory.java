@@ -7,10 +7,14 @@ import java.lang.reflect.InvocationHandler;
  */
 public abstract class BaseFactory<T>
 {
-    private boolean createNewInstanceEachTime;
+    private InstanceLifecycle lifecycle;
     private Class<? extends T> instanceClass;
 
     protected boolean defaultCreateNewInstanceEachTime;
+    /**
+     * The lifecycle of the instances, if null the lifecycle follows defaultCreateNewInstanceEachTime.
+     */
+    protected InstanceLifecycle defaultLifecycle;
     protected Class<? extends T> defaultImplementationClass;
 
     /**
@@ -38,19 +42,42 @@ public abstract class BaseFactory<T>
         this.instanceClass = instanceClass;
     }
 
+    protected final InstanceLifecycle getLifecycle ()
+    {
+        if (lifecycle == null)
+        {
+            lifecycle = getDefaultLifecycle();
+        }
+        return lifecycle;
+    }
+
+    protected final void setLifecycle (InstanceLifecycle lifecycle)
+    {
+        this.lifecycle = lifecycle;
+    }
+
     protected final boolean isCreateNewInstanceEachTime ()
     {
-        return createNewInstanceEachTime;
+        return getLifecycle() == InstanceLifecycle.NEW_INSTANCE_EACH_TIME;
     }
 
     protected final void setCreateNewInstanceEachTime (boolean createNewInstanceEachTime)
     {
-        this.createNewInstanceEachTime = createNewInstanceEachTime;
+        lifecycle = createNewInstanceEachTime ? InstanceLifecycle.NEW_INSTANCE_EACH_TIME : InstanceLifecycle.CACHED;
     }
 
     protected void resetFactoryDefaults ()
     {
         instanceClass = defaultImplementationClass;
-        createNewInstanceEachTime = defaultCreateNewInstanceEachTime;
+        lifecycle = getDefaultLifecycle();
+    }
+
+    private InstanceLifecycle getDefaultLifecycle ()
+    {
+        if (defaultLifecycle != null)
+        {
+            return defaultLifecycle;
+        }
+        return defaultCreateNewInstanceEachTime ? InstanceLifecycle.NEW_INSTANCE_EACH_TIME : InstanceLifecycle.CACHED;
     }
 }
@@ -1,14 +1,39 @@
 package info.tholstrup.utils.factory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import info.tholstrup.utils.cache.ConcurrentInstanceCache;
+import info.tholstrup.utils.cache.EvictionListener;
+import info.tholstrup.utils.cache.ExpiringInstanceCache;
+import info.tholstrup.utils.cache.InstanceCache;
+import info.tholstrup.utils.cache.LruInstanceCache;
+import info.tholstrup.utils.cache.Refresher;
+import info.tholstrup.utils.cache.TinyLfuInstanceCache;
+import info.tholstrup.utils.cache.UnboundedInstanceCache;
+import info.tholstrup.utils.code.injection.EntryAndExitHandler;
+import info.tholstrup.utils.code.injection.InstantiationPlan;
+import info.tholstrup.utils.code.injection.InterceptionSwitch;
+import info.tholstrup.utils.code.injection.Interceptor;
 import info.tholstrup.utils.code.injection.ProxyAssistant;
+import info.tholstrup.utils.code.injection.TimingHandler;
+import info.tholstrup.utils.verification.Verifier;
 
 /**
  * 
@@ -17,9 +42,38 @@ import info.tholstrup.utils.code.injection.ProxyAssistant;
  * This factory provide some Spring-like functionality including caching, InvcationHandler injection (for Aspect Oriented Programming
  * purposes), and plays nice with the EasyMock mock testing framework.
  * <p />
- * If caching is enabled this class will by default key the cache by {@link MethodSignature} objects. If you wish to provide a different
- * caching key you may override the {@link BaseParameterizedFactory#getCacheKey(Class[], Object[])} method in this class. If you need to
- * override the key using other parameters you will need to create your own factory.
+ * If caching is enabled this class will by default key the cache by {@link InstanceKey} objects, which equate like {@link MethodSignature}
+ * objects but let the cache be probed without creating a key so that a cache hit allocates nothing. If you wish to provide a different
+ * caching key you may override the {@link BaseParameterizedFactory#getCacheKey(Class[], Object[])} method in this class, the factory then
+ * creates a key with it for every lookup. If you need to override the key using other parameters you will need to create your own
+ * factory.
+ * <p />
+ * The cache is bounded, by default it holds up to {@link #DEFAULT_MAXIMUM_CACHE_SIZE} instances and evicts using the W-TinyLFU policy. A
+ * factory may select a different {@link InstanceCache} (such as an {@link LruInstanceCache} or a cache bounded by weight) by assigning
+ * {@link #defaultInstanceCache} in its constructor. Factories on hot paths should use a {@link ConcurrentInstanceCache} so that cache hits
+ * never take a lock.
+ * <p />
+ * Cached instances which must be rebuilt periodically (because they hold on to configuration or connections) can be given an
+ * {@link ExpiringInstanceCache} wrapping the cache, which drops instances a fixed time after they were cached or last used. With refresh
+ * ahead the factory rebuilds instances which are about to expire in the background while callers keep getting the old instance, rather than
+ * everyone waiting on a rebuild once it has expired.
+ * <p />
+ * Each cached instance is constructed exactly once: if several threads miss the cache for the same key at the same time one of them
+ * constructs the instance while the others wait for it.
+ * <p />
+ * A factory whose lifecycle is {@link InstanceLifecycle#POOLED} hands every caller its own instance and takes it back through
+ * {@link #releaseInstance(Class[], Object[], Object)}, keeping up to {@link #maximumIdleInstances} idle instances per key for reuse. A
+ * factory whose lifecycle is {@link InstanceLifecycle#SCOPED} keeps one instance per key in the current {@link InstanceScope}.
+ * <p />
+ * Every factory registers itself with the {@link FactoryRegistry} on its first request, or when it is registered explicitly after it has
+ * been constructed (see {@link FactoryRegistry#register(BaseParameterizedFactory)}). Instances can be built ahead of the first request with
+ * {@link #warmUp(Collection)}, for all factories at once with {@link FactoryRegistry#warmUpAll()}, or for all factories in the order of
+ * their {@link #getFactoryDependencies()} with {@link FactoryBootstrapper#bootstrap()}. Many instances of the class can be created in one
+ * go with {@link #getInstances(Class[], Object[][])}, and an instance can be requested without blocking on its construction with
+ * {@link #getInstanceAsync(Class[], Object[])}.
+ * <p />
+ * Each factory counts its requests, cache hits and misses, evictions and constructions in its {@link FactoryMetrics}, which the
+ * {@link FactoryRegistry} can publish as MBeans.
  * <p />
  * Consumers should additionally take a look at the eclipse templates in the etc/eclipse_templates directory of this projects source
  * package.<br/>
@@ -38,20 +92,140 @@ public abstract class BaseParameterizedFactory<T> extends BaseFactory
      * Empty Object array for noArg constructors. Prevents unnecessary object creation.
      */
     public static final Object[] EMPTY_OBJECT_ARRAY = new Object[] {};
+    /**
+     * The maximum number of instances held by the default cache.
+     */
+    public static final int DEFAULT_MAXIMUM_CACHE_SIZE = 1000;
+    /**
+     * The default maximum number of idle instances kept per key when the factory is pooled.
+     */
+    public static final int DEFAULT_MAXIMUM_IDLE_INSTANCES = 64;
+    /**
+     * The default number of rows from which getInstances constructs the instances in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_BATCH_THRESHOLD = 1024;
 
     protected Class[] debugInvocationHandlers = EMPTY_CLASS_ARRAY;
     protected Class[] traceInvocationHandlers = EMPTY_CLASS_ARRAY;
+    /**
+     * True to run the invocation handlers as an interceptor chain within a single proxy rather than nesting a proxy per handler. The
+     * handlers must then implement {@link Interceptor} (as {@link TimingHandler} and {@link EntryAndExitHandler} do).
+     */
+    protected boolean interceptorChain;
+    /**
+     * True to hand out lazy proxies which only construct the instance (and its handlers) when their first method is called. Like the
+     * handler proxies, a lazy proxy can only be cast to the interfaces of the instance class unless proxy class generation is enabled.
+     * Requesting a lazy proxy which could be cast to neither fails with an IllegalArgumentException.
+     */
+    protected boolean lazy;
+    /**
+     * True to wrap each instance in a single proxy which reads its handlers from a switch shared by the factory, so that
+     * {@link #refreshInterception()} or {@link #setInterceptionHandlers(Class[])} change the handlers of instances which already exist
+     * (cached ones included). The handlers must implement {@link Interceptor}. Takes precedence over interceptorChain and lazy.
+     */
+    protected boolean switchableInterception;
     protected Logger log = LoggerFactory.getLogger(BaseParameterizedFactory.class);
 
     /**
-     * Weak hash map prevents the cache from growing without bound, may want to replace with a better cache but this will work for now. Some
-     * suggestion might be a SoftHashMap of which there are freely available implementations on the net and more sophisticated LRU and LFU
-     * caches which may have implementations available.
-     * <p />
-     * It should be noted that the current default key implementation (MethodSignature) is discarded as soon as the key is placed in the map
-     * so if frequent garbage collections occur we will lose all caching benefits in a WeakHashMap implementation.
+     * The cache used when caching is enabled. Subclasses may replace it in their constructor to change the eviction policy or bounds of the
+     * cache.
      */
-    private Map<MethodSignature, T> cache = Collections.synchronizedMap(new WeakHashMap());
+    protected InstanceCache<Object, T> defaultInstanceCache = new TinyLfuInstanceCache<Object, T>(DEFAULT_MAXIMUM_CACHE_SIZE);
+
+    /**
+     * The cache currently in use, this is the default cache unless overrideCachedInstance has been called.
+     */
+    private volatile InstanceCache<Object, T> cache;
+
+    /**
+     * Instances which are being constructed for the cache, keyed by cache key. Threads which miss the cache while a key is in here wait for
+     * the construction instead of starting their own.
+     */
+    private final ConcurrentHashMap<Object, CompletableFuture<T>> constructionsInFlight =
+            new ConcurrentHashMap<Object, CompletableFuture<T>>();
+
+    /**
+     * The maximum number of idle instances kept per key when the lifecycle is {@link InstanceLifecycle#POOLED}. Subclasses may change it in
+     * their constructor.
+     */
+    protected int maximumIdleInstances = DEFAULT_MAXIMUM_IDLE_INSTANCES;
+
+    /**
+     * The handlers of the instances created with switchableInterception, null until first needed.
+     */
+    private volatile InterceptionSwitch interceptionSwitch;
+
+    /**
+     * The number of rows from which getInstances constructs the instances in parallel, Integer.MAX_VALUE to never construct in parallel.
+     */
+    protected int parallelBatchThreshold = DEFAULT_PARALLEL_BATCH_THRESHOLD;
+
+    /**
+     * Runs the constructions of {@link #getInstanceAsync(Class[], Object[])} and the background refreshes of an
+     * {@link ExpiringInstanceCache}. Subclasses may replace it in their constructor, for instance with a virtual thread per task executor
+     * for constructors which block on I/O.
+     */
+    protected Executor constructionExecutor = ForkJoinPool.commonPool();
+
+    /**
+     * The pools of idle instances keyed by cache key, used when the lifecycle is {@link InstanceLifecycle#POOLED}.
+     */
+    private final ConcurrentHashMap<Object, InstancePool<T>> pools = new ConcurrentHashMap<Object, InstancePool<T>>();
+
+    /**
+     * The key each thread probes the cache with when getCacheKey has not been overridden.
+     */
+    private static final ThreadLocal<InstanceKey.ParameterArrayKey> probeKeys = new ThreadLocal<InstanceKey.ParameterArrayKey>()
+    {
+        @Override
+        protected InstanceKey.ParameterArrayKey initialValue ()
+        {
+            return new InstanceKey.ParameterArrayKey();
+        }
+    };
+
+    /**
+     * Null until worked out, true if a subclass overrides getCacheKey.
+     */
+    private Boolean cacheKeyOverridden;
+    /**
+     * Null until worked out, true if a subclass overrides constructInstance.
+     */
+    private Boolean constructInstanceOverridden;
+
+    private final FactoryMetrics metrics = new FactoryMetrics(getClass());
+    /**
+     * Set once the factory has registered itself with the {@link FactoryRegistry}, registering again is harmless so it need not be exact.
+     */
+    private volatile boolean registered;
+    private final EvictionListener<Object, T> evictionCounter = new EvictionListener<Object, T>()
+    {
+        public void onEviction (Object key, T value)
+        {
+            metrics.eviction();
+        }
+    };
+
+    /**
+     * Rebuilds the cached instances an {@link ExpiringInstanceCache} refreshes ahead of their expiry. Only instances keyed by
+     * {@link InstanceKey} can be rebuilt, with an overridden getCacheKey they simply expire.
+     */
+    private final Refresher<Object, T> instanceRefresher = new Refresher<Object, T>()
+    {
+        public T refresh (Object key, T oldValue)
+        {
+            if (!(key instanceof InstanceKey))
+            {
+                return null;
+            }
+            InstanceKey instanceKey = (InstanceKey) key;
+            return getNewInstance(instanceKey.getParameterTypes(), instanceKey.getParameters(), null);
+        }
+    };
+
+    protected BaseParameterizedFactory()
+    {
+    }
 
     /**
      * 
@@ -88,11 +262,390 @@ public abstract class BaseParameterizedFactory<T> extends BaseFactory
      */
     protected final T _getInstance (Class[] parameterTypes, Object[] parameters)
     {
-        if (isCreateNewInstanceEachTime())
+        return getInstance(getLifecycle(), parameterTypes, parameters, null);
+    }
+
+    /**
+     * Like {@link #_getInstance(Class[], Object[])} for the strongly typed getInstance methods of the factories generated by
+     * {@link Factory}. The parameters come in a key built for their arity, which a cached factory looks its instances up with (and stores
+     * them under), and new instances of the default implementation class are built by the given constructor rather than by
+     * constructInstance. Parameter arrays are only created where the key is not enough: for pooled and scoped instances, an overridden
+     * getCacheKey, a warm-up profile being recorded or an overridden instance class.
+     * 
+     * @param key
+     *            The parameter types and parameters.
+     * @param constructor
+     *            Calls the constructor taking these parameters.
+     * @return An instance of the implementing class.
+     */
+    protected final T _getKeyedInstance (InstanceKey key, InstanceConstructor<T> constructor)
+    {
+        InstanceLifecycle instanceLifecycle = getLifecycle();
+        if (instanceLifecycle == InstanceLifecycle.NEW_INSTANCE_EACH_TIME)
+        {
+            countRequest(key);
+            return getNewInstance(key, constructor);
+        }
+        if (instanceLifecycle == InstanceLifecycle.CACHED && !isCacheKeyOverridden())
+        {
+            countRequest(key);
+            return getStaticInstance(key, constructor);
+        }
+        return getInstance(instanceLifecycle, key.getParameterTypes(), key.getParameters(), null);
+    }
+
+    public List<T> getInstances (Class[] parameterTypes, Object[][] parameterRows)
+    {
+        return _getInstances(parameterTypes, parameterRows);
+    }
+
+    /**
+     * Gets an instance for each row of parameters, as if getInstance had been called once per row, but works out how to construct the
+     * instances only once for the whole batch. Rows which equal each other get the same instance if the factory caches its instances.
+     * Batches of at least {@link #parallelBatchThreshold} rows are split across the cores of the common ForkJoinPool, except when the
+     * lifecycle is {@link InstanceLifecycle#SCOPED} as scopes belong to the calling thread.
+     * 
+     * @param parameterTypes
+     *            The parameter types shared by every row.
+     * @param parameterRows
+     *            The parameters of each instance (cannot be null).
+     * @return The instances in the order of the rows.
+     */
+    protected final List<T> _getInstances (final Class[] parameterTypes, final Object[][] parameterRows)
+    {
+        Verifier.verifyNotNull(parameterRows);
+        final InstanceLifecycle instanceLifecycle = getLifecycle();
+        final InstantiationPlan plan = isConstructedDirectly() ? null : ProxyAssistant.getInstantiationPlan(getInstanceClass(),
+                parameterTypes, switchableInterception ? EMPTY_CLASS_ARRAY : getInvocationHandlers(),
+                interceptorChain && !switchableInterception);
+        final ConcurrentHashMap<Object, T> instancesInBatch =
+                instanceLifecycle == InstanceLifecycle.CACHED ? new ConcurrentHashMap<Object, T>() : null;
+        final Object[] instances = new Object[parameterRows.length];
+        IntFunction<Object> instanceForRow = new IntFunction<Object>()
+        {
+            public Object apply (int row)
+            {
+                Object[] parameters = parameterRows[row];
+                if (instancesInBatch == null)
+                {
+                    return getInstance(instanceLifecycle, parameterTypes, parameters, plan);
+                }
+                // the cache may evict instances during a large batch, remembering them keeps equal rows on the same instance.
+                Object cacheKey = createCacheKey(parameterTypes, parameters);
+                T instance = instancesInBatch.get(cacheKey);
+                if (instance == null)
+                {
+                    instance = getInstance(instanceLifecycle, parameterTypes, parameters, plan);
+                    T existing = instancesInBatch.putIfAbsent(cacheKey, instance);
+                    if (existing != null)
+                    {
+                        instance = existing;
+                    }
+                }
+                return instance;
+            }
+        };
+        if (parameterRows.length >= parallelBatchThreshold && instanceLifecycle != InstanceLifecycle.SCOPED)
+        {
+            Arrays.parallelSetAll(instances, instanceForRow);
+        }
+        else
+        {
+            Arrays.setAll(instances, instanceForRow);
+        }
+        return (List<T>) Arrays.asList(instances);
+    }
+
+    /**
+     * @param plan
+     *            The plan to construct new instances with, null to look it up.
+     */
+    private T getInstance (InstanceLifecycle instanceLifecycle, Class[] parameterTypes, Object[] parameters, InstantiationPlan plan)
+    {
+        countRequest(parameterTypes, parameters);
+        switch (instanceLifecycle)
         {
-            return getNewInstance(parameterTypes, parameters);
+            case NEW_INSTANCE_EACH_TIME:
+                return getNewInstance(parameterTypes, parameters, plan);
+            case POOLED:
+                return borrowInstance(parameterTypes, parameters, plan);
+            case SCOPED:
+                return getScopedInstance(parameterTypes, parameters, plan);
+            default:
+                return getStaticInstance(parameterTypes, parameters, plan);
+        }
+    }
+
+    /**
+     * Gets an instance without blocking on its construction, which runs on the {@link #constructionExecutor}. Meant for implementation
+     * classes whose constructors do I/O, the caller can carry on with other work while the instance is built.
+     * <p />
+     * When the factory caches, a cached instance is returned as a completed future and concurrent requests for a key which is being
+     * constructed share the one construction (also with synchronous requests). A scoped factory constructs on the calling thread, as the
+     * scope belongs to that thread, and returns a completed future.
+     * 
+     * @param parameterTypes
+     *            The constructor parameter types, null for the no argument constructor. The array is copied.
+     * @param parameters
+     *            The constructor parameters, null for the no argument constructor. The array is copied.
+     * @return A future completed with the instance, or with the exception its construction threw.
+     */
+    public CompletableFuture<T> getInstanceAsync (Class[] parameterTypes, Object[] parameters)
+    {
+        final InstanceLifecycle instanceLifecycle = getLifecycle();
+        if (instanceLifecycle == InstanceLifecycle.SCOPED)
+        {
+            try
+            {
+                return CompletableFuture.completedFuture(getInstance(instanceLifecycle, parameterTypes, parameters, null));
+            }
+            catch (RuntimeException e)
+            {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        final Class[] parameterTypesCopy = parameterTypes == null ? null : parameterTypes.clone();
+        final Object[] parametersCopy = parameters == null ? null : parameters.clone();
+        if (instanceLifecycle == InstanceLifecycle.CACHED)
+        {
+            countRequest(parameterTypesCopy, parametersCopy);
+            return getStaticInstanceAsync(parameterTypesCopy, parametersCopy);
+        }
+        return CompletableFuture.supplyAsync(new Supplier<T>()
+        {
+            public T get ()
+            {
+                return getInstance(instanceLifecycle, parameterTypesCopy, parametersCopy, null);
+            }
+        }, constructionExecutor);
+    }
+
+    public T borrowInstance ()
+    {
+        return borrowInstance(null, null);
+    }
+
+    /**
+     * Takes an idle instance for the given parameters from the pool, or creates a new one if there is none. The caller has sole use of the
+     * instance until it hands it back with {@link #releaseInstance(Class[], Object[], Object)}; an instance which is never released is
+     * simply left to the garbage collector.
+     * 
+     * @param parameterTypes
+     * @param parameters
+     * @return An instance of the implementing class.
+     * @throws IllegalArgumentException
+     *             if the lifecycle of the factory is not {@link InstanceLifecycle#POOLED}.
+     */
+    public T borrowInstance (Class[] parameterTypes, Object[] parameters)
+    {
+        Verifier.verifyTrue(getLifecycle() == InstanceLifecycle.POOLED, "Instances of " + getInstanceClass()
+                + " cannot be borrowed as the factory does not pool them");
+        return getInstance(InstanceLifecycle.POOLED, parameterTypes, parameters, null);
+    }
+
+    private T borrowInstance (Class[] parameterTypes, Object[] parameters, InstantiationPlan plan)
+    {
+        InstancePool<T> pool = getPool(parameterTypes, parameters, true);
+        for (T instance = pool.poll(); instance != null; instance = pool.poll())
+        {
+            if (validatePooledInstance(instance))
+            {
+                metrics.hit();
+                pool.lend(instance);
+                return instance;
+            }
+            log.debug("Discarding pooled instance of {} which failed validation", getInstanceClass());
+        }
+        metrics.miss();
+        T instance = getNewInstance(parameterTypes, parameters, plan);
+        pool.lend(instance);
+        return instance;
+    }
+
+    public void releaseInstance (T instance)
+    {
+        releaseInstance(null, null, instance);
+    }
+
+    /**
+     * Hands an instance obtained from {@link #borrowInstance(Class[], Object[])} back to the pool so that it can be borrowed again. If the
+     * pool already holds {@link #maximumIdleInstances} idle instances the instance is discarded.
+     * 
+     * @param parameterTypes
+     *            The parameter types the instance was borrowed with.
+     * @param parameters
+     *            The parameters the instance was borrowed with.
+     * @param instance
+     *            The instance (cannot be null).
+     * @throws IllegalArgumentException
+     *             if the factory does not pool its instances, or the instance is not currently borrowed with these parameters (it was
+     *             borrowed with other parameters, has already been released or was never borrowed).
+     */
+    public void releaseInstance (Class[] parameterTypes, Object[] parameters, T instance)
+    {
+        Verifier.verifyNotNull(instance);
+        Verifier.verifyTrue(getLifecycle() == InstanceLifecycle.POOLED, "Instances of " + getInstanceClass()
+                + " cannot be released as the factory does not pool them");
+        InstancePool<T> pool = getPool(parameterTypes, parameters, false);
+        Verifier.verifyTrue(pool != null && pool.takeBack(instance), "The instance of " + getInstanceClass()
+                + " is not borrowed with these parameters, it was borrowed with others or has already been released");
+        pool.offer(instance);
+    }
+
+    /**
+     * @param create
+     *            True to create the pool if there is none yet.
+     * @return The pool for the parameters, null if there is none and create is false.
+     */
+    private InstancePool<T> getPool (Class[] parameterTypes, Object[] parameters, boolean create)
+    {
+        Object probeKey = probeKey(parameterTypes, parameters);
+        InstancePool<T> pool;
+        try
+        {
+            pool = pools.get(probeKey);
+        }
+        finally
+        {
+            releaseProbeKey(probeKey);
+        }
+        if (pool == null && create)
+        {
+            InstancePool<T> newPool = new InstancePool<T>(maximumIdleInstances);
+            pool = pools.putIfAbsent(createCacheKey(parameterTypes, parameters), newPool);
+            if (pool == null)
+            {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Called on every instance taken from the pool before it is handed out. Instances for which this returns false are discarded and the
+     * next idle instance (or a new instance) is used instead.
+     * 
+     * @param instance
+     * @return True if the instance may be handed out again. This implementation always returns true.
+     */
+    protected boolean validatePooledInstance (T instance)
+    {
+        return true;
+    }
+
+    /**
+     * Constructs an instance of the default implementation class without reflection. Factories generated from a {@link Factory} annotation
+     * override this to call the constructors directly; the factory still wraps the instance in its invocation handlers. It is not used for
+     * lazy factories or once the instance class has been overridden.
+     * 
+     * @param parameterTypes
+     * @param parameters
+     * @return The new instance or null to have the factory construct the instance reflectively. This implementation returns null.
+     */
+    protected T constructInstance (Class[] parameterTypes, Object[] parameters)
+    {
+        return null;
+    }
+
+    /**
+     * The keys built by {@link FactoryRegistry#warmUpAll()}. Factories whose first requests must not pay for construction should return
+     * the parameter types and parameters of the instances they expect to hand out.
+     * 
+     * @return The keys to warm up (cannot be null). This implementation returns an empty list.
+     */
+    protected Collection<MethodSignature> getWarmUpSignatures ()
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * The factories whose instances the instances of this factory depend on. {@link FactoryBootstrapper} warms those factories up before
+     * this one, factories which do not depend on each other are warmed up in parallel.
+     * 
+     * @return The classes of the factories depended on (cannot be null). This implementation returns an empty list.
+     */
+    protected Collection<Class<? extends BaseParameterizedFactory>> getFactoryDependencies ()
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Builds the instances for the given keys in parallel on the common ForkJoinPool.
+     * 
+     * @see #warmUp(Collection, Executor)
+     */
+    public WarmUpReport warmUp (Collection<MethodSignature> signatures)
+    {
+        return warmUp(signatures, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds the instances for the given keys in parallel, as if getInstance had been called with each of them, so that the first real
+     * requests find them in the cache. A pooled factory puts the instances in its pool, other lifecycles only resolve how the instances are
+     * constructed.
+     * 
+     * @param signatures
+     *            The parameter types and parameters to build instances for.
+     * @param executor
+     *            Runs the constructions.
+     * @return The construction time and failure (if any) of every key.
+     */
+    public WarmUpReport warmUp (Collection<MethodSignature> signatures, Executor executor)
+    {
+        long start = System.nanoTime();
+        return WarmUpReport.await(startWarmUp(signatures, executor), start);
+    }
+
+    final List<CompletableFuture<WarmUpReport.Result>> startWarmUp (Collection<MethodSignature> signatures, Executor executor)
+    {
+        List<CompletableFuture<WarmUpReport.Result>> warmUps = new ArrayList<CompletableFuture<WarmUpReport.Result>>(signatures.size());
+        for (final MethodSignature signature : signatures)
+        {
+            warmUps.add(CompletableFuture.supplyAsync(new Supplier<WarmUpReport.Result>()
+            {
+                public WarmUpReport.Result get ()
+                {
+                    return warmUp(signature);
+                }
+            }, executor));
+        }
+        return warmUps;
+    }
+
+    private WarmUpReport.Result warmUp (MethodSignature signature)
+    {
+        Class[] parameterTypes = signature.getParameterTypes();
+        Object[] parameters = signature.getParameters();
+        long start = System.nanoTime();
+        try
+        {
+            InstanceLifecycle instanceLifecycle = getLifecycle();
+            if (instanceLifecycle == InstanceLifecycle.SCOPED)
+            {
+                // requests would never see an instance kept in the warm-up thread's scope, building one still resolves the plan.
+                getNewInstance(parameterTypes, parameters, null);
+            }
+            else
+            {
+                T instance = _getInstance(parameterTypes, parameters);
+                if (instanceLifecycle == InstanceLifecycle.POOLED)
+                {
+                    releaseInstance(parameterTypes, parameters, instance);
+                }
+            }
+            return new WarmUpReport.Result(getClass(), signature, System.nanoTime() - start, null);
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("Failed to warm up " + getInstanceClass(), e);
+            return new WarmUpReport.Result(getClass(), signature, System.nanoTime() - start, e);
+        }
+        catch (LinkageError e)
+        {
+            log.warn("Failed to warm up " + getInstanceClass(), e);
+            return new WarmUpReport.Result(getClass(), signature, System.nanoTime() - start, e);
         }
-        return getStaticInstance(parameterTypes, parameters);
     }
 
     /**
@@ -112,11 +665,13 @@ public abstract class BaseParameterizedFactory<T> extends BaseFactory
      */
     public void overrideCachedInstance (Class[] parameterTypes, Object[] parameters, T instance)
     {
-        // make the cache a normal hashMap so that it does not get garbage collected.
-        cache = new HashMap();
+        // switch to an unbounded cache so that the overriding instances are never evicted.
+        if (!(cache instanceof UnboundedInstanceCache))
+        {
+            useCache(new UnboundedInstanceCache<Object, T>());
+        }
         setCreateNewInstanceEachTime(false);
-        MethodSignature cacheKey = getCacheKey(parameterTypes, parameters);
-        cache.put(cacheKey, instance);
+        cache.put(createCacheKey(parameterTypes, parameters), instance);
     }
 
     /**
@@ -127,28 +682,544 @@ public abstract class BaseParameterizedFactory<T> extends BaseFactory
     public void resetFactoryDefaults ()
     {
         super.resetFactoryDefaults();
-        // reset the cache to a weakHashMap because if overrideCachedInstance was called it was replaced with a hashMap.
-        cache.clear();
+        // go back to the default cache because if overrideCachedInstance was called it was replaced with an unbounded cache.
+        defaultInstanceCache.clear();
+        useCache(defaultInstanceCache);
+        // keep the pools themselves so that the instances which are borrowed can still be released.
+        for (InstancePool<T> pool : pools.values())
+        {
+            pool.clear();
+        }
     }
 
-    private final T getNewInstance (Class[] parameterTypes, Object[] parameters)
+    /**
+     * Sets the handlers of the instances created with switchableInterception to those {@link #getInvocationHandlers()} now returns, for
+     * instance after the log level has been changed. Existing instances pick up the change on their next call.
+     */
+    public void refreshInterception ()
+    {
+        getInterceptionSwitch().setHandlers(getInvocationHandlers());
+    }
+
+    /**
+     * Sets the handlers of the instances created with switchableInterception, overriding those chosen by the log level until the next
+     * {@link #refreshInterception()}. Existing instances pick up the change on their next call.
+     * 
+     * @param handlers
+     *            {@link Interceptor}s which have a constructor that takes a single object (cannot be null, empty to call straight through).
+     */
+    public void setInterceptionHandlers (Class[] handlers)
+    {
+        getInterceptionSwitch().setHandlers(handlers);
+    }
+
+    private InterceptionSwitch getInterceptionSwitch ()
+    {
+        InterceptionSwitch current = interceptionSwitch;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = interceptionSwitch;
+                if (current == null)
+                {
+                    current = new InterceptionSwitch(getInvocationHandlers());
+                    interceptionSwitch = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return The cache currently in use.
+     */
+    protected final InstanceCache<Object, T> getInstanceCache ()
+    {
+        InstanceCache<Object, T> instanceCache = cache;
+        if (instanceCache == null)
+        {
+            instanceCache = defaultInstanceCache;
+            useCache(instanceCache);
+        }
+        return instanceCache;
+    }
+
+    /**
+     * @return The counters of this factory.
+     */
+    public FactoryMetrics getMetrics ()
+    {
+        return metrics;
+    }
+
+    private void useCache (InstanceCache<Object, T> instanceCache)
+    {
+        instanceCache.setEvictionListener(evictionCounter);
+        if (instanceCache instanceof ExpiringInstanceCache && ((ExpiringInstanceCache) instanceCache).isRefreshAhead())
+        {
+            ((ExpiringInstanceCache<Object, T>) instanceCache).setRefresher(instanceRefresher, constructionExecutor);
+        }
+        cache = instanceCache;
+    }
+
+    private final T getNewInstance (Class[] parameterTypes, Object[] parameters, InstantiationPlan plan)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            T instance = createInstance(parameterTypes, parameters, plan);
+            metrics.construction(System.nanoTime() - start);
+            return instance;
+        }
+        catch (RuntimeException e)
+        {
+            metrics.failure();
+            throw e;
+        }
+        catch (Error e)
+        {
+            metrics.failure();
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #getNewInstance(Class[], Object[], InstantiationPlan)} but the instance is built by the given constructor if it can be
+     * constructed directly.
+     */
+    private final T getNewInstance (InstanceKey key, InstanceConstructor<T> constructor)
+    {
+        if (!isConstructedDirectly())
+        {
+            return getNewInstance(key.getParameterTypes(), key.getParameters(), null);
+        }
+        long start = System.nanoTime();
+        try
+        {
+            T instance = wrapConstructedInstance(constructor.construct(key));
+            metrics.construction(System.nanoTime() - start);
+            return instance;
+        }
+        catch (RuntimeException e)
+        {
+            metrics.failure();
+            throw e;
+        }
+        catch (Error e)
+        {
+            metrics.failure();
+            throw e;
+        }
+    }
+
+    private final T createInstance (Class[] parameterTypes, Object[] parameters, InstantiationPlan plan)
     {
+        if (isConstructedDirectly())
+        {
+            T instance = constructInstance(parameterTypes, parameters);
+            if (instance != null)
+            {
+                return wrapConstructedInstance(instance);
+            }
+        }
+        if (switchableInterception)
+        {
+            if (plan != null)
+            {
+                return (T) plan.newSwitchableInstance(parameters, getInterceptionSwitch());
+            }
+            return (T) ProxyAssistant.createSwitchableInstance(getInstanceClass(), parameterTypes, parameters, getInterceptionSwitch());
+        }
+        if (plan != null)
+        {
+            return (T) (lazy ? plan.newLazyInstance(parameters) : plan.newInstance(parameters));
+        }
+        if (lazy)
+        {
+            return (T) ProxyAssistant.createLazyInstance(getInstanceClass(), parameterTypes, parameters, getInvocationHandlers(),
+                    interceptorChain);
+        }
+        if (interceptorChain)
+        {
+            return (T) ProxyAssistant.createInterceptedInstance(getInstanceClass(), parameterTypes, parameters, getInvocationHandlers());
+        }
         return (T) ProxyAssistant.createProxiedInstance(getInstanceClass(), parameterTypes, parameters, getInvocationHandlers());
     }
 
-    private final T getStaticInstance (Class[] parameterTypes, Object[] parameters)
+    private final T wrapConstructedInstance (T instance)
+    {
+        if (switchableInterception)
+        {
+            return (T) ProxyAssistant.getWrappingPlan(getInstanceClass(), EMPTY_CLASS_ARRAY, false).wrapSwitchable(instance,
+                    getInterceptionSwitch());
+        }
+        Class[] handlers = getInvocationHandlers();
+        if (handlers.length == 0)
+        {
+            return instance;
+        }
+        return (T) ProxyAssistant.getWrappingPlan(getInstanceClass(), handlers, interceptorChain).wrap(instance);
+    }
+
+    private final T getStaticInstance (Class[] parameterTypes, Object[] parameters, InstantiationPlan plan)
+    {
+        InstanceCache<Object, T> instanceCache = getInstanceCache();
+        Object probeKey = probeKey(parameterTypes, parameters);
+        T cacheHit;
+        try
+        {
+            cacheHit = instanceCache.get(probeKey);
+        }
+        finally
+        {
+            releaseProbeKey(probeKey);
+        }
+        if (cacheHit != null)
+        {
+            metrics.hit();
+            return cacheHit;
+        }
+        metrics.miss();
+
+        Object cacheKey = createCacheKey(parameterTypes, parameters);
+        CompletableFuture<T> construction = new CompletableFuture<T>();
+        CompletableFuture<T> constructionInFlight = constructionsInFlight.putIfAbsent(cacheKey, construction);
+        if (constructionInFlight != null)
+        {
+            return awaitConstruction(constructionInFlight);
+        }
+        return constructCachedInstance(instanceCache, cacheKey, construction, parameterTypes, parameters, plan, null);
+    }
+
+    /**
+     * Like {@link #getStaticInstance(Class[], Object[], InstantiationPlan)}, the key is both the probe and the key a new instance is cached
+     * under.
+     */
+    private final T getStaticInstance (InstanceKey key, InstanceConstructor<T> constructor)
     {
-        MethodSignature cacheKey = getCacheKey(parameterTypes, parameters);
+        InstanceCache<Object, T> instanceCache = getInstanceCache();
+        T cacheHit = instanceCache.get(key);
+        if (cacheHit != null)
+        {
+            metrics.hit();
+            return cacheHit;
+        }
+        metrics.miss();
+
+        CompletableFuture<T> construction = new CompletableFuture<T>();
+        CompletableFuture<T> constructionInFlight = constructionsInFlight.putIfAbsent(key, construction);
+        if (constructionInFlight != null)
+        {
+            return awaitConstruction(constructionInFlight);
+        }
+        return constructCachedInstance(instanceCache, key, construction, null, null, null, constructor);
+    }
 
-        Object cacheHit = cache.get(cacheKey);
+    /**
+     * Like {@link #getStaticInstance(Class[], Object[], InstantiationPlan)} but a miss is constructed on the construction executor. Callers
+     * which miss while the key is being constructed share the construction, whether they asked for the instance synchronously or not.
+     * 
+     * @param parameterTypes
+     *            Copied by the caller, they are used after the call has returned.
+     * @param parameters
+     *            Copied by the caller.
+     */
+    private CompletableFuture<T> getStaticInstanceAsync (final Class[] parameterTypes, final Object[] parameters)
+    {
+        final InstanceCache<Object, T> instanceCache = getInstanceCache();
+        Object probeKey = probeKey(parameterTypes, parameters);
+        T cacheHit;
+        try
+        {
+            cacheHit = instanceCache.get(probeKey);
+        }
+        finally
+        {
+            releaseProbeKey(probeKey);
+        }
         if (cacheHit != null)
         {
-            return (T) cacheHit;
+            metrics.hit();
+            return CompletableFuture.completedFuture(cacheHit);
         }
+        metrics.miss();
 
-        T newInstance = getNewInstance(parameterTypes, parameters);
-        cache.put(cacheKey, newInstance);
-        return newInstance;
+        final Object cacheKey = createCacheKey(parameterTypes, parameters);
+        final CompletableFuture<T> construction = new CompletableFuture<T>();
+        CompletableFuture<T> constructionInFlight = constructionsInFlight.putIfAbsent(cacheKey, construction);
+        if (constructionInFlight != null)
+        {
+            // a copy, so the caller cannot complete the future the other callers are waiting on.
+            return constructionInFlight.copy();
+        }
+        try
+        {
+            constructionExecutor.execute(new Runnable()
+            {
+                public void run ()
+                {
+                    try
+                    {
+                        constructCachedInstance(instanceCache, cacheKey, construction, parameterTypes, parameters, null, null);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // the construction has been completed with the exception.
+                    }
+                    catch (Error e)
+                    {
+                        // as above.
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            construction.completeExceptionally(e);
+            constructionsInFlight.remove(cacheKey, construction);
+        }
+        return construction.copy();
+    }
+
+    /**
+     * Constructs and caches the instance for a key this thread has claimed in constructionsInFlight, releases the key and completes the
+     * construction. The key is released first, so a request made once the construction has failed tries again rather than getting the
+     * failure.
+     * 
+     * @param constructor
+     *            Builds the instance from the cache key (an InstanceKey), null to build it from the parameter types and parameters.
+     */
+    private T constructCachedInstance (InstanceCache<Object, T> instanceCache, Object cacheKey, CompletableFuture<T> construction,
+            Class[] parameterTypes, Object[] parameters, InstantiationPlan plan, InstanceConstructor<T> constructor)
+    {
+        T instance;
+        try
+        {
+            // another thread may have finished constructing the instance between our cache miss and claiming the key.
+            instance = instanceCache.get(cacheKey);
+            if (instance == null)
+            {
+                instance = constructor == null ? getNewInstance(parameterTypes, parameters, plan)
+                        : getNewInstance((InstanceKey) cacheKey, constructor);
+                instanceCache.put(cacheKey, instance);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            constructionsInFlight.remove(cacheKey, construction);
+            construction.completeExceptionally(e);
+            throw e;
+        }
+        catch (Error e)
+        {
+            constructionsInFlight.remove(cacheKey, construction);
+            construction.completeExceptionally(e);
+            throw e;
+        }
+        constructionsInFlight.remove(cacheKey, construction);
+        construction.complete(instance);
+        return instance;
+    }
+
+    private final T getScopedInstance (Class[] parameterTypes, Object[] parameters, InstantiationPlan plan)
+    {
+        InstanceScope scope = InstanceScope.current();
+        Map<Object, Object> instances = scope.getInstances(this);
+        Object probeKey = probeKey(parameterTypes, parameters);
+        T instance;
+        try
+        {
+            instance = (T) instances.get(probeKey);
+        }
+        finally
+        {
+            releaseProbeKey(probeKey);
+        }
+        if (instance == null)
+        {
+            metrics.miss();
+            instance = getNewInstance(parameterTypes, parameters, plan);
+            instances.put(createCacheKey(parameterTypes, parameters), instance);
+        }
+        else
+        {
+            metrics.hit();
+        }
+        return instance;
+    }
+
+    private void countRequest (Class[] parameterTypes, Object[] parameters)
+    {
+        WarmUpProfile.Recording recording = countRequest();
+        if (recording != null)
+        {
+            recordRequest(recording, parameterTypes, parameters);
+        }
+    }
+
+    private void countRequest (InstanceKey key)
+    {
+        WarmUpProfile.Recording recording = countRequest();
+        if (recording != null)
+        {
+            recordRequest(recording, key.getParameterTypes(), key.getParameters());
+        }
+    }
+
+    /**
+     * @return The warm-up profile being recorded, if any, which the request should be counted in.
+     */
+    private WarmUpProfile.Recording countRequest ()
+    {
+        if (!registered)
+        {
+            // registering here rather than in the constructor means the registry never sees a factory which is still being constructed.
+            registered = true;
+            FactoryRegistry.register(this);
+        }
+        metrics.request();
+        return WarmUpProfile.getRecording();
+    }
+
+    /**
+     * Counts a request in the warm-up profile. The profile always keys on the parameters, whatever {@link #getCacheKey(Class[], Object[])}
+     * returns, as it has to be able to replay them. Parameters which cannot be replayed are counted under placeholders rather than kept.
+     */
+    private void recordRequest (WarmUpProfile.Recording recording, Class[] parameterTypes, Object[] requestParameters)
+    {
+        Object[] parameters = WarmUpProfile.recordedParameters(requestParameters);
+        ConcurrentHashMap<InstanceKey, LongAdder> counts = recording.countsOf(getClass());
+        InstanceKey.ParameterArrayKey probeKey = probeKeys.get();
+        probeKey.set(parameterTypes, parameters, InstanceKey.arityOf(parameterTypes, parameters));
+        LongAdder count;
+        try
+        {
+            count = counts.get(probeKey);
+        }
+        finally
+        {
+            releaseProbeKey(probeKey);
+        }
+        if (count == null)
+        {
+            if (counts.size() >= WarmUpProfile.MAXIMUM_KEYS_PER_FACTORY)
+            {
+                return;
+            }
+            count = new LongAdder();
+            LongAdder existing = counts.putIfAbsent(InstanceKey.of(parameterTypes, parameters), count);
+            if (existing != null)
+            {
+                count = existing;
+            }
+        }
+        count.increment();
+    }
+
+    /**
+     * @return A key to look up the given parameters with, which must not be retained and must be passed to releaseProbeKey afterwards.
+     */
+    private Object probeKey (Class[] parameterTypes, Object[] parameters)
+    {
+        if (isCacheKeyOverridden())
+        {
+            return getCacheKey(parameterTypes, parameters);
+        }
+        InstanceKey.ParameterArrayKey probeKey = probeKeys.get();
+        probeKey.set(parameterTypes, parameters, InstanceKey.arityOf(parameterTypes, parameters));
+        return probeKey;
+    }
+
+    private static void releaseProbeKey (Object probeKey)
+    {
+        if (probeKey instanceof InstanceKey.ParameterArrayKey)
+        {
+            // do not keep the parameters reachable from the thread.
+            ((InstanceKey.ParameterArrayKey) probeKey).set(null, null, 0);
+        }
+    }
+
+    /**
+     * @return The key under which an instance for the given parameters is stored.
+     */
+    private Object createCacheKey (Class[] parameterTypes, Object[] parameters)
+    {
+        if (isCacheKeyOverridden())
+        {
+            return getCacheKey(parameterTypes, parameters);
+        }
+        return InstanceKey.of(parameterTypes, parameters);
+    }
+
+    private boolean isCacheKeyOverridden ()
+    {
+        Boolean overridden = cacheKeyOverridden;
+        if (overridden == null)
+        {
+            overridden = Boolean.valueOf(isOverridden("getCacheKey"));
+            cacheKeyOverridden = overridden;
+        }
+        return overridden.booleanValue();
+    }
+
+    /**
+     * @return True if instances of the instance class are constructed by constructInstance rather than by a reflective plan.
+     */
+    private boolean isConstructedDirectly ()
+    {
+        Boolean overridden = constructInstanceOverridden;
+        if (overridden == null)
+        {
+            overridden = Boolean.valueOf(isOverridden("constructInstance"));
+            constructInstanceOverridden = overridden;
+        }
+        // constructInstance only knows the default class, an overriding class (such as a mock) is constructed reflectively.
+        return overridden.booleanValue() && !lazy && getInstanceClass() == defaultImplementationClass;
+    }
+
+    /**
+     * @return True if a subclass declares the given method taking parameter types and parameters.
+     */
+    private boolean isOverridden (String methodName)
+    {
+        for (Class type = getClass(); type != BaseParameterizedFactory.class; type = type.getSuperclass())
+        {
+            try
+            {
+                type.getDeclaredMethod(methodName, new Class[] { Class[].class, Object[].class });
+                return true;
+            }
+            catch (NoSuchMethodException e)
+            {
+                // keep looking in the superclass.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits for an instance being constructed by another thread, rethrowing the exception that construction failed with (if any).
+     */
+    private static <T> T awaitConstruction (CompletableFuture<T> construction)
+    {
+        try
+        {
+            return construction.join();
+        }
+        catch (CompletionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw e;
+        }
     }
 
     /**
@@ -0,0 +1,48 @@
+package info.tholstrup.utils.factory;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a factory for the annotated class at compile time, taking the place of the eclipse factory templates. For a class Apple the
+ * generated class is AppleFactory in the same package: a {@link BaseParameterizedFactory} with a getFactoryInstance() method and a strongly
+ * typed getInstance method per non private constructor which calls the constructor directly rather than through reflection.
+ * <p />
+ * For example:
+ * 
+ * <pre>
+ * &#064;Factory(cached = true, debug = TimingHandler.class)
+ * public class Apple
+ * </pre>
+ * 
+ * The annotated class must be a top level or static nested class which is not abstract. The generator is the
+ * info.tholstrup.utils.factory.processor.FactoryProcessor annotation processor, which javac finds on the class path.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Factory
+{
+    /**
+     * @return True to cache the instances, false (the default) to create a new instance each time.
+     */
+    boolean cached() default false;
+
+    /**
+     * @return The invocation handlers applied when the debug level is enabled for the annotated class.
+     */
+    Class[] debug() default {};
+
+    /**
+     * @return The invocation handlers applied when the trace level is enabled for the annotated class.
+     */
+    Class[] trace() default {};
+
+    /**
+     * @return The simple name of the generated factory, by default the name of the annotated class followed by Factory.
+     */
+    String name() default "";
+}
@@ -0,0 +1,223 @@
+package info.tholstrup.utils.factory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up the registered factories in the order of their dependencies. A factory is warmed up once every factory named by its
+ * {@link BaseParameterizedFactory#getFactoryDependencies()} has been warmed up, factories which do not depend on each other are warmed up
+ * in parallel. A factory whose dependencies failed to warm up is still warmed up, the failures are all in the report.
+ * <p />
+ * Dependencies which have not registered yet are loaded and initialized first, so a singleton factory which registers its instance in a
+ * static initializer (as the factories generated from a {@link Factory} annotation do) or holds it in a static field is registered by
+ * naming its class.
+ */
+public final class FactoryBootstrapper
+{
+    private static final Logger log = LoggerFactory.getLogger(FactoryBootstrapper.class);
+
+    private FactoryBootstrapper()
+    {
+    }
+
+    /**
+     * Warms up every registered factory on the common ForkJoinPool.
+     * 
+     * @see #bootstrap(Executor)
+     */
+    public static WarmUpReport bootstrap ()
+    {
+        return bootstrap(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds the instances named by {@link BaseParameterizedFactory#getWarmUpSignatures()} for every registered factory, each factory after
+     * the factories it depends on, and waits for them to finish.
+     * 
+     * @param executor
+     *            Runs the constructions.
+     * @return The construction time and failure (if any) of every key.
+     * @throws IllegalStateException
+     *             if the dependencies form a cycle, in which case nothing is warmed up.
+     */
+    public static WarmUpReport bootstrap (final Executor executor)
+    {
+        long start = System.nanoTime();
+        Map<Class, List<BaseParameterizedFactory>> factoriesByClass = collectFactories();
+        List<Class> order = sort(factoriesByClass);
+
+        Map<Class, CompletableFuture<List<CompletableFuture<WarmUpReport.Result>>>> warmUps =
+                new LinkedHashMap<Class, CompletableFuture<List<CompletableFuture<WarmUpReport.Result>>>>();
+        for (Class factoryClass : order)
+        {
+            final List<BaseParameterizedFactory> factories = factoriesByClass.get(factoryClass);
+            List<CompletableFuture<?>> dependencies = new ArrayList<CompletableFuture<?>>();
+            for (Class dependency : dependenciesOf(factories))
+            {
+                CompletableFuture<List<CompletableFuture<WarmUpReport.Result>>> dependencyWarmUp = warmUps.get(dependency);
+                if (dependencyWarmUp != null)
+                {
+                    dependencies.add(dependencyWarmUp.thenCompose(AWAIT_RESULTS));
+                }
+            }
+            CompletableFuture<Void> ready = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[dependencies.size()]));
+            warmUps.put(factoryClass, ready.thenApply(new Function<Void, List<CompletableFuture<WarmUpReport.Result>>>()
+            {
+                public List<CompletableFuture<WarmUpReport.Result>> apply (Void ignored)
+                {
+                    List<CompletableFuture<WarmUpReport.Result>> results = new ArrayList<CompletableFuture<WarmUpReport.Result>>();
+                    for (BaseParameterizedFactory factory : factories)
+                    {
+                        results.addAll(factory.startWarmUp(factory.getWarmUpSignatures(), executor));
+                    }
+                    return results;
+                }
+            }));
+        }
+
+        List<CompletableFuture<WarmUpReport.Result>> results = new ArrayList<CompletableFuture<WarmUpReport.Result>>();
+        for (CompletableFuture<List<CompletableFuture<WarmUpReport.Result>>> warmUp : warmUps.values())
+        {
+            // the warm-ups never fail, failures are recorded in their results.
+            results.addAll(warmUp.join());
+        }
+        return WarmUpReport.await(results, start);
+    }
+
+    /**
+     * @return The classes of the registered factories, each after the factories it depends on.
+     * @throws IllegalStateException
+     *             if the dependencies form a cycle.
+     */
+    public static List<Class> getBootstrapOrder ()
+    {
+        return sort(collectFactories());
+    }
+
+    /**
+     * Waits for the warm-ups of a factory. Dependents only start once their dependencies' instances have been built.
+     */
+    private static final Function<List<CompletableFuture<WarmUpReport.Result>>, CompletableFuture<Void>> AWAIT_RESULTS =
+            new Function<List<CompletableFuture<WarmUpReport.Result>>, CompletableFuture<Void>>()
+            {
+                public CompletableFuture<Void> apply (List<CompletableFuture<WarmUpReport.Result>> results)
+                {
+                    return CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()]));
+                }
+            };
+
+    /**
+     * @return The registered factories by class, after initializing the classes of dependencies which have not registered.
+     */
+    private static Map<Class, List<BaseParameterizedFactory>> collectFactories ()
+    {
+        List<Class> initialized = new ArrayList<Class>();
+        while (true)
+        {
+            Map<Class, List<BaseParameterizedFactory>> factoriesByClass = new LinkedHashMap<Class, List<BaseParameterizedFactory>>();
+            for (BaseParameterizedFactory factory : FactoryRegistry.getFactories())
+            {
+                List<BaseParameterizedFactory> factories = factoriesByClass.get(factory.getClass());
+                if (factories == null)
+                {
+                    factories = new ArrayList<BaseParameterizedFactory>();
+                    factoriesByClass.put(factory.getClass(), factories);
+                }
+                factories.add(factory);
+            }
+
+            boolean registeredMore = false;
+            for (List<BaseParameterizedFactory> factories : new ArrayList<List<BaseParameterizedFactory>>(factoriesByClass.values()))
+            {
+                for (Class dependency : dependenciesOf(factories))
+                {
+                    if (!factoriesByClass.containsKey(dependency) && !initialized.contains(dependency))
+                    {
+                        initialized.add(dependency);
+                        registeredMore |= FactoryRegistry.registerSingletons(dependency);
+                    }
+                }
+            }
+            if (!registeredMore)
+            {
+                return factoriesByClass;
+            }
+        }
+    }
+
+    private static List<Class> dependenciesOf (List<BaseParameterizedFactory> factories)
+    {
+        List<Class> dependencies = new ArrayList<Class>();
+        for (BaseParameterizedFactory factory : factories)
+        {
+            for (Object dependency : factory.getFactoryDependencies())
+            {
+                if (!dependencies.contains(dependency))
+                {
+                    dependencies.add((Class) dependency);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Orders the factory classes depth first so each comes after its dependencies. Dependencies which are not registered are left out.
+     */
+    private static List<Class> sort (Map<Class, List<BaseParameterizedFactory>> factoriesByClass)
+    {
+        LinkedHashSet<Class> order = new LinkedHashSet<Class>();
+        List<Class> path = new ArrayList<Class>();
+        for (Class factoryClass : factoriesByClass.keySet())
+        {
+            visit(factoryClass, factoriesByClass, path, order);
+        }
+        return new ArrayList<Class>(order);
+    }
+
+    /**
+     * @param path
+     *            The classes being visited, a class which is visited again while on the path closes a cycle.
+     */
+    private static void visit (Class factoryClass, Map<Class, List<BaseParameterizedFactory>> factoriesByClass, List<Class> path,
+            LinkedHashSet<Class> order)
+    {
+        if (order.contains(factoryClass))
+        {
+            return;
+        }
+        int onPath = path.indexOf(factoryClass);
+        if (onPath >= 0)
+        {
+            StringBuilder cycle = new StringBuilder("The factory dependencies form a cycle: ");
+            for (Class member : path.subList(onPath, path.size()))
+            {
+                cycle.append(member.getName()).append(" -> ");
+            }
+            throw new IllegalStateException(cycle.append(factoryClass.getName()).toString());
+        }
+        List<BaseParameterizedFactory> factories = factoriesByClass.get(factoryClass);
+        if (factories == null)
+        {
+            log.debug("{} is depended on but has not registered", factoryClass.getName());
+            return;
+        }
+        path.add(factoryClass);
+        for (Class dependency : dependenciesOf(factories))
+        {
+            visit(dependency, factoriesByClass, path, order);
+        }
+        path.remove(path.size() - 1);
+        order.add(factoryClass);
+    }
+}
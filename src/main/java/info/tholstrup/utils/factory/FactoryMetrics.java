@@ -0,0 +1,223 @@
+package info.tholstrup.utils.factory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of a single factory. The counters are striped ({@link LongAdder}s) so factories used by many threads at once do not contend
+ * on them, reading them sums the stripes. A {@link Snapshot} holds the values at one point in time.
+ */
+public final class FactoryMetrics implements FactoryMetricsMXBean
+{
+    private final String factoryClass;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder constructions = new LongAdder();
+    private final LongAdder constructionNanos = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    FactoryMetrics(Class factoryClass)
+    {
+        this.factoryClass = factoryClass.getName();
+    }
+
+    void request ()
+    {
+        requests.increment();
+    }
+
+    void hit ()
+    {
+        hits.increment();
+    }
+
+    void miss ()
+    {
+        misses.increment();
+    }
+
+    void eviction ()
+    {
+        evictions.increment();
+    }
+
+    void construction (long nanos)
+    {
+        constructions.increment();
+        constructionNanos.add(nanos);
+    }
+
+    void failure ()
+    {
+        failures.increment();
+    }
+
+    @Override
+    public String getFactoryClass ()
+    {
+        return factoryClass;
+    }
+
+    @Override
+    public long getRequests ()
+    {
+        return requests.sum();
+    }
+
+    @Override
+    public long getHits ()
+    {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses ()
+    {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions ()
+    {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getConstructions ()
+    {
+        return constructions.sum();
+    }
+
+    @Override
+    public long getConstructionNanos ()
+    {
+        return constructionNanos.sum();
+    }
+
+    @Override
+    public long getFailures ()
+    {
+        return failures.sum();
+    }
+
+    @Override
+    public double getHitRate ()
+    {
+        return snapshot().getHitRate();
+    }
+
+    @Override
+    public double getAverageConstructionNanos ()
+    {
+        return snapshot().getAverageConstructionNanos();
+    }
+
+    @Override
+    public void reset ()
+    {
+        requests.reset();
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+        constructions.reset();
+        constructionNanos.reset();
+        failures.reset();
+    }
+
+    /**
+     * @return The current values of the counters. The counters are read one after the other, so while the factory is in use they may be
+     *         off by the requests made during the read.
+     */
+    public Snapshot snapshot ()
+    {
+        return new Snapshot(factoryClass, requests.sum(), hits.sum(), misses.sum(), evictions.sum(), constructions.sum(),
+                constructionNanos.sum(), failures.sum());
+    }
+
+    /**
+     * The counters of a factory at one point in time.
+     */
+    public static final class Snapshot
+    {
+        private final String factoryClass;
+        private final long requests;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long constructions;
+        private final long constructionNanos;
+        private final long failures;
+
+        Snapshot(String factoryClass, long requests, long hits, long misses, long evictions, long constructions, long constructionNanos,
+                long failures)
+        {
+            this.factoryClass = factoryClass;
+            this.requests = requests;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.constructions = constructions;
+            this.constructionNanos = constructionNanos;
+            this.failures = failures;
+        }
+
+        public String getFactoryClass ()
+        {
+            return factoryClass;
+        }
+
+        public long getRequests ()
+        {
+            return requests;
+        }
+
+        public long getHits ()
+        {
+            return hits;
+        }
+
+        public long getMisses ()
+        {
+            return misses;
+        }
+
+        public long getEvictions ()
+        {
+            return evictions;
+        }
+
+        public long getConstructions ()
+        {
+            return constructions;
+        }
+
+        public long getConstructionNanos ()
+        {
+            return constructionNanos;
+        }
+
+        public long getFailures ()
+        {
+            return failures;
+        }
+
+        public double getHitRate ()
+        {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        public double getAverageConstructionNanos ()
+        {
+            return constructions == 0 ? 0 : (double) constructionNanos / constructions;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return factoryClass + " requests=" + requests + " hits=" + hits + " misses=" + misses + " evictions=" + evictions
+                    + " constructions=" + constructions + " constructionNanos=" + constructionNanos + " failures=" + failures;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package info.tholstrup.utils.factory;
+
+/**
+ * The management interface of a factory's {@link FactoryMetrics}, registered by the {@link FactoryRegistry}. All counts are since the
+ * factory was created or the metrics were last reset.
+ */
+public interface FactoryMetricsMXBean
+{
+    public String getFactoryClass ();
+
+    /**
+     * @return The number of instances requested from the factory.
+     */
+    public long getRequests ();
+
+    /**
+     * @return The number of requests served with an existing instance (from the cache, the pool or the scope).
+     */
+    public long getHits ();
+
+    /**
+     * @return The number of requests for which an existing instance was looked for but not found.
+     */
+    public long getMisses ();
+
+    /**
+     * @return The number of instances evicted from the cache.
+     */
+    public long getEvictions ();
+
+    /**
+     * @return The number of instances constructed.
+     */
+    public long getConstructions ();
+
+    /**
+     * @return The total time spent constructing instances in nanoseconds.
+     */
+    public long getConstructionNanos ();
+
+    /**
+     * @return The number of constructions which threw an exception.
+     */
+    public long getFailures ();
+
+    /**
+     * @return Hits divided by hits plus misses, 0 before the first lookup.
+     */
+    public double getHitRate ();
+
+    /**
+     * @return The average construction time in nanoseconds, 0 before the first construction.
+     */
+    public double getAverageConstructionNanos ();
+
+    public void reset ();
+}
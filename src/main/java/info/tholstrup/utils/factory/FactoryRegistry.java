@@ -0,0 +1,322 @@
+package info.tholstrup.utils.factory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * Keeps track of the {@link BaseParameterizedFactory}s so that they can all be warmed up at boot and their metrics read in one place.
+ * Factories are only weakly referenced, so a factory which is no longer used is not kept alive by the registry.
+ * <p />
+ * A factory registers itself on its first request. Factories which should be warmed up before their first request are registered once
+ * they have been constructed, typically where the singleton is created:
+ * 
+ * <pre>
+ * private static final AppleFactory factoryInstance = FactoryRegistry.register(new AppleFactory());
+ * </pre>
+ * 
+ * When the system property {@value #MBEANS_PROPERTY} is set to true the {@link FactoryMetrics} of each registered factory are also
+ * registered with the platform MBean server under {@value #MBEAN_DOMAIN} (type=FactoryMetrics, name=the factory class, plus instance=a
+ * number for further factories of the same class). The MBeans only reference the metrics, not the factories, and are unregistered when
+ * the factory is unregistered or collected.
+ */
+public final class FactoryRegistry
+{
+    /**
+     * The system property which enables registering the metrics MBeans when set to true.
+     */
+    public static final String MBEANS_PROPERTY = "info.tholstrup.utils.factory.registerMBeans";
+    /**
+     * The domain of the metrics MBeans.
+     */
+    public static final String MBEAN_DOMAIN = "info.tholstrup.utils.factory";
+
+    private static final Logger log = LoggerFactory.getLogger(FactoryRegistry.class);
+    private static final boolean registerMBeans = Boolean.getBoolean(MBEANS_PROPERTY);
+    /**
+     * The registrations by factory, and the registrations themselves which have to stay reachable until their factory has been collected
+     * and they have been taken off the queue. All guarded by the map.
+     */
+    private static final Map<BaseParameterizedFactory, Registration> registrations =
+            new WeakHashMap<BaseParameterizedFactory, Registration>();
+    private static final Set<Registration> liveRegistrations = new HashSet<Registration>();
+    private static final ReferenceQueue<BaseParameterizedFactory> collected = new ReferenceQueue<BaseParameterizedFactory>();
+    private static final AtomicLong instanceNumbers = new AtomicLong(1);
+
+    private FactoryRegistry()
+    {
+    }
+
+    /**
+     * Registers a fully constructed factory, doing nothing if it is already registered.
+     * 
+     * @param factory
+     *            The factory (cannot be null).
+     * @return The factory.
+     */
+    public static <F extends BaseParameterizedFactory> F register (F factory)
+    {
+        Verifier.verifyNotNull(factory);
+        synchronized (registrations)
+        {
+            expungeCollected();
+            if (!registrations.containsKey(factory))
+            {
+                ObjectName objectName = registerMBeans ? registerMBean(factory.getMetrics()) : null;
+                Registration registration = new Registration(factory, objectName);
+                registrations.put(factory, registration);
+                liveRegistrations.add(registration);
+            }
+        }
+        return factory;
+    }
+
+    /**
+     * Removes the factory from the registry and unregisters its MBean. Does nothing if the factory is not registered.
+     * 
+     * @param factory
+     *            The factory.
+     */
+    public static void unregister (BaseParameterizedFactory factory)
+    {
+        Registration registration;
+        synchronized (registrations)
+        {
+            expungeCollected();
+            registration = registrations.remove(factory);
+            if (registration == null)
+            {
+                return;
+            }
+            liveRegistrations.remove(registration);
+            registration.clear();
+        }
+        unregisterMBean(registration.objectName);
+    }
+
+    /**
+     * @param factory
+     *            The factory.
+     * @return True if the factory is registered.
+     */
+    public static boolean isRegistered (BaseParameterizedFactory factory)
+    {
+        synchronized (registrations)
+        {
+            return registrations.containsKey(factory);
+        }
+    }
+
+    /**
+     * Makes the singleton of a factory class known before its first request. The class is initialized, which registers a singleton created
+     * with {@link #register(BaseParameterizedFactory)} in a static initializer. Singletons which are merely held in a static field of the
+     * class (as in factories written from the templates, which would only register on their first request) are registered as well.
+     * 
+     * @param factoryClass
+     *            The factory class.
+     * @return True if a factory of the class is registered afterwards.
+     */
+    static boolean registerSingletons (Class factoryClass)
+    {
+        try
+        {
+            Class.forName(factoryClass.getName(), true, factoryClass.getClassLoader());
+        }
+        catch (ClassNotFoundException e)
+        {
+            return false;
+        }
+        catch (LinkageError e)
+        {
+            log.warn("Could not initialize the factory " + factoryClass.getName(), e);
+            return false;
+        }
+        boolean registered = false;
+        for (Field field : factoryClass.getDeclaredFields())
+        {
+            if (!Modifier.isStatic(field.getModifiers()) || !field.getType().isAssignableFrom(factoryClass))
+            {
+                continue;
+            }
+            try
+            {
+                field.setAccessible(true);
+                Object singleton = field.get(null);
+                if (singleton != null && singleton.getClass() == factoryClass)
+                {
+                    register((BaseParameterizedFactory) singleton);
+                    registered = true;
+                }
+            }
+            catch (IllegalAccessException e)
+            {
+                log.debug("Could not read the field {} of the factory {}", field.getName(), factoryClass.getName());
+            }
+            catch (RuntimeException e)
+            {
+                // the field cannot be made accessible, e.g. because the package is not opened.
+                log.debug("Could not read the field {} of the factory {}", field.getName(), factoryClass.getName());
+            }
+        }
+        if (registered)
+        {
+            return true;
+        }
+        for (BaseParameterizedFactory factory : getFactories())
+        {
+            if (factory.getClass() == factoryClass)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The metrics of every registered factory.
+     */
+    public static List<FactoryMetrics.Snapshot> snapshotMetrics ()
+    {
+        List<FactoryMetrics.Snapshot> snapshots = new ArrayList<FactoryMetrics.Snapshot>();
+        for (BaseParameterizedFactory factory : getFactories())
+        {
+            snapshots.add(factory.getMetrics().snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return The factories registered so far.
+     */
+    public static List<BaseParameterizedFactory> getFactories ()
+    {
+        synchronized (registrations)
+        {
+            expungeCollected();
+            return new ArrayList<BaseParameterizedFactory>(registrations.keySet());
+        }
+    }
+
+    /**
+     * Warms up every registered factory in parallel on the common ForkJoinPool.
+     * 
+     * @see #warmUpAll(Executor)
+     */
+    public static WarmUpReport warmUpAll ()
+    {
+        return warmUpAll(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds the instances named by {@link BaseParameterizedFactory#getWarmUpSignatures()} for every registered factory, all concurrently
+     * on the given executor, and waits for them to finish.
+     * 
+     * @param executor
+     *            Runs the constructions, an executor creating a virtual thread per task works well when constructors block.
+     * @return The construction time and failure (if any) of every key.
+     */
+    public static WarmUpReport warmUpAll (Executor executor)
+    {
+        long start = System.nanoTime();
+        List<CompletableFuture<WarmUpReport.Result>> warmUps = new ArrayList<CompletableFuture<WarmUpReport.Result>>();
+        for (BaseParameterizedFactory factory : getFactories())
+        {
+            warmUps.addAll(factory.startWarmUp(factory.getWarmUpSignatures(), executor));
+        }
+        return WarmUpReport.await(warmUps, start);
+    }
+
+    /**
+     * Unregisters the MBeans of the factories which have been collected. Called with the registrations locked.
+     */
+    private static void expungeCollected ()
+    {
+        for (Object reference = collected.poll(); reference != null; reference = collected.poll())
+        {
+            Registration registration = (Registration) reference;
+            liveRegistrations.remove(registration);
+            unregisterMBean(registration.objectName);
+        }
+    }
+
+    /**
+     * @return The name the metrics were registered under, null if they could not be registered.
+     */
+    private static ObjectName registerMBean (FactoryMetrics metrics)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String name = MBEAN_DOMAIN + ":type=FactoryMetrics,name=" + ObjectName.quote(metrics.getFactoryClass());
+        try
+        {
+            ObjectName objectName = new ObjectName(name);
+            try
+            {
+                server.registerMBean(metrics, objectName);
+            }
+            catch (InstanceAlreadyExistsException e)
+            {
+                // a factory class may be instantiated more than once, later instances are told apart by a number.
+                objectName = new ObjectName(name + ",instance=" + instanceNumbers.incrementAndGet());
+                server.registerMBean(metrics, objectName);
+            }
+            return objectName;
+        }
+        catch (JMException e)
+        {
+            log.warn("Could not register the metrics of " + metrics.getFactoryClass() + " with the MBean server", e);
+            return null;
+        }
+    }
+
+    private static void unregisterMBean (ObjectName objectName)
+    {
+        if (objectName == null)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException e)
+        {
+            log.debug("Could not unregister the MBean " + objectName, e);
+        }
+    }
+
+    /**
+     * A registered factory, which is queued once the factory has been collected so that its MBean can be unregistered.
+     */
+    private static final class Registration extends WeakReference<BaseParameterizedFactory>
+    {
+        final ObjectName objectName;
+
+        Registration(BaseParameterizedFactory factory, ObjectName objectName)
+        {
+            super(factory, collected);
+            this.objectName = objectName;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package info.tholstrup.utils.factory;
+
+/**
+ * Calls one constructor of the instance class directly, with the parameters held by an {@link InstanceKey}. The factories generated by
+ * {@link Factory} pass one per constructor to {@link BaseParameterizedFactory#_getKeyedInstance(InstanceKey, InstanceConstructor)}, so
+ * their strongly typed getInstance methods need neither parameter arrays nor a lookup of the constructor.
+ */
+public interface InstanceConstructor<T>
+{
+    /**
+     * @param key
+     *            The parameter types and parameters of the constructor.
+     * @return The new instance.
+     */
+    public T construct (InstanceKey key);
+}
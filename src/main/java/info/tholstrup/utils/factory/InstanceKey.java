@@ -0,0 +1,407 @@
+package info.tholstrup.utils.factory;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * The default cache key of {@link BaseParameterizedFactory}. Like {@link MethodSignature} it equates keys with the same parameter types and
+ * equal parameters, but the parameter types are compared by identity and keys for up to three parameters hold them in fields rather than
+ * arrays.
+ * <p />
+ * The factory probes its cache with a reusable key so a cache hit does not allocate, a key is only created once an instance has to be
+ * cached. Keys of different arities never equate. Null parameter types and parameters are treated as empty arrays.
+ */
+public abstract class InstanceKey
+{
+    private static final Class[] EMPTY_CLASS_ARRAY = new Class[] {};
+    private static final Object[] EMPTY_OBJECT_ARRAY = new Object[] {};
+
+    private static final InstanceKey NO_PARAMETERS = new NoParameterKey();
+
+    int hash;
+
+    InstanceKey()
+    {
+    }
+
+    /**
+     * @param parameterTypes
+     *            The constructor parameter types, null for none.
+     * @param parameters
+     *            The constructor parameters, null for none. Must contain the same number of elements as parameterTypes.
+     * @return A key for the given constructor signature and parameters, the arrays are not retained.
+     */
+    public static InstanceKey of (Class[] parameterTypes, Object[] parameters)
+    {
+        int arity = arityOf(parameterTypes, parameters);
+        switch (arity)
+        {
+            case 0:
+                return NO_PARAMETERS;
+            case 1:
+                return new SingleParameterKey(parameterTypes[0], parameters[0]);
+            case 2:
+                return new TwoParameterKey(parameterTypes[0], parameters[0], parameterTypes[1], parameters[1]);
+            case 3:
+                return new ThreeParameterKey(parameterTypes[0], parameters[0], parameterTypes[1], parameters[1], parameterTypes[2],
+                        parameters[2]);
+            default:
+                return new ParameterArrayKey(parameterTypes.clone(), parameters.clone());
+        }
+    }
+
+    /**
+     * Like {@link #of(Class[], Object[])} for a single parameter, without the arrays.
+     */
+    public static InstanceKey of (Class type0, Object parameter0)
+    {
+        return new SingleParameterKey(type0, parameter0);
+    }
+
+    /**
+     * Like {@link #of(Class[], Object[])} for two parameters, without the arrays.
+     */
+    public static InstanceKey of (Class type0, Object parameter0, Class type1, Object parameter1)
+    {
+        return new TwoParameterKey(type0, parameter0, type1, parameter1);
+    }
+
+    /**
+     * Like {@link #of(Class[], Object[])} for three parameters, without the arrays.
+     */
+    public static InstanceKey of (Class type0, Object parameter0, Class type1, Object parameter1, Class type2, Object parameter2)
+    {
+        return new ThreeParameterKey(type0, parameter0, type1, parameter1, type2, parameter2);
+    }
+
+    /**
+     * @return The number of parameters.
+     */
+    public abstract int getArity ();
+
+    /**
+     * @param index
+     *            The index of the parameter, less than the arity.
+     * @return The parameter.
+     */
+    public final Object getParameter (int index)
+    {
+        return parameterAt(index);
+    }
+
+    abstract Class typeAt (int index);
+
+    abstract Object parameterAt (int index);
+
+    /**
+     * @return A new array holding the parameter types.
+     */
+    public Class[] getParameterTypes ()
+    {
+        Class[] parameterTypes = new Class[getArity()];
+        for (int i = 0; i < parameterTypes.length; i++)
+        {
+            parameterTypes[i] = typeAt(i);
+        }
+        return parameterTypes;
+    }
+
+    /**
+     * @return A new array holding the parameters.
+     */
+    public Object[] getParameters ()
+    {
+        Object[] parameters = new Object[getArity()];
+        for (int i = 0; i < parameters.length; i++)
+        {
+            parameters[i] = parameterAt(i);
+        }
+        return parameters;
+    }
+
+    @Override
+    public final int hashCode ()
+    {
+        return hash;
+    }
+
+    @Override
+    public final boolean equals (Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof InstanceKey))
+        {
+            return false;
+        }
+        InstanceKey other = (InstanceKey) obj;
+        int arity = getArity();
+        if (hash != other.hash || arity != other.getArity())
+        {
+            return false;
+        }
+        for (int i = 0; i < arity; i++)
+        {
+            if (typeAt(i) != other.typeAt(i))
+            {
+                return false;
+            }
+            Object parameter = parameterAt(i);
+            Object otherParameter = other.parameterAt(i);
+            if (parameter == null ? otherParameter != null : !parameter.equals(otherParameter))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int arityOf (Class[] parameterTypes, Object[] parameters)
+    {
+        int arity = parameterTypes == null ? 0 : parameterTypes.length;
+        Verifier.verifyTrue(arity == (parameters == null ? 0 : parameters.length),
+                "parameterTypes and parameters must contain the same number of elements");
+        return arity;
+    }
+
+    /**
+     * Computes the hash of a key without creating it, this is the same as
+     * <code>InstanceKey.of(parameterTypes, parameters).hashCode()</code>.
+     */
+    static int hash (Class[] parameterTypes, Object[] parameters, int arity)
+    {
+        int result = 31 + arity;
+        for (int i = 0; i < arity; i++)
+        {
+            result = 31 * result + hash(parameterTypes[i], parameters[i]);
+        }
+        return result;
+    }
+
+    private static int hash (Class type, Object parameter)
+    {
+        return 31 * (type == null ? 0 : type.hashCode()) + (parameter == null ? 0 : parameter.hashCode());
+    }
+
+    private static final class NoParameterKey extends InstanceKey
+    {
+        NoParameterKey()
+        {
+            hash = InstanceKey.hash(EMPTY_CLASS_ARRAY, EMPTY_OBJECT_ARRAY, 0);
+        }
+
+        @Override
+        public int getArity ()
+        {
+            return 0;
+        }
+
+        @Override
+        Class typeAt (int index)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        Object parameterAt (int index)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private static final class SingleParameterKey extends InstanceKey
+    {
+        private final Class type0;
+        private final Object parameter0;
+
+        SingleParameterKey(Class type0, Object parameter0)
+        {
+            this.type0 = type0;
+            this.parameter0 = parameter0;
+            hash = 31 * (31 + 1) + InstanceKey.hash(type0, parameter0);
+        }
+
+        @Override
+        public int getArity ()
+        {
+            return 1;
+        }
+
+        @Override
+        Class typeAt (int index)
+        {
+            if (index != 0)
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            return type0;
+        }
+
+        @Override
+        Object parameterAt (int index)
+        {
+            if (index != 0)
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            return parameter0;
+        }
+    }
+
+    private static final class TwoParameterKey extends InstanceKey
+    {
+        private final Class type0;
+        private final Object parameter0;
+        private final Class type1;
+        private final Object parameter1;
+
+        TwoParameterKey(Class type0, Object parameter0, Class type1, Object parameter1)
+        {
+            this.type0 = type0;
+            this.parameter0 = parameter0;
+            this.type1 = type1;
+            this.parameter1 = parameter1;
+            hash = 31 * (31 * (31 + 2) + InstanceKey.hash(type0, parameter0)) + InstanceKey.hash(type1, parameter1);
+        }
+
+        @Override
+        public int getArity ()
+        {
+            return 2;
+        }
+
+        @Override
+        Class typeAt (int index)
+        {
+            switch (index)
+            {
+                case 0:
+                    return type0;
+                case 1:
+                    return type1;
+                default:
+                    throw new IndexOutOfBoundsException();
+            }
+        }
+
+        @Override
+        Object parameterAt (int index)
+        {
+            switch (index)
+            {
+                case 0:
+                    return parameter0;
+                case 1:
+                    return parameter1;
+                default:
+                    throw new IndexOutOfBoundsException();
+            }
+        }
+    }
+
+    private static final class ThreeParameterKey extends InstanceKey
+    {
+        private final Class type0;
+        private final Object parameter0;
+        private final Class type1;
+        private final Object parameter1;
+        private final Class type2;
+        private final Object parameter2;
+
+        ThreeParameterKey(Class type0, Object parameter0, Class type1, Object parameter1, Class type2, Object parameter2)
+        {
+            this.type0 = type0;
+            this.parameter0 = parameter0;
+            this.type1 = type1;
+            this.parameter1 = parameter1;
+            this.type2 = type2;
+            this.parameter2 = parameter2;
+            hash = 31 * (31 * (31 * (31 + 3) + InstanceKey.hash(type0, parameter0)) + InstanceKey.hash(type1, parameter1))
+                    + InstanceKey.hash(type2, parameter2);
+        }
+
+        @Override
+        public int getArity ()
+        {
+            return 3;
+        }
+
+        @Override
+        Class typeAt (int index)
+        {
+            switch (index)
+            {
+                case 0:
+                    return type0;
+                case 1:
+                    return type1;
+                case 2:
+                    return type2;
+                default:
+                    throw new IndexOutOfBoundsException();
+            }
+        }
+
+        @Override
+        Object parameterAt (int index)
+        {
+            switch (index)
+            {
+                case 0:
+                    return parameter0;
+                case 1:
+                    return parameter1;
+                case 2:
+                    return parameter2;
+                default:
+                    throw new IndexOutOfBoundsException();
+            }
+        }
+    }
+
+    /**
+     * Key for more than three parameters, also used (with arrays it does not own) as the reusable probe of the factory.
+     */
+    static class ParameterArrayKey extends InstanceKey
+    {
+        Class[] parameterTypes;
+        Object[] parameters;
+        int arity;
+
+        ParameterArrayKey()
+        {
+        }
+
+        ParameterArrayKey(Class[] parameterTypes, Object[] parameters)
+        {
+            set(parameterTypes, parameters, parameterTypes.length);
+        }
+
+        final void set (Class[] parameterTypes, Object[] parameters, int arity)
+        {
+            this.parameterTypes = parameterTypes;
+            this.parameters = parameters;
+            this.arity = arity;
+            hash = InstanceKey.hash(parameterTypes, parameters, arity);
+        }
+
+        @Override
+        public int getArity ()
+        {
+            return arity;
+        }
+
+        @Override
+        Class typeAt (int index)
+        {
+            return parameterTypes[index];
+        }
+
+        @Override
+        Object parameterAt (int index)
+        {
+            return parameters[index];
+        }
+    }
+}
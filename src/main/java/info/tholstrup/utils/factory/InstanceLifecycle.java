@@ -0,0 +1,30 @@
+package info.tholstrup.utils.factory;
+
+/**
+ * How a factory manages the instances it hands out.
+ */
+public enum InstanceLifecycle
+{
+    /**
+     * A new instance is created for every request.
+     */
+    NEW_INSTANCE_EACH_TIME,
+
+    /**
+     * One instance is created per cache key and shared by every caller.
+     */
+    CACHED,
+
+    /**
+     * Instances are borrowed from a pool and returned to it once the caller is done with them, so an instance is only used by one caller at
+     * a time but is reused afterwards. Meant for objects which are expensive to create and not thread safe.
+     */
+    POOLED,
+
+    /**
+     * One instance is created per cache key within an {@link InstanceScope}, so each request or worker reuses its own instance. Meant for
+     * objects which are not thread safe. Without an explicitly opened scope a platform thread uses its own scope which lasts until the
+     * thread ends or {@link InstanceScope#closeThreadScope()} is called, while a virtual thread must open a scope.
+     */
+    SCOPED
+}
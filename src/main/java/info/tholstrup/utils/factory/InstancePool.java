@@ -0,0 +1,197 @@
+package info.tholstrup.utils.factory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * A bounded pool of idle instances. The slots are split into stripes, a thread first looks in the stripe picked by its id and only then in
+ * the others, so threads borrowing and returning at the same time seldom compete for the same slots. Taking and putting back idle
+ * instances takes no locks and does not allocate.
+ * <p />
+ * The pool also keeps track of the instances which are lent out ({@link #lend(Object)}) so that only those can be taken back
+ * ({@link #takeBack(Object)}), and each of them only once. Lent instances are referenced weakly, an instance which is never taken back is
+ * left to the garbage collector.
+ */
+public class InstancePool<T>
+{
+    private final AtomicReferenceArray<T> slots;
+    private final int stripes;
+    private final int slotsPerStripe;
+    private final Set<LentReference> lent = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    /**
+     * @param maximumIdle
+     *            The maximum number of idle instances held by the pool (cannot be negative). It is rounded up to a multiple of the number
+     *            of stripes.
+     */
+    public InstancePool(int maximumIdle)
+    {
+        Verifier.verifyTrue(maximumIdle >= 0, "maximumIdle cannot be negative");
+        int stripeCount = 1;
+        while (stripeCount < Runtime.getRuntime().availableProcessors() && stripeCount < maximumIdle)
+        {
+            stripeCount <<= 1;
+        }
+        this.stripes = stripeCount;
+        this.slotsPerStripe = (maximumIdle + stripeCount - 1) / stripeCount;
+        this.slots = new AtomicReferenceArray<T>(stripeCount * slotsPerStripe);
+    }
+
+    /**
+     * @return An idle instance or null if the pool is empty.
+     */
+    public T poll ()
+    {
+        int home = homeStripe();
+        for (int i = 0; i < stripes; i++)
+        {
+            int start = ((home + i) & (stripes - 1)) * slotsPerStripe;
+            for (int slot = start; slot < start + slotsPerStripe; slot++)
+            {
+                T instance = slots.get(slot);
+                if (instance != null && slots.compareAndSet(slot, instance, null))
+                {
+                    return instance;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param instance
+     *            The instance to return to the pool (cannot be null).
+     * @return False if the pool is full, in which case the instance is not kept.
+     */
+    public boolean offer (T instance)
+    {
+        Verifier.verifyNotNull(instance);
+        int home = homeStripe();
+        for (int i = 0; i < stripes; i++)
+        {
+            int start = ((home + i) & (stripes - 1)) * slotsPerStripe;
+            for (int slot = start; slot < start + slotsPerStripe; slot++)
+            {
+                if (slots.get(slot) == null && slots.compareAndSet(slot, null, instance))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that the instance has been handed out, so that it can be taken back once.
+     * 
+     * @param instance
+     *            An instance taken from the pool or newly created for it (cannot be null).
+     */
+    public void lend (T instance)
+    {
+        Verifier.verifyNotNull(instance);
+        expungeCollected();
+        lent.add(new LentReference(instance, collected));
+    }
+
+    /**
+     * @param instance
+     *            The instance being handed back.
+     * @return True if the instance was lent out by this pool and had not been taken back yet, it is no longer counted as lent. False for
+     *         any other instance.
+     */
+    public boolean takeBack (T instance)
+    {
+        return instance != null && lent.remove(new LentReference(instance, null));
+    }
+
+    /**
+     * @return The number of lent instances which have not been taken back or collected, only an estimate while other threads use the pool.
+     */
+    public int getLentCount ()
+    {
+        expungeCollected();
+        return lent.size();
+    }
+
+    /**
+     * @return The number of idle instances, only an estimate while other threads use the pool.
+     */
+    public int getIdleCount ()
+    {
+        int idle = 0;
+        for (int slot = 0; slot < slots.length(); slot++)
+        {
+            if (slots.get(slot) != null)
+            {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * Discards all idle instances, the instances which are lent out can still be taken back.
+     */
+    public void clear ()
+    {
+        for (int slot = 0; slot < slots.length(); slot++)
+        {
+            slots.set(slot, null);
+        }
+    }
+
+    private int homeStripe ()
+    {
+        return (int) (Thread.currentThread().getId() & (stripes - 1));
+    }
+
+    private void expungeCollected ()
+    {
+        for (Object reference = collected.poll(); reference != null; reference = collected.poll())
+        {
+            lent.remove(reference);
+        }
+    }
+
+    /**
+     * A weak reference which equals the other references to the same instance (by identity), or itself once the instance is collected.
+     */
+    private static final class LentReference extends WeakReference<Object>
+    {
+        private final int hash;
+
+        LentReference(Object instance, ReferenceQueue<Object> queue)
+        {
+            super(instance, queue);
+            this.hash = System.identityHashCode(instance);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            if (other == this)
+            {
+                return true;
+            }
+            if (!(other instanceof LentReference))
+            {
+                return false;
+            }
+            Object instance = get();
+            return instance != null && instance == ((LentReference) other).get();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package info.tholstrup.utils.factory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import info.tholstrup.utils.verification.Verifier;
+
+/**
+ * Holds the instances of factories whose lifecycle is {@link InstanceLifecycle#SCOPED}. A scope belongs to the thread which opened it and
+ * is typically opened around a request or a unit of work:
+ * 
+ * <pre>
+ * try (InstanceScope scope = InstanceScope.open())
+ * {
+ *     // every scoped getInstance call on this thread shares its instances with the other calls in the scope.
+ * }
+ * </pre>
+ * 
+ * Closing the scope drops its instances and restores the scope that was current when it was opened, so nothing is left behind in the
+ * thread. When no scope has been opened a platform thread falls back on a scope of its own which lasts until the thread ends or
+ * {@link #closeThreadScope()} is called, so code which never opens a scope gets one instance per thread. A pool whose threads outlive the
+ * work they run should call closeThreadScope when a task ends (for instance in ThreadPoolExecutor.afterExecute) to drop the instances.
+ * <p />
+ * Virtual threads do not get such a scope, as they are not pooled and are far too numerous for per-thread instances to pay off. Requesting
+ * a scoped instance on a virtual thread without an open scope fails with an IllegalStateException.
+ */
+public final class InstanceScope implements AutoCloseable
+{
+    private static final ThreadLocal<InstanceScope> currentScopes = new ThreadLocal<InstanceScope>();
+    /**
+     * Thread.isVirtual, which only exists from Java 21 onwards, or null.
+     */
+    private static final MethodHandle isVirtual = findIsVirtual();
+
+    private final Thread owner;
+    private final InstanceScope outer;
+    private final boolean threadScope;
+    private final IdentityHashMap<Object, Map<Object, Object>> instancesByFactory = new IdentityHashMap<Object, Map<Object, Object>>();
+    private boolean closed;
+
+    private InstanceScope (InstanceScope outer, boolean threadScope)
+    {
+        this.owner = Thread.currentThread();
+        this.outer = outer;
+        this.threadScope = threadScope;
+    }
+
+    /**
+     * Opens a new scope on the current thread, which stays current until it is closed.
+     * 
+     * @return The new scope.
+     */
+    public static InstanceScope open ()
+    {
+        InstanceScope scope = new InstanceScope(currentScopes.get(), false);
+        currentScopes.set(scope);
+        return scope;
+    }
+
+    /**
+     * Closes the scope the current platform thread falls back on when no scope has been opened, dropping its instances. Does nothing if
+     * the thread has no such scope or if it is inside an opened scope.
+     */
+    public static void closeThreadScope ()
+    {
+        InstanceScope scope = currentScopes.get();
+        if (scope != null && scope.threadScope)
+        {
+            scope.close();
+        }
+    }
+
+    /**
+     * Drops the instances held by this scope and makes the scope that was current when it was opened current again.
+     */
+    @Override
+    public void close ()
+    {
+        if (closed)
+        {
+            return;
+        }
+        Verifier.verifyTrue(owner == Thread.currentThread(), "A scope can only be closed by the thread which opened it");
+        Verifier.verifyTrue(currentScopes.get() == this, "Scopes must be closed in the reverse order they were opened");
+        closed = true;
+        instancesByFactory.clear();
+        if (outer == null)
+        {
+            currentScopes.remove();
+        }
+        else
+        {
+            currentScopes.set(outer);
+        }
+    }
+
+    /**
+     * @return The innermost scope opened on the current thread, or the scope of the thread itself if none is open and it is a platform
+     *         thread.
+     * @throws IllegalStateException
+     *             if no scope is open on the current thread and it is a virtual thread.
+     */
+    static InstanceScope current ()
+    {
+        InstanceScope scope = currentScopes.get();
+        if (scope == null)
+        {
+            Thread thread = Thread.currentThread();
+            if (isVirtual(thread))
+            {
+                throw new IllegalStateException("No InstanceScope is open on the virtual thread " + thread
+                        + ", scoped instances can only be requested inside InstanceScope.open() on virtual threads");
+            }
+            scope = new InstanceScope(null, true);
+            currentScopes.set(scope);
+        }
+        return scope;
+    }
+
+    /**
+     * @return The instances the factory holds in this scope keyed by cache key, which may only be used by the thread owning the scope.
+     */
+    Map<Object, Object> getInstances (Object factory)
+    {
+        Map<Object, Object> instances = instancesByFactory.get(factory);
+        if (instances == null)
+        {
+            instances = new HashMap<Object, Object>();
+            instancesByFactory.put(factory, instances);
+        }
+        return instances;
+    }
+
+    private static boolean isVirtual (Thread thread)
+    {
+        if (isVirtual == null)
+        {
+            return false;
+        }
+        try
+        {
+            return (boolean) isVirtual.invokeExact(thread);
+        }
+        catch (Throwable e)
+        {
+            return false;
+        }
+    }
+
+    private static MethodHandle findIsVirtual ()
+    {
+        try
+        {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+        catch (IllegalAccessException e)
+        {
+            return null;
+        }
+    }
+}
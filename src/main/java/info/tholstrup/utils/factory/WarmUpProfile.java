@@ -0,0 +1,730 @@
+package info.tholstrup.utils.factory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records which factories are asked for which parameters during a run so that the next run can build the hottest instances before it
+ * takes traffic.
+ * <p />
+ * While recording ({@link #startRecording(Path)}) every factory counts its requests per parameter list, the counts are written to a small
+ * binary file when the JVM shuts down (or when {@link #save(Path)} is called). On the next boot, before taking traffic,
+ * {@link #replay(Path, int)} memory maps the file and warms the factories up with the most requested parameter lists, which resolves their
+ * instantiation plans and fills their caches. Factories which have not registered yet are found by their class, see
+ * {@link FactoryRegistry#registerSingletons(Class)}.
+ * <p />
+ * Only parameter lists whose values can be written by value are saved: null, strings, boxed primitives, enum constants and classes. Other
+ * parameter lists are counted under a placeholder per parameter types, so the recording does not keep the parameters alive, and left out
+ * of the file. So is anything requested from a factory whose singleton cannot be found at replay time.
+ */
+public final class WarmUpProfile
+{
+    /**
+     * The most parameter lists recorded per factory, requests for further parameter lists are not counted.
+     */
+    public static final int MAXIMUM_KEYS_PER_FACTORY = 10000;
+
+    private static final int MAGIC = 0x46575550;
+    private static final int VERSION = 1;
+
+    /**
+     * The fewest bytes an entry takes: the length of the factory class name, the count and the number of parameters.
+     */
+    private static final int MINIMUM_ENTRY_BYTES = 4 + 8 + 2;
+    /**
+     * The fewest bytes a parameter takes: the length of its type name and the tag of its value.
+     */
+    private static final int MINIMUM_PARAMETER_BYTES = 4 + 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte SHORT = 4;
+    private static final byte BYTE = 5;
+    private static final byte CHARACTER = 6;
+    private static final byte BOOLEAN = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte ENUM = 10;
+    private static final byte CLASS = 11;
+
+    private static final Map<String, Class> PRIMITIVE_TYPES = new HashMap<String, Class>();
+    static
+    {
+        for (Class type : new Class[] { int.class, long.class, short.class, byte.class, char.class, boolean.class, float.class,
+                double.class })
+        {
+            PRIMITIVE_TYPES.put(type.getName(), type);
+        }
+    }
+
+    /**
+     * Stands in for every parameter of a parameter list which cannot be written by value.
+     */
+    private static final Object UNWRITABLE = new Object()
+    {
+        @Override
+        public String toString ()
+        {
+            return "<unwritable>";
+        }
+    };
+    /**
+     * Parameter lists of placeholders, by arity.
+     */
+    private static final Object[][] PLACEHOLDERS = new Object[8][];
+    static
+    {
+        for (int arity = 0; arity < PLACEHOLDERS.length; arity++)
+        {
+            PLACEHOLDERS[arity] = new Object[arity];
+            Arrays.fill(PLACEHOLDERS[arity], UNWRITABLE);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(WarmUpProfile.class);
+    private static volatile Recording recording;
+
+    private WarmUpProfile()
+    {
+    }
+
+    /**
+     * Starts counting the requests made to every factory and saves the counts to the given file when the JVM shuts down. Does nothing if
+     * recording has already been started.
+     * 
+     * @param file
+     *            The file to write, replaced if it exists.
+     */
+    public static synchronized void startRecording (final Path file)
+    {
+        if (recording != null)
+        {
+            return;
+        }
+        final Recording started = new Recording();
+        recording = started;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run ()
+            {
+                if (recording != started)
+                {
+                    return;
+                }
+                try
+                {
+                    save(file);
+                }
+                catch (IOException e)
+                {
+                    log.warn("Could not save the warm-up profile to " + file, e);
+                }
+            }
+        }, "WarmUpProfile-writer"));
+    }
+
+    /**
+     * Stops counting requests. The counts recorded so far are dropped, call {@link #save(Path)} first to keep them. Nothing is saved when
+     * the JVM shuts down unless recording is started again.
+     */
+    public static synchronized void stopRecording ()
+    {
+        recording = null;
+    }
+
+    /**
+     * @return True if requests are being recorded.
+     */
+    public static boolean isRecording ()
+    {
+        return recording != null;
+    }
+
+    /**
+     * Writes the counts recorded so far, most requested first. The file is written next to its final location and then moved in place so a
+     * crash never leaves a partial profile behind.
+     * 
+     * @param file
+     *            The file to write, replaced if it exists.
+     * @throws IOException
+     */
+    public static void save (Path file) throws IOException
+    {
+        Recording current = recording;
+        List<Entry> entries = current == null ? Collections.<Entry> emptyList() : current.entries();
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try
+        {
+            OutputStream stream = Files.newOutputStream(temporary);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            try
+            {
+                write(out, entries);
+            }
+            finally
+            {
+                out.close();
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * @param file
+     *            A file written by {@link #save(Path)}.
+     * @return The entries of the profile, most requested first. Entries whose classes cannot be loaded are left out.
+     * @throws IOException
+     *             if the file cannot be read, is not a profile or is truncated or corrupt.
+     */
+    public static List<Entry> load (Path file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("The warm-up profile " + file + " is too large");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Warms up the registered factories with the most requested entries of the profile on the common ForkJoinPool.
+     * 
+     * @see #replay(Path, int, Executor)
+     */
+    public static WarmUpReport replay (Path file, int maximumEntries)
+    {
+        return replay(file, maximumEntries, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Warms up the registered factories with the most requested entries of the profile, concurrently on the given executor, and waits for
+     * them to finish. A missing or unreadable profile is logged and results in an empty report.
+     * 
+     * @param file
+     *            A file written by {@link #save(Path)}.
+     * @param maximumEntries
+     *            The number of entries to warm up, the most requested ones are taken.
+     * @param executor
+     *            Runs the constructions.
+     * @return The construction time and failure (if any) of every entry warmed up.
+     */
+    public static WarmUpReport replay (Path file, int maximumEntries, Executor executor)
+    {
+        long start = System.nanoTime();
+        List<Entry> entries;
+        try
+        {
+            entries = Files.exists(file) ? load(file) : Collections.<Entry> emptyList();
+        }
+        catch (IOException e)
+        {
+            log.warn("Could not read the warm-up profile " + file, e);
+            entries = Collections.emptyList();
+        }
+
+        Map<String, List<MethodSignature>> signaturesByFactory = new LinkedHashMap<String, List<MethodSignature>>();
+        for (Entry entry : entries.subList(0, Math.min(maximumEntries, entries.size())))
+        {
+            List<MethodSignature> signatures = signaturesByFactory.get(entry.getFactoryClass());
+            if (signatures == null)
+            {
+                signatures = new ArrayList<MethodSignature>();
+                signaturesByFactory.put(entry.getFactoryClass(), signatures);
+            }
+            signatures.add(entry.getSignature());
+        }
+
+        registerFactories(signaturesByFactory.keySet());
+        List<CompletableFuture<WarmUpReport.Result>> warmUps = new ArrayList<CompletableFuture<WarmUpReport.Result>>();
+        for (BaseParameterizedFactory factory : FactoryRegistry.getFactories())
+        {
+            List<MethodSignature> signatures = signaturesByFactory.get(factory.getClass().getName());
+            if (signatures != null)
+            {
+                warmUps.addAll(factory.startWarmUp(signatures, executor));
+            }
+        }
+        return WarmUpReport.await(warmUps, start);
+    }
+
+    /**
+     * @return The recording in progress or null.
+     */
+    static Recording getRecording ()
+    {
+        return recording;
+    }
+
+    /**
+     * @return The parameters to count a request under: the parameters themselves if they can be written by value, otherwise as many
+     *         placeholders.
+     */
+    static Object[] recordedParameters (Object[] parameters)
+    {
+        if (parameters == null)
+        {
+            return null;
+        }
+        for (Object parameter : parameters)
+        {
+            if (!isWritable(parameter))
+            {
+                if (parameters.length < PLACEHOLDERS.length)
+                {
+                    return PLACEHOLDERS[parameters.length];
+                }
+                Object[] placeholders = new Object[parameters.length];
+                Arrays.fill(placeholders, UNWRITABLE);
+                return placeholders;
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Registers the singletons of the named factory classes which have not registered yet, a factory registers itself only on its first
+     * request and the profile is replayed before any.
+     */
+    private static void registerFactories (Collection<String> factoryClassNames)
+    {
+        List<String> registered = new ArrayList<String>();
+        for (BaseParameterizedFactory factory : FactoryRegistry.getFactories())
+        {
+            registered.add(factory.getClass().getName());
+        }
+        for (String factoryClassName : factoryClassNames)
+        {
+            if (registered.contains(factoryClassName))
+            {
+                continue;
+            }
+            try
+            {
+                if (!FactoryRegistry.registerSingletons(loadClass(factoryClassName)))
+                {
+                    log.debug("Skipping the warm-up profile entries of {} as it has no singleton", factoryClassName);
+                }
+            }
+            catch (ClassNotFoundException e)
+            {
+                log.debug("Skipping the warm-up profile entries of {} as it cannot be loaded", factoryClassName);
+            }
+        }
+    }
+
+    private static void write (DataOutputStream out, List<Entry> entries) throws IOException
+    {
+        List<byte[]> encoded = new ArrayList<byte[]>(entries.size());
+        for (Entry entry : entries)
+        {
+            byte[] bytes = encode(entry);
+            if (bytes != null)
+            {
+                encoded.add(bytes);
+            }
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(encoded.size());
+        for (byte[] bytes : encoded)
+        {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return The entry as written to the file or null if one of its parameters cannot be written by value.
+     */
+    private static byte[] encode (Entry entry) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, entry.getFactoryClass());
+        out.writeLong(entry.getCount());
+        Class[] parameterTypes = entry.getSignature().getParameterTypes();
+        Object[] parameters = entry.getSignature().getParameters();
+        out.writeShort(parameterTypes.length);
+        for (int i = 0; i < parameterTypes.length; i++)
+        {
+            writeString(out, parameterTypes[i].getName());
+            if (!writeValue(out, parameters[i]))
+            {
+                return null;
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static boolean writeValue (DataOutputStream out, Object value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof String)
+        {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof Integer)
+        {
+            out.writeByte(INTEGER);
+            out.writeInt(((Integer) value).intValue());
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong(((Long) value).longValue());
+        }
+        else if (value instanceof Short)
+        {
+            out.writeByte(SHORT);
+            out.writeShort(((Short) value).shortValue());
+        }
+        else if (value instanceof Byte)
+        {
+            out.writeByte(BYTE);
+            out.writeByte(((Byte) value).byteValue());
+        }
+        else if (value instanceof Character)
+        {
+            out.writeByte(CHARACTER);
+            out.writeChar(((Character) value).charValue());
+        }
+        else if (value instanceof Boolean)
+        {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(((Boolean) value).booleanValue());
+        }
+        else if (value instanceof Float)
+        {
+            out.writeByte(FLOAT);
+            out.writeFloat(((Float) value).floatValue());
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Double) value).doubleValue());
+        }
+        else if (value instanceof Enum)
+        {
+            out.writeByte(ENUM);
+            writeString(out, ((Enum) value).getDeclaringClass().getName());
+            writeString(out, ((Enum) value).name());
+        }
+        else if (value instanceof Class)
+        {
+            out.writeByte(CLASS);
+            writeString(out, ((Class) value).getName());
+        }
+        else
+        {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isWritable (Object value)
+    {
+        return value == null || value instanceof String || value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte || value instanceof Character || value instanceof Boolean || value instanceof Float
+                || value instanceof Double || value instanceof Enum || value instanceof Class;
+    }
+
+    private static void writeString (DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Counts and lengths are checked against the bytes left before anything is allocated, so a corrupt file fails with an IOException
+     * rather than a runtime exception or an out of memory error.
+     */
+    static List<Entry> read (ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            return readEntries(buffer);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("The warm-up profile is truncated", e);
+        }
+    }
+
+    private static List<Entry> readEntries (ByteBuffer buffer) throws IOException
+    {
+        if (buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+        {
+            throw new IOException("Not a warm-up profile");
+        }
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / MINIMUM_ENTRY_BYTES)
+        {
+            throw new IOException("Corrupt warm-up profile, " + count + " entries cannot fit in " + buffer.remaining() + " bytes");
+        }
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String factoryClass = readString(buffer);
+            long requests = buffer.getLong();
+            int arity = buffer.getShort() & 0xFFFF;
+            if (arity > buffer.remaining() / MINIMUM_PARAMETER_BYTES)
+            {
+                throw new IOException("Corrupt warm-up profile, " + arity + " parameters cannot fit in " + buffer.remaining() + " bytes");
+            }
+            String[] typeNames = new String[arity];
+            Object[] values = new Object[arity];
+            boolean resolvable = true;
+            for (int p = 0; p < arity; p++)
+            {
+                typeNames[p] = readString(buffer);
+                try
+                {
+                    values[p] = readValue(buffer);
+                }
+                catch (ReflectiveOperationException e)
+                {
+                    // readValue has consumed the value, so the following entries can still be read.
+                    resolvable = false;
+                }
+            }
+            Class[] parameterTypes = resolvable ? resolveTypes(typeNames) : null;
+            if (parameterTypes == null)
+            {
+                log.debug("Skipping the warm-up profile entry of {} as its classes cannot be loaded", factoryClass);
+                continue;
+            }
+            entries.add(new Entry(factoryClass, new MethodSignature(parameterTypes, values), requests));
+        }
+        return entries;
+    }
+
+    private static Object readValue (ByteBuffer buffer) throws ReflectiveOperationException, IOException
+    {
+        byte tag = buffer.get();
+        switch (tag)
+        {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(buffer);
+            case INTEGER:
+                return Integer.valueOf(buffer.getInt());
+            case LONG:
+                return Long.valueOf(buffer.getLong());
+            case SHORT:
+                return Short.valueOf(buffer.getShort());
+            case BYTE:
+                return Byte.valueOf(buffer.get());
+            case CHARACTER:
+                return Character.valueOf(buffer.getChar());
+            case BOOLEAN:
+                return Boolean.valueOf(buffer.get() != 0);
+            case FLOAT:
+                return Float.valueOf(buffer.getFloat());
+            case DOUBLE:
+                return Double.valueOf(buffer.getDouble());
+            case ENUM:
+                String enumClass = readString(buffer);
+                String constant = readString(buffer);
+                try
+                {
+                    return Enum.valueOf(loadClass(enumClass), constant);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new NoSuchFieldException(enumClass + "." + constant);
+                }
+            case CLASS:
+                return loadClass(readString(buffer));
+            default:
+                throw new IOException("Unknown value in warm-up profile: " + tag);
+        }
+    }
+
+    private static String readString (ByteBuffer buffer) throws IOException
+    {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+        {
+            throw new IOException("Corrupt warm-up profile, a string of " + length + " bytes cannot fit in " + buffer.remaining()
+                    + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The classes or null if one of them cannot be loaded.
+     */
+    private static Class[] resolveTypes (String[] typeNames)
+    {
+        Class[] types = new Class[typeNames.length];
+        for (int i = 0; i < typeNames.length; i++)
+        {
+            try
+            {
+                types[i] = loadClass(typeNames[i]);
+            }
+            catch (ClassNotFoundException e)
+            {
+                return null;
+            }
+        }
+        return types;
+    }
+
+    private static Class loadClass (String name) throws ClassNotFoundException
+    {
+        Class primitive = PRIMITIVE_TYPES.get(name);
+        if (primitive != null)
+        {
+            return primitive;
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return Class.forName(name, false, loader != null ? loader : WarmUpProfile.class.getClassLoader());
+    }
+
+    /**
+     * A factory and parameter list together with the number of times it was requested.
+     */
+    public static final class Entry
+    {
+        private final String factoryClass;
+        private final MethodSignature signature;
+        private final long count;
+
+        Entry(String factoryClass, MethodSignature signature, long count)
+        {
+            this.factoryClass = factoryClass;
+            this.signature = signature;
+            this.count = count;
+        }
+
+        /**
+         * @return The name of the factory class.
+         */
+        public String getFactoryClass ()
+        {
+            return factoryClass;
+        }
+
+        public MethodSignature getSignature ()
+        {
+            return signature;
+        }
+
+        /**
+         * @return The number of requests recorded.
+         */
+        public long getCount ()
+        {
+            return count;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return factoryClass + " " + signature.getNumberOfParams() + " parameter(s) requested " + count + " times";
+        }
+    }
+
+    /**
+     * The request counts of a run, per factory class and parameter list.
+     */
+    static final class Recording
+    {
+        private final ConcurrentHashMap<Class, ConcurrentHashMap<InstanceKey, LongAdder>> countsByFactory =
+                new ConcurrentHashMap<Class, ConcurrentHashMap<InstanceKey, LongAdder>>();
+
+        /**
+         * @return The counts of the given factory class keyed by parameter list.
+         */
+        ConcurrentHashMap<InstanceKey, LongAdder> countsOf (Class factoryClass)
+        {
+            ConcurrentHashMap<InstanceKey, LongAdder> counts = countsByFactory.get(factoryClass);
+            if (counts == null)
+            {
+                counts = new ConcurrentHashMap<InstanceKey, LongAdder>();
+                ConcurrentHashMap<InstanceKey, LongAdder> existing = countsByFactory.putIfAbsent(factoryClass, counts);
+                if (existing != null)
+                {
+                    counts = existing;
+                }
+            }
+            return counts;
+        }
+
+        List<Entry> entries ()
+        {
+            List<Entry> entries = new ArrayList<Entry>();
+            for (Map.Entry<Class, ConcurrentHashMap<InstanceKey, LongAdder>> factory : countsByFactory.entrySet())
+            {
+                for (Map.Entry<InstanceKey, LongAdder> key : factory.getValue().entrySet())
+                {
+                    MethodSignature signature = new MethodSignature(key.getKey().getParameterTypes(), key.getKey().getParameters());
+                    entries.add(new Entry(factory.getKey().getName(), signature, key.getValue().sum()));
+                }
+            }
+            Collections.sort(entries, new Comparator<Entry>()
+            {
+                @Override
+                public int compare (Entry first, Entry second)
+                {
+                    return Long.compare(second.getCount(), first.getCount());
+                }
+            });
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package info.tholstrup.utils.factory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The outcome of warming up one or more factories: how long each instance took to construct and which constructions failed.
+ */
+public final class WarmUpReport
+{
+    private final List<Result> results;
+    private final long elapsedNanos;
+
+    WarmUpReport(List<Result> results, long elapsedNanos)
+    {
+        this.results = Collections.unmodifiableList(results);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Waits for the given warm-ups to finish and gathers their results.
+     */
+    static WarmUpReport await (List<CompletableFuture<Result>> warmUps, long startNanos)
+    {
+        List<Result> results = new ArrayList<Result>(warmUps.size());
+        for (CompletableFuture<Result> warmUp : warmUps)
+        {
+            results.add(warmUp.join());
+        }
+        return new WarmUpReport(results, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return The result of every warmed up key.
+     */
+    public List<Result> getResults ()
+    {
+        return results;
+    }
+
+    /**
+     * @return The results of the keys whose construction failed.
+     */
+    public List<Result> getFailures ()
+    {
+        List<Result> failures = new ArrayList<Result>();
+        for (Result result : results)
+        {
+            if (!result.isSuccessful())
+            {
+                failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return True if every construction succeeded.
+     */
+    public boolean isSuccessful ()
+    {
+        for (Result result : results)
+        {
+            if (!result.isSuccessful())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The wall clock time the whole warm-up took in nanoseconds.
+     */
+    public long getElapsedNanos ()
+    {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "Warmed up " + results.size() + " instances with " + getFailures().size() + " failures in " + elapsedNanos / 1000000
+                + " milliseconds.";
+    }
+
+    /**
+     * The outcome of warming up a single key of a factory.
+     */
+    public static final class Result
+    {
+        private final Class factoryClass;
+        private final MethodSignature signature;
+        private final long constructionNanos;
+        private final Throwable failure;
+
+        Result(Class factoryClass, MethodSignature signature, long constructionNanos, Throwable failure)
+        {
+            this.factoryClass = factoryClass;
+            this.signature = signature;
+            this.constructionNanos = constructionNanos;
+            this.failure = failure;
+        }
+
+        public Class getFactoryClass ()
+        {
+            return factoryClass;
+        }
+
+        public MethodSignature getSignature ()
+        {
+            return signature;
+        }
+
+        /**
+         * @return How long getting the instance took in nanoseconds, including any time spent waiting on another thread constructing it.
+         */
+        public long getConstructionNanos ()
+        {
+            return constructionNanos;
+        }
+
+        /**
+         * @return The exception the construction failed with or null if it succeeded.
+         */
+        public Throwable getFailure ()
+        {
+            return failure;
+        }
+
+        public boolean isSuccessful ()
+        {
+            return failure == null;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return factoryClass.getName() + " " + signature.getNumberOfParams() + " parameter(s) took " + constructionNanos / 1000
+                    + " microseconds" + (failure == null ? "." : " and failed with " + failure + ".");
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package info.tholstrup.utils.factory.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a factory for every class annotated with {@link info.tholstrup.utils.factory.Factory}. Each constructor gets a strongly typed
+ * getInstance method, declared with the parameter types of the constructor, which builds a key of its arity from the parameters and
+ * passes it to _getKeyedInstance together with an {@link info.tholstrup.utils.factory.InstanceConstructor} calling that constructor
+ * directly. The generated factory also overrides constructInstance to call the constructors directly when instances are requested with
+ * parameter type arrays, which it tells apart by comparing them to its constant arrays.
+ */
+public class FactoryProcessor extends AbstractProcessor
+{
+    private static final String FACTORY_ANNOTATION = "info.tholstrup.utils.factory.Factory";
+    private static final String INSTANCE_KEY = "info.tholstrup.utils.factory.InstanceKey";
+    private static final String INSTANCE_CONSTRUCTOR = "info.tholstrup.utils.factory.InstanceConstructor";
+    /**
+     * The highest arity {@link #INSTANCE_KEY} has a factory method without arrays for.
+     */
+    private static final int MAXIMUM_KEY_FIELDS = 3;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes ()
+    {
+        return Collections.singleton(FACTORY_ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion ()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process (Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment)
+    {
+        TypeElement factoryAnnotation = processingEnv.getElementUtils().getTypeElement(FACTORY_ANNOTATION);
+        if (factoryAnnotation == null)
+        {
+            return false;
+        }
+        for (Element element : roundEnvironment.getElementsAnnotatedWith(factoryAnnotation))
+        {
+            if (isFactoryable(element))
+            {
+                generateFactory((TypeElement) element, annotationOf(element, factoryAnnotation));
+            }
+        }
+        return true;
+    }
+
+    private boolean isFactoryable (Element element)
+    {
+        if (element.getKind() != ElementKind.CLASS)
+        {
+            error(element, "@Factory can only be applied to classes");
+            return false;
+        }
+        TypeElement type = (TypeElement) element;
+        if (type.getModifiers().contains(Modifier.ABSTRACT))
+        {
+            error(element, "@Factory cannot be applied to abstract classes");
+            return false;
+        }
+        if (type.getNestingKind() != NestingKind.TOP_LEVEL
+                && (type.getNestingKind() != NestingKind.MEMBER || !type.getModifiers().contains(Modifier.STATIC)))
+        {
+            error(element, "@Factory can only be applied to top level or static nested classes");
+            return false;
+        }
+        if (!type.getTypeParameters().isEmpty())
+        {
+            error(element, "@Factory cannot be applied to generic classes");
+            return false;
+        }
+        return true;
+    }
+
+    private void generateFactory (TypeElement type, AnnotationMirror annotation)
+    {
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String name = (String) valueOf(annotation, "name", "");
+        String factoryName = name.isEmpty() ? type.getSimpleName() + "Factory" : name;
+        String qualifiedFactoryName = packageName.isEmpty() ? factoryName : packageName + "." + factoryName;
+        String typeName = type.getQualifiedName().toString();
+        boolean cached = ((Boolean) valueOf(annotation, "cached", Boolean.FALSE)).booleanValue();
+
+        List<ExecutableElement> constructors = new ArrayList<ExecutableElement>();
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements()))
+        {
+            if (!constructor.getModifiers().contains(Modifier.PRIVATE))
+            {
+                constructors.add(constructor);
+            }
+        }
+        if (constructors.isEmpty())
+        {
+            error(type, "@Factory needs a constructor which is not private");
+            return;
+        }
+
+        try
+        {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedFactoryName, type);
+            PrintWriter out = new PrintWriter(file.openWriter());
+            try
+            {
+                writeFactory(out, packageName, factoryName, typeName, cached, annotation, constructors);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            error(type, "Could not write " + qualifiedFactoryName + ": " + e.getMessage());
+        }
+    }
+
+    private void writeFactory (PrintWriter out, String packageName, String factoryName, String typeName, boolean cached,
+            AnnotationMirror annotation, List<ExecutableElement> constructors)
+    {
+        if (!packageName.isEmpty())
+        {
+            out.println("package " + packageName + ";");
+            out.println();
+        }
+        out.println("/**");
+        out.println(" * Factory for the {@link " + typeName + "} class, generated from its Factory annotation.");
+        out.println(" */");
+        out.println("@javax.annotation.processing.Generated(\"" + FactoryProcessor.class.getName() + "\")");
+        out.println("@SuppressWarnings({ \"rawtypes\", \"unchecked\" })");
+        out.println("public class " + factoryName + " extends info.tholstrup.utils.factory.BaseParameterizedFactory<" + typeName + ">");
+        out.println("{");
+        out.println("    private static final " + factoryName + " factoryInstance =");
+        out.println("            info.tholstrup.utils.factory.FactoryRegistry.register(new " + factoryName + "());");
+        for (int i = 0; i < constructors.size(); i++)
+        {
+            out.println("    private static final Class[] PARAMETER_TYPES_" + i + " = new Class[] { "
+                    + parameterTypeList(constructors.get(i)) + " };");
+        }
+        for (int i = 0; i < constructors.size(); i++)
+        {
+            ExecutableElement constructor = constructors.get(i);
+            if (constructor.getParameters().isEmpty())
+            {
+                continue;
+            }
+            out.println("    private static final " + INSTANCE_CONSTRUCTOR + "<" + typeName + "> CONSTRUCTOR_" + i + " = new "
+                    + INSTANCE_CONSTRUCTOR + "<" + typeName + ">()");
+            out.println("    {");
+            out.println("        public " + typeName + " construct (" + INSTANCE_KEY + " key)");
+            out.println("        {");
+            StringBuilder arguments = new StringBuilder();
+            for (int p = 0; p < constructor.getParameters().size(); p++)
+            {
+                arguments.append(p > 0 ? ", " : "").append("(").append(castType(constructor, constructor.getParameters().get(p)))
+                        .append(") key.getParameter(").append(p).append(")");
+            }
+            writeConstruction(out, "            ", typeName, arguments.toString(), constructor);
+            out.println("        }");
+            out.println("    };");
+        }
+        out.println();
+        out.println("    /**");
+        out.println("     * Private constructor to prevent direct instanciation.");
+        out.println("     */");
+        out.println("    private " + factoryName + "()");
+        out.println("    {");
+        out.println("        log = org.slf4j.LoggerFactory.getLogger(" + typeName + ".class);");
+        out.println("        defaultCreateNewInstanceEachTime = " + !cached + ";");
+        out.println("        defaultImplementationClass = " + typeName + ".class;");
+        out.println("        debugInvocationHandlers = new Class[] { " + classList(annotation, "debug") + " };");
+        out.println("        traceInvocationHandlers = new Class[] { " + classList(annotation, "trace") + " };");
+        out.println("    }");
+        out.println();
+        out.println("    /**");
+        out.println("     * @return An instance of this factory.");
+        out.println("     */");
+        out.println("    public static " + factoryName + " getFactoryInstance ()");
+        out.println("    {");
+        out.println("        return factoryInstance;");
+        out.println("    }");
+        for (int i = 0; i < constructors.size(); i++)
+        {
+            ExecutableElement constructor = constructors.get(i);
+            List<? extends VariableElement> parameters = constructor.getParameters();
+            if (parameters.isEmpty())
+            {
+                // the no argument getInstance() of BaseParameterizedFactory already does this.
+                continue;
+            }
+            out.println();
+            out.println("    /**");
+            out.println("     * @return An instance of the " + typeName + " class.");
+            out.println("     */");
+            out.print("    public " + typeName + " getInstance (");
+            for (int p = 0; p < parameters.size(); p++)
+            {
+                out.print((p > 0 ? ", " : "") + declaredType(constructor, parameters.get(p)) + " " + parameters.get(p).getSimpleName());
+            }
+            out.println(")");
+            out.println("    {");
+            out.print("        return _getKeyedInstance(" + INSTANCE_KEY + ".of(");
+            if (parameters.size() > MAXIMUM_KEY_FIELDS)
+            {
+                out.print("PARAMETER_TYPES_" + i + ", new Object[] { ");
+                for (int p = 0; p < parameters.size(); p++)
+                {
+                    out.print((p > 0 ? ", " : "") + parameters.get(p).getSimpleName());
+                }
+                out.print(" }");
+            }
+            else
+            {
+                for (int p = 0; p < parameters.size(); p++)
+                {
+                    out.print((p > 0 ? ", " : "") + erasure(parameters.get(p).asType()) + ".class, " + parameters.get(p).getSimpleName());
+                }
+            }
+            out.println("), CONSTRUCTOR_" + i + ");");
+            out.println("    }");
+        }
+        out.println();
+        out.println("    @Override");
+        out.println("    protected " + typeName + " constructInstance (Class[] parameterTypes, Object[] parameters)");
+        out.println("    {");
+        for (int i = 0; i < constructors.size(); i++)
+        {
+            List<? extends VariableElement> parameters = constructors.get(i).getParameters();
+            if (parameters.isEmpty())
+            {
+                out.println("        if (parameterTypes == null || parameterTypes.length == 0)");
+            }
+            else
+            {
+                String constant = "PARAMETER_TYPES_" + i;
+                out.println("        if (parameterTypes == " + constant + " || java.util.Arrays.equals(parameterTypes, " + constant + "))");
+            }
+            out.println("        {");
+            StringBuilder arguments = new StringBuilder();
+            for (int p = 0; p < parameters.size(); p++)
+            {
+                arguments.append(p > 0 ? ", " : "").append("(").append(boxed(parameters.get(p).asType())).append(") parameters[")
+                        .append(p).append("]");
+            }
+            writeConstruction(out, "            ", typeName, arguments.toString(), constructors.get(i));
+            out.println("        }");
+        }
+        out.println("        return null;");
+        out.println("    }");
+        out.println("}");
+    }
+
+    /**
+     * Writes the statement returning a new instance. If the constructor declares checked exceptions they are rethrown wrapped in a
+     * RuntimeException around an InvocationTargetException, as when the constructor is called reflectively.
+     */
+    private void writeConstruction (PrintWriter out, String indent, String typeName, String arguments, ExecutableElement constructor)
+    {
+        if (!throwsCheckedExceptions(constructor))
+        {
+            out.println(indent + "return new " + typeName + "(" + arguments + ");");
+            return;
+        }
+        out.println(indent + "try");
+        out.println(indent + "{");
+        out.println(indent + "    return new " + typeName + "(" + arguments + ");");
+        out.println(indent + "}");
+        out.println(indent + "catch (RuntimeException e)");
+        out.println(indent + "{");
+        out.println(indent + "    throw e;");
+        out.println(indent + "}");
+        out.println(indent + "catch (Exception e)");
+        out.println(indent + "{");
+        out.println(indent + "    throw new RuntimeException(new java.lang.reflect.InvocationTargetException(e));");
+        out.println(indent + "}");
+    }
+
+    private boolean throwsCheckedExceptions (ExecutableElement constructor)
+    {
+        Types types = processingEnv.getTypeUtils();
+        Elements elements = processingEnv.getElementUtils();
+        TypeMirror runtimeException = elements.getTypeElement(RuntimeException.class.getName()).asType();
+        TypeMirror error = elements.getTypeElement(Error.class.getName()).asType();
+        for (TypeMirror thrownType : constructor.getThrownTypes())
+        {
+            if (!types.isAssignable(thrownType, runtimeException) && !types.isAssignable(thrownType, error))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String parameterTypeList (ExecutableElement constructor)
+    {
+        StringBuilder types = new StringBuilder();
+        for (VariableElement parameter : constructor.getParameters())
+        {
+            if (types.length() > 0)
+            {
+                types.append(", ");
+            }
+            types.append(erasure(parameter.asType())).append(".class");
+        }
+        return types.toString();
+    }
+
+    private String classList (AnnotationMirror annotation, String attribute)
+    {
+        StringBuilder classes = new StringBuilder();
+        Object value = valueOf(annotation, attribute, Collections.emptyList());
+        for (Object item : (List<?>) value)
+        {
+            if (classes.length() > 0)
+            {
+                classes.append(", ");
+            }
+            classes.append(erasure((TypeMirror) ((AnnotationValue) item).getValue())).append(".class");
+        }
+        return classes.toString();
+    }
+
+    private String erasure (TypeMirror type)
+    {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    /**
+     * @return The type of a constructor parameter as declared, or its erasure if the constructor declares type variables (which the
+     *         factory cannot declare).
+     */
+    private String declaredType (ExecutableElement constructor, VariableElement parameter)
+    {
+        if (!constructor.getTypeParameters().isEmpty())
+        {
+            return erasure(parameter.asType());
+        }
+        return parameter.asType().toString();
+    }
+
+    /**
+     * @return The type to cast a parameter held by a key to, the wrapper for primitives (which javac then unboxes).
+     */
+    private String castType (ExecutableElement constructor, VariableElement parameter)
+    {
+        if (parameter.asType().getKind().isPrimitive())
+        {
+            return boxed(parameter.asType());
+        }
+        return declaredType(constructor, parameter);
+    }
+
+    /**
+     * @return The type to cast a parameter to, the wrapper for primitives (which javac then unboxes).
+     */
+    private String boxed (TypeMirror type)
+    {
+        if (type.getKind().isPrimitive())
+        {
+            return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        return erasure(type);
+    }
+
+    private static AnnotationMirror annotationOf (Element element, TypeElement annotationType)
+    {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors())
+        {
+            if (annotation.getAnnotationType().asElement().equals(annotationType))
+            {
+                return annotation;
+            }
+        }
+        throw new IllegalStateException(element + " is not annotated with " + annotationType);
+    }
+
+    private static Object valueOf (AnnotationMirror annotation, String attribute, Object defaultValue)
+    {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues().entrySet())
+        {
+            if (entry.getKey().getSimpleName().contentEquals(attribute))
+            {
+                return entry.getValue().getValue();
+            }
+        }
+        return defaultValue;
+    }
+
+    private static PackageElement packageOf (Element element)
+    {
+        while (element.getKind() != ElementKind.PACKAGE)
+        {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    private void error (Element element, String message)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,44 @@
+package info.tholstrup.utils.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ConcurrentInstanceCacheTest
+{
+    @Test
+    public void referencedEntriesGetASecondChance ()
+    {
+        final List<String> evicted = new ArrayList<String>();
+        ConcurrentInstanceCache<String, String> cache = new ConcurrentInstanceCache<String, String>(2);
+        cache.setEvictionListener((key, value) -> evicted.add(key));
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.put("c", "C");
+
+        assertEquals(2, cache.size());
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(List.of("b"), evicted);
+    }
+
+    @Test
+    public void cacheStaysBoundedWhenEveryEntryIsReferenced ()
+    {
+        ConcurrentInstanceCache<Integer, Integer> cache = new ConcurrentInstanceCache<Integer, Integer>(10);
+        for (int i = 0; i < 100; i++)
+        {
+            cache.put(Integer.valueOf(i), Integer.valueOf(i));
+            for (int j = 0; j <= i; j++)
+            {
+                cache.get(Integer.valueOf(j));
+            }
+        }
+        assertEquals(10, cache.size());
+    }
+}
@@ -0,0 +1,102 @@
+package info.tholstrup.utils.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class ExpiringInstanceCacheTest
+{
+    @Test
+    public void entriesExpireAfterWrite () throws InterruptedException
+    {
+        final List<String> evicted = new ArrayList<String>();
+        ExpiringInstanceCache<String, String> cache =
+                new ExpiringInstanceCache<String, String>(new UnboundedInstanceCache<String, String>(), 100, 0, TimeUnit.MILLISECONDS);
+        cache.setEvictionListener((key, value) -> evicted.add(key));
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"));
+
+        Thread.sleep(150);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(List.of("a"), evicted);
+    }
+
+    @Test
+    public void entriesExpireAfterAccess () throws InterruptedException
+    {
+        ExpiringInstanceCache<String, String> cache =
+                new ExpiringInstanceCache<String, String>(new UnboundedInstanceCache<String, String>(), 0, 200, TimeUnit.MILLISECONDS);
+        cache.put("a", "A");
+        for (int i = 0; i < 8; i++)
+        {
+            Thread.sleep(50);
+            assertEquals("A", cache.get("a"));
+        }
+
+        Thread.sleep(300);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void dueEntriesAreRefreshedWhileTheOldValueIsServed () throws InterruptedException
+    {
+        final AtomicInteger refreshes = new AtomicInteger();
+        ExpiringInstanceCache<String, String> cache = new ExpiringInstanceCache<String, String>(
+                new UnboundedInstanceCache<String, String>(), 10000, 0, 50, TimeUnit.MILLISECONDS);
+        cache.setRefresher((key, oldValue) -> {
+            refreshes.incrementAndGet();
+            return oldValue + "'";
+        }, Runnable::run);
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"));
+        assertEquals(0, refreshes.get());
+
+        Thread.sleep(80);
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, refreshes.get());
+        assertEquals("A'", cache.get("a"));
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    public void failedRefreshKeepsTheOldValue () throws InterruptedException
+    {
+        ExpiringInstanceCache<String, String> cache = new ExpiringInstanceCache<String, String>(
+                new UnboundedInstanceCache<String, String>(), 0, 0, 50, TimeUnit.MILLISECONDS);
+        cache.setRefresher((key, oldValue) -> null, Runnable::run);
+        cache.put("a", "A");
+
+        Thread.sleep(80);
+        assertEquals("A", cache.get("a"));
+        assertEquals("A", cache.get("a"));
+    }
+
+    @Test
+    public void boundedDelegateEvictionsAreForwarded ()
+    {
+        final List<String> evicted = new ArrayList<String>();
+        ExpiringInstanceCache<String, String> cache =
+                new ExpiringInstanceCache<String, String>(new LruInstanceCache<String, String>(1), 1, 0, TimeUnit.HOURS);
+        cache.setEvictionListener((key, value) -> evicted.add(key));
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertNull(cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertEquals(List.of("a"), evicted);
+    }
+
+    @Test
+    public void negativeTimesAreRejected ()
+    {
+        assertThrows(IllegalArgumentException.class, () -> new ExpiringInstanceCache<String, String>(
+                new UnboundedInstanceCache<String, String>(), -1, 0, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,108 @@
+package info.tholstrup.utils.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class InstanceCacheTest
+{
+    @Test
+    public void lruEvictsTheLeastRecentlyUsedEntry ()
+    {
+        final List<String> evicted = new ArrayList<String>();
+        LruInstanceCache<String, String> cache = new LruInstanceCache<String, String>(2);
+        cache.setEvictionListener((key, value) -> evicted.add(key));
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.put("c", "C");
+
+        assertEquals(2, cache.size());
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(List.of("b"), evicted);
+    }
+
+    @Test
+    public void lruHonoursTheWeigher ()
+    {
+        LruInstanceCache<String, String> cache = new LruInstanceCache<String, String>(5, (key, value) -> value.length());
+        cache.put("a", "aaa");
+        cache.put("b", "bb");
+        assertEquals(2, cache.size());
+        cache.put("c", "c");
+        assertNull(cache.get("a"));
+        assertEquals("bb", cache.get("b"));
+        assertEquals("c", cache.get("c"));
+    }
+
+    /**
+     * @return The number of the 100 popular entries still cached after a scan of one-off entries.
+     */
+    private static int popularEntriesAfterScan (InstanceCache<String, String> cache)
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            cache.put("hot" + i, "value");
+        }
+        for (int round = 0; round < 5; round++)
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                cache.get("hot" + i);
+            }
+        }
+        // short enough for the sketch not to age the counts of the popular entries.
+        for (int i = 0; i < 150; i++)
+        {
+            cache.get("cold" + i);
+            cache.put("cold" + i, "value");
+        }
+        assertEquals(100, cache.size());
+        int popularEntries = 0;
+        for (int i = 0; i < 100; i++)
+        {
+            if (cache.get("hot" + i) != null)
+            {
+                popularEntries++;
+            }
+        }
+        return popularEntries;
+    }
+
+    @Test
+    public void tinyLfuKeepsPopularEntriesDuringAScan ()
+    {
+        assertEquals(0, popularEntriesAfterScan(new LruInstanceCache<String, String>(100)));
+        int popularEntries = popularEntriesAfterScan(new TinyLfuInstanceCache<String, String>(100));
+        assertTrue(popularEntries >= 90, String.valueOf(popularEntries));
+    }
+
+    @Test
+    public void removeAndClearEmptyTheCache ()
+    {
+        TinyLfuInstanceCache<String, String> cache = new TinyLfuInstanceCache<String, String>(10);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertEquals("A", cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void nullValuesAndNegativeSizesAreRejected ()
+    {
+        assertThrows(IllegalArgumentException.class, () -> new LruInstanceCache<String, String>(-1));
+        assertThrows(IllegalArgumentException.class, () -> new TinyLfuInstanceCache<String, String>(-1));
+        assertThrows(IllegalArgumentException.class, () -> new LruInstanceCache<String, String>(1).put("a", null));
+    }
+}
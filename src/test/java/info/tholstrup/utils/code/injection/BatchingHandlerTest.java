@@ -0,0 +1,93 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class BatchingHandlerTest
+{
+    public interface Lengths
+    {
+        @Batchable(bulkMethod = "lengthsOf", maxBatchSize = 2, maxDelay = 1, unit = TimeUnit.HOURS)
+        CompletableFuture<Integer> lengthOf (String text);
+
+        List<Integer> lengthsOf (List<String> texts);
+
+        @Batchable(bulkMethod = "knownLengthsOf", maxBatchSize = 1)
+        int knownLengthOf (String text);
+
+        Map<String, Integer> knownLengthsOf (List<String> texts);
+    }
+
+    public static class LengthsImpl implements Lengths
+    {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        public CompletableFuture<Integer> lengthOf (String text)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public synchronized List<Integer> lengthsOf (List<String> texts)
+        {
+            batches.add(new ArrayList<String>(texts));
+            List<Integer> lengths = new ArrayList<Integer>();
+            for (String text : texts)
+            {
+                lengths.add(Integer.valueOf(text.length()));
+            }
+            return lengths;
+        }
+
+        public int knownLengthOf (String text)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, Integer> knownLengthsOf (List<String> texts)
+        {
+            Map<String, Integer> lengths = new HashMap<String, Integer>();
+            for (String text : texts)
+            {
+                if (!text.startsWith("?"))
+                {
+                    lengths.put(text, Integer.valueOf(text.length()));
+                }
+            }
+            return lengths;
+        }
+    }
+
+    @Test
+    public void fullBatchRunsAndCancelsItsFlush () throws InterruptedException, ExecutionException
+    {
+        int scheduledBefore = BatchingHandler.getScheduledFlushCount();
+        Lengths lengths = (Lengths) ProxyAssistant.createProxiedInstance(LengthsImpl.class, new Class[] { BatchingHandler.class });
+        CompletableFuture<Integer> first = lengths.lengthOf("a");
+        assertEquals(scheduledBefore + 1, BatchingHandler.getScheduledFlushCount());
+        CompletableFuture<Integer> second = lengths.lengthOf("bcd");
+
+        assertEquals(1, first.get().intValue());
+        assertEquals(3, second.get().intValue());
+        assertEquals(scheduledBefore, BatchingHandler.getScheduledFlushCount());
+    }
+
+    @Test
+    public void missingItemFailsWithClearException ()
+    {
+        Lengths lengths = (Lengths) ProxyAssistant.createProxiedInstance(LengthsImpl.class, new Class[] { BatchingHandler.class });
+        assertEquals(4, lengths.knownLengthOf("pear"));
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> lengths.knownLengthOf("?plum"));
+        assertTrue(e.getMessage().contains("did not return a result for ?plum"), e.getMessage());
+    }
+}
@@ -0,0 +1,211 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+public class EntryAndExitHandlerTest
+{
+    public interface Echo
+    {
+        int length (CharSequence text);
+    }
+
+    public static class EchoImpl implements Echo
+    {
+        public int length (CharSequence text)
+        {
+            return text.length();
+        }
+    }
+
+    public interface Recorder
+    {
+        void record (Object first, Object second, Object third, Object fourth);
+
+        void many (int a, int b, int c, int d, int e, int f, int g, int h, int i, int j);
+    }
+
+    public static class RecorderImpl implements Recorder
+    {
+        public void record (Object first, Object second, Object third, Object fourth)
+        {
+        }
+
+        public void many (int a, int b, int c, int d, int e, int f, int g, int h, int i, int j)
+        {
+        }
+    }
+
+    public enum Colour
+    {
+        RED
+        {
+            @Override
+            public String toString ()
+            {
+                toStringCalls++;
+                return "red";
+            }
+        }
+    }
+
+    public static class Amount extends Number
+    {
+        private static final long serialVersionUID = 1L;
+
+        public int intValue ()
+        {
+            return 1;
+        }
+
+        public long longValue ()
+        {
+            return 1;
+        }
+
+        public float floatValue ()
+        {
+            return 1;
+        }
+
+        public double doubleValue ()
+        {
+            return 1;
+        }
+
+        @Override
+        public String toString ()
+        {
+            toStringCalls++;
+            return "one";
+        }
+    }
+
+    static int toStringCalls;
+
+    private Logger logger;
+    private Logger recorderLogger;
+    private ListAppender<ILoggingEvent> appender;
+
+    @BeforeEach
+    public void captureLog ()
+    {
+        logger = (Logger) LoggerFactory.getLogger(EchoImpl.class);
+        appender = new ListAppender<ILoggingEvent>();
+        appender.start();
+        logger.addAppender(appender);
+        logger.setLevel(Level.DEBUG);
+        recorderLogger = (Logger) LoggerFactory.getLogger(RecorderImpl.class);
+        recorderLogger.addAppender(appender);
+        recorderLogger.setLevel(Level.DEBUG);
+    }
+
+    @AfterEach
+    public void restoreDefaults ()
+    {
+        EntryAndExitHandler.setAsynchronous(false);
+        logger.setLevel(null);
+        logger.detachAppender(appender);
+        recorderLogger.setLevel(null);
+        recorderLogger.detachAppender(appender);
+    }
+
+    @Test
+    public void disabledLoggerOnlyCallsThrough ()
+    {
+        logger.setLevel(Level.INFO);
+        Echo echo = (Echo) ProxyAssistant.createProxiedInstance(EchoImpl.class, new Class[] { EntryAndExitHandler.class });
+        assertEquals(3, echo.length("abc"));
+        assertTrue(appender.list.isEmpty());
+    }
+
+    @Test
+    public void asynchronousEntryShowsArgumentsAsPassed () throws InterruptedException
+    {
+        EntryAndExitHandler.setAsynchronous(true);
+        Echo echo = (Echo) ProxyAssistant.createProxiedInstance(EchoImpl.class, new Class[] { EntryAndExitHandler.class });
+        StringBuilder text = new StringBuilder("before");
+        assertEquals(6, echo.length(text));
+        text.setLength(0);
+        text.append("after");
+
+        List<String> messages = awaitMessages(2);
+        assertTrue(messages.get(0).contains("\"before\""), messages.get(0));
+        assertTrue(messages.get(1).contains("returned normally"), messages.get(1));
+    }
+
+    @Test
+    public void longArgumentsAreTruncated ()
+    {
+        Echo echo = (Echo) ProxyAssistant.createProxiedInstance(EchoImpl.class, new Class[] { EntryAndExitHandler.class });
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+        {
+            text.append('x');
+        }
+        echo.length(text);
+
+        String entry = appender.list.get(0).getMessage();
+        assertTrue(entry.length() < 200, entry);
+        assertTrue(entry.contains("..."), entry);
+    }
+
+    @Test
+    public void onlyTrustedValuesArePrinted ()
+    {
+        Recorder recorder = (Recorder) ProxyAssistant.createProxiedInstance(RecorderImpl.class, new Class[] { EntryAndExitHandler.class });
+        int calls = toStringCalls;
+        recorder.record(Colour.RED, new Amount(), Long.valueOf(-7), new int[3]);
+        recorder.record(Double.valueOf(2.5d), Float.valueOf(1.5f), Character.valueOf('c'), null);
+
+        String first = appender.list.get(0).getMessage();
+        assertTrue(first.endsWith("[RED, " + Amount.class.getName() + ", -7, int[3]]"), first);
+        String second = appender.list.get(2).getMessage();
+        assertTrue(second.endsWith("[2.5, 1.5, c, null]"), second);
+        assertEquals(calls, toStringCalls);
+    }
+
+    @Test
+    public void asynchronousEventsAreFormattedByTheWriter () throws InterruptedException
+    {
+        EntryAndExitHandler.setAsynchronous(true);
+        Recorder recorder = (Recorder) ProxyAssistant.createProxiedInstance(RecorderImpl.class, new Class[] { EntryAndExitHandler.class });
+        int calls = toStringCalls;
+        recorder.record(Colour.RED, new Amount(), "text", Boolean.TRUE);
+        recorder.many(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+
+        List<String> messages = awaitMessages(4);
+        assertTrue(messages.get(0).endsWith("[RED, " + Amount.class.getName() + ", \"text\", true]"), messages.get(0));
+        assertTrue(messages.get(2).endsWith("[1, 2, 3, 4, 5, 6, 7, 8, ... 2 more]"), messages.get(2));
+        assertEquals(calls, toStringCalls);
+    }
+
+    private List<String> awaitMessages (int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (appender.list.size() < count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        List<String> messages = new ArrayList<String>();
+        for (ILoggingEvent event : new ArrayList<ILoggingEvent>(appender.list))
+        {
+            messages.add(event.getMessage());
+        }
+        assertEquals(count, messages.size());
+        return messages;
+    }
+}
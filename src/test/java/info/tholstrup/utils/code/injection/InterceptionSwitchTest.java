@@ -0,0 +1,128 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class InterceptionSwitchTest
+{
+    public interface Counter
+    {
+        int next ();
+    }
+
+    public static class CounterImpl implements Counter
+    {
+        private final AtomicInteger value = new AtomicInteger();
+
+        public int next ()
+        {
+            return value.incrementAndGet();
+        }
+    }
+
+    public static class CountingInterceptor implements Interceptor
+    {
+        static final List<CountingInterceptor> created = new CopyOnWriteArrayList<CountingInterceptor>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        public CountingInterceptor(Object delegate)
+        {
+            created.add(this);
+        }
+
+        @Override
+        public Object intercept (Invocation invocation) throws Throwable
+        {
+            calls.incrementAndGet();
+            return invocation.proceed();
+        }
+    }
+
+    @BeforeEach
+    public void clearInterceptors ()
+    {
+        CountingInterceptor.created.clear();
+    }
+
+    @Test
+    public void racingFirstCallsShareOneChain () throws InterruptedException
+    {
+        InterceptionSwitch interceptionSwitch = new InterceptionSwitch(new Class[] { CountingInterceptor.class });
+        final Counter counter =
+                ProxyAssistant.createSwitchableInstance(CounterImpl.class, new Class[] {}, new Object[] {}, interceptionSwitch);
+        final int threads = 8;
+        final int callsPerThread = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++)
+        {
+            Thread caller = new Thread(new Runnable()
+            {
+                @Override
+                public void run ()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < callsPerThread; i++)
+                    {
+                        counter.next();
+                    }
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        start.countDown();
+        for (Thread caller : callers)
+        {
+            caller.join();
+        }
+
+        int interceptorsCalled = 0;
+        int calls = 0;
+        for (CountingInterceptor interceptor : CountingInterceptor.created)
+        {
+            if (interceptor.calls.get() > 0)
+            {
+                interceptorsCalled++;
+                calls += interceptor.calls.get();
+            }
+        }
+        assertEquals(1, interceptorsCalled);
+        assertEquals(threads * callsPerThread, calls);
+    }
+
+    @Test
+    public void switchingRebuildsTheInterceptors ()
+    {
+        InterceptionSwitch interceptionSwitch = new InterceptionSwitch(new Class[] { CountingInterceptor.class });
+        Counter counter = ProxyAssistant.createSwitchableInstance(CounterImpl.class, new Class[] {}, new Object[] {}, interceptionSwitch);
+        counter.next();
+        CountingInterceptor first = CountingInterceptor.created.get(0);
+
+        interceptionSwitch.setHandlers(new Class[] {});
+        counter.next();
+        assertEquals(1, first.calls.get());
+
+        interceptionSwitch.setHandlers(new Class[] { CountingInterceptor.class });
+        assertEquals(3, counter.next());
+        CountingInterceptor second = CountingInterceptor.created.get(CountingInterceptor.created.size() - 1);
+        assertNotSame(first, second);
+        assertEquals(1, second.calls.get());
+    }
+}
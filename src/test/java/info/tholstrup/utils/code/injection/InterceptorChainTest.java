@@ -0,0 +1,93 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class InterceptorChainTest
+{
+    static final List<String> calls = new CopyOnWriteArrayList<String>();
+
+    public interface Greeter
+    {
+        String greet (String name);
+    }
+
+    public static class GreeterImpl implements Greeter
+    {
+        public String greet (String name)
+        {
+            calls.add("target");
+            return "Hello " + name;
+        }
+    }
+
+    public static class FirstInterceptor implements Interceptor
+    {
+        public FirstInterceptor(Object delegate)
+        {
+        }
+
+        @Override
+        public Object intercept (Invocation invocation) throws Throwable
+        {
+            calls.add("first");
+            return invocation.proceed();
+        }
+    }
+
+    public static class SecondInterceptor implements Interceptor
+    {
+        public SecondInterceptor(Object delegate)
+        {
+        }
+
+        @Override
+        public Object intercept (Invocation invocation) throws Throwable
+        {
+            calls.add("second");
+            return "[" + invocation.proceed() + "]";
+        }
+    }
+
+    public static class NotAnInterceptor
+    {
+        public NotAnInterceptor(Object delegate)
+        {
+        }
+    }
+
+    @BeforeEach
+    public void clearCalls ()
+    {
+        calls.clear();
+    }
+
+    @Test
+    public void interceptorsRunInNestedProxyOrderInOneProxy ()
+    {
+        Greeter greeter = ProxyAssistant.createInterceptedInstance(GreeterImpl.class, new Class[] {}, new Object[] {},
+                new Class[] { FirstInterceptor.class, SecondInterceptor.class });
+
+        assertEquals("[Hello chain]", greeter.greet("chain"));
+        assertEquals(List.of("second", "first", "target"), calls);
+
+        InterceptorChainHandler handler = (InterceptorChainHandler) ProxyAssistant.getInvocationHandler(greeter);
+        assertEquals(2, handler.getInterceptors().length);
+        assertTrue(handler.getDelegate() instanceof GreeterImpl);
+    }
+
+    @Test
+    public void handlersWhichAreNotInterceptorsAreRejected ()
+    {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> ProxyAssistant.createInterceptedInstance(GreeterImpl.class,
+                new Class[] {}, new Object[] {}, new Class[] { NotAnInterceptor.class }));
+        assertTrue(e.getCause() instanceof IllegalArgumentException, String.valueOf(e.getCause()));
+    }
+}
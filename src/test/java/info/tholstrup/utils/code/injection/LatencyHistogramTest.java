@@ -0,0 +1,83 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void bucketsAreWithinASixteenthOfTheValue ()
+    {
+        for (long value = 1; value < (1L << 40); value = value * 3 + 1)
+        {
+            long highest = LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(value));
+            assertTrue(highest >= value, value + " > " + highest);
+            assertTrue(highest - value <= value / 16, value + " recorded as " + highest);
+        }
+    }
+
+    @Test
+    public void percentilesAndMaximum ()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100; value++)
+        {
+            histogram.record(value * 1000);
+        }
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(101, snapshot.getCount());
+        assertEquals(100000, snapshot.getMaximum());
+        assertEquals(100000, snapshot.getPercentile(100));
+        long median = snapshot.getPercentile(50);
+        assertTrue(median >= 50000 && median <= 50000 + 50000 / 16, String.valueOf(median));
+        assertEquals(0, snapshot.getPercentile(0));
+    }
+
+    @Test
+    public void weightedRecordsCountForSeveralCalls ()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10, 8);
+        assertEquals(8, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void snapshotAndResetLosesNothingWhileRecording () throws InterruptedException
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 4;
+        final int recordsPerThread = 100000;
+        List<Thread> recorders = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++)
+        {
+            Thread recorder = new Thread(() -> {
+                for (int i = 0; i < recordsPerThread; i++)
+                {
+                    histogram.record(i);
+                }
+            });
+            recorders.add(recorder);
+            recorder.start();
+        }
+        long total = 0;
+        boolean running = true;
+        while (running)
+        {
+            running = false;
+            for (Thread recorder : recorders)
+            {
+                running |= recorder.isAlive();
+            }
+            total += histogram.snapshotAndReset().getCount();
+        }
+        total += histogram.snapshotAndReset().getCount();
+        assertEquals((long) threads * recordsPerThread, total);
+    }
+}
@@ -0,0 +1,97 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class LazyInstanceHandlerTest
+{
+    public interface Greeter
+    {
+        String greet (String name);
+    }
+
+    public static class CountingGreeter implements Greeter
+    {
+        static int constructorCalls;
+
+        public CountingGreeter()
+        {
+            constructorCalls++;
+        }
+
+        public String greet (String name)
+        {
+            return "Hello " + name;
+        }
+    }
+
+    public static class Standalone
+    {
+        public Standalone()
+        {
+        }
+
+        public String name ()
+        {
+            return "standalone";
+        }
+    }
+
+    @AfterEach
+    public void restoreDefaults ()
+    {
+        ProxyAssistant.setClassGenerationEnabled(false);
+    }
+
+    private static void assertConstructedOnFirstCall (Greeter greeter, int constructorCalls, int callsOnCreation)
+    {
+        LazyInstanceHandler handler = (LazyInstanceHandler) ProxyAssistant.getInvocationHandler(greeter);
+        assertEquals(constructorCalls, CountingGreeter.constructorCalls);
+        assertFalse(handler.isInitialized());
+
+        assertEquals("Hello lazy", greeter.greet("lazy"));
+        assertEquals(constructorCalls + callsOnCreation, CountingGreeter.constructorCalls);
+        assertTrue(handler.isInitialized());
+
+        greeter.greet("again");
+        assertEquals(constructorCalls + callsOnCreation, CountingGreeter.constructorCalls);
+    }
+
+    @Test
+    public void generatedLazyProxyDoesNotConstructBeforeTheFirstCall ()
+    {
+        ProxyAssistant.setClassGenerationEnabled(true);
+        int constructorCalls = CountingGreeter.constructorCalls;
+        CountingGreeter greeter = ProxyAssistant.createLazyInstance(CountingGreeter.class, new Class[] {}, new Object[] {},
+                new Class[] { TimingHandler.class, EntryAndExitHandler.class }, false);
+        // the generated proxies extend the class, so the lazy proxy and both handler proxies run the no argument constructor on themselves.
+        assertConstructedOnFirstCall(greeter, constructorCalls + 1, 3);
+    }
+
+    @Test
+    public void jdkLazyProxyDoesNotConstructBeforeTheFirstCall ()
+    {
+        int constructorCalls = CountingGreeter.constructorCalls;
+        Object greeter = ProxyAssistant.createLazyInstance(CountingGreeter.class, new Class[] {}, new Object[] {},
+                new Class[] { TimingHandler.class }, false);
+        assertFalse(greeter instanceof CountingGreeter);
+        assertConstructedOnFirstCall((Greeter) greeter, constructorCalls, 1);
+    }
+
+    @Test
+    public void lazyJdkProxyOfAClassWithoutInterfacesIsRefused ()
+    {
+        assertThrows(IllegalArgumentException.class, () -> ProxyAssistant.createLazyInstance(Standalone.class, new Class[] {},
+                new Object[] {}, new Class[] {}, false));
+
+        ProxyAssistant.setClassGenerationEnabled(true);
+        Standalone standalone = ProxyAssistant.createLazyInstance(Standalone.class, new Class[] {}, new Object[] {}, new Class[] {},
+                false);
+        assertEquals("standalone", standalone.name());
+    }
+}
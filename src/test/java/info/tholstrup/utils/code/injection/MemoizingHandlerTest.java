@@ -0,0 +1,212 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class MemoizingHandlerTest
+{
+    public interface PriceList
+    {
+        @Memoize
+        long price (String item);
+
+        @Memoize
+        String quote (String item, int quantity);
+
+        @Memoize
+        long total (int[] quantities);
+
+        @Memoize
+        String discount (String item);
+
+        long stock (String item);
+
+        String supplier (String item);
+
+        @Memoize(maximumSize = 4)
+        long rank (int position);
+
+        @Memoize(expireAfterWrite = 50, unit = TimeUnit.MILLISECONDS)
+        long rate (String currency);
+    }
+
+    public static class Prices implements PriceList
+    {
+        int calls;
+
+        public long price (String item)
+        {
+            calls++;
+            if (item.isEmpty())
+            {
+                throw new IllegalArgumentException("no item");
+            }
+            return item.length();
+        }
+
+        public String quote (String item, int quantity)
+        {
+            calls++;
+            return item + " x " + quantity;
+        }
+
+        public long total (int[] quantities)
+        {
+            calls++;
+            long total = 0;
+            for (int quantity : quantities)
+            {
+                total += quantity;
+            }
+            return total;
+        }
+
+        public String discount (String item)
+        {
+            calls++;
+            return null;
+        }
+
+        public long stock (String item)
+        {
+            calls++;
+            return 0;
+        }
+
+        @Memoize
+        public String supplier (String item)
+        {
+            calls++;
+            return "acme";
+        }
+
+        public long rank (int position)
+        {
+            calls++;
+            return position;
+        }
+
+        public long rate (String currency)
+        {
+            calls++;
+            return 1;
+        }
+    }
+
+    private static PriceList proxy ()
+    {
+        return (PriceList) ProxyAssistant.createProxiedInstance(Prices.class, new Class[] { MemoizingHandler.class });
+    }
+
+    private static int callsOf (PriceList prices)
+    {
+        return ((Prices) ((MemoizingHandler) ProxyAssistant.getInvocationHandler(prices)).getDelegate()).calls;
+    }
+
+    private static MemoizationStatistics statisticsOf (String methodName)
+    {
+        for (MemoizationStatistics statistics : MemoizingHandler.snapshot())
+        {
+            if (statistics.getMethodName().equals(methodName))
+            {
+                return statistics;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void equalArgumentsAreAnsweredFromMemory ()
+    {
+        PriceList prices = proxy();
+        assertEquals(5L, prices.price("apple"));
+        assertEquals(5L, prices.price(new String("apple")));
+        assertEquals(4L, prices.price("pear"));
+        assertEquals(2, callsOf(prices));
+
+        assertEquals("apple x 2", prices.quote("apple", 2));
+        assertEquals("apple x 2", prices.quote("apple", 2));
+        prices.quote("apple", 3);
+        assertEquals(6L, prices.total(new int[] { 1, 2, 3 }));
+        assertEquals(6L, prices.total(new int[] { 1, 2, 3 }));
+        assertEquals(5, callsOf(prices));
+    }
+
+    @Test
+    public void resultsAreKeptPerInstance ()
+    {
+        PriceList first = proxy();
+        PriceList second = proxy();
+        first.price("apple");
+        second.price("apple");
+        assertEquals(1, callsOf(first));
+        assertEquals(1, callsOf(second));
+    }
+
+    @Test
+    public void nullResultsAreMemoizedButExceptionsAreNot ()
+    {
+        PriceList prices = proxy();
+        assertNull(prices.discount("apple"));
+        assertNull(prices.discount("apple"));
+        assertEquals(1, callsOf(prices));
+
+        assertThrows(IllegalArgumentException.class, () -> prices.price(""));
+        assertThrows(IllegalArgumentException.class, () -> prices.price(""));
+        assertEquals(3, callsOf(prices));
+    }
+
+    @Test
+    public void onlyAnnotatedMethodsAreMemoized ()
+    {
+        PriceList prices = proxy();
+        prices.stock("apple");
+        prices.stock("apple");
+        assertEquals(2, callsOf(prices));
+
+        // annotated on the implementation class only.
+        prices.supplier("apple");
+        prices.supplier("apple");
+        assertEquals(3, callsOf(prices));
+    }
+
+    @Test
+    public void resultsAreEvictedAndExpired () throws InterruptedException
+    {
+        PriceList prices = proxy();
+        for (int i = 0; i < 100; i++)
+        {
+            prices.rank(i);
+        }
+        assertTrue(statisticsOf("rank").getEvictions() > 0, String.valueOf(statisticsOf("rank")));
+
+        int calls = callsOf(prices);
+        prices.rate("EUR");
+        prices.rate("EUR");
+        assertEquals(calls + 1, callsOf(prices));
+        Thread.sleep(80);
+        prices.rate("EUR");
+        assertEquals(calls + 2, callsOf(prices));
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted ()
+    {
+        MemoizingHandler.reset();
+        PriceList prices = proxy();
+        prices.quote("pear", 1);
+        prices.quote("pear", 1);
+        prices.quote("pear", 1);
+
+        MemoizationStatistics statistics = statisticsOf("quote");
+        assertEquals(2, statistics.getHits());
+        assertEquals(1, statistics.getMisses());
+        assertEquals(Prices.class, statistics.getWrappedClass());
+    }
+}
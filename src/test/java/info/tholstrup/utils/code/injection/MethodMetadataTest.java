@@ -0,0 +1,150 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import org.junit.jupiter.api.Test;
+
+public class MethodMetadataTest
+{
+    public interface Counter
+    {
+        int add (int a, long b);
+
+        void reset ();
+
+        boolean isEmpty ();
+
+        String read () throws IOException;
+
+        void fail ();
+    }
+
+    public static class SimpleCounter implements Counter
+    {
+        int count;
+
+        public int add (int a, long b)
+        {
+            count += a + (int) b;
+            return count;
+        }
+
+        public void reset ()
+        {
+            count = 0;
+        }
+
+        public boolean isEmpty ()
+        {
+            return count == 0;
+        }
+
+        public String read () throws IOException
+        {
+            throw new IOException("closed");
+        }
+
+        public void fail ()
+        {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+    public static class OtherCounter extends SimpleCounter
+    {
+    }
+
+    /**
+     * Private, so the handle is only reachable once the method has been made accessible.
+     */
+    private static class HiddenCounter
+    {
+        private long twice (long value)
+        {
+            return value * 2;
+        }
+    }
+
+    private static MethodMetadata metadata (Class wrappedClass, Class declaringClass, String name, Class... parameterTypes)
+            throws NoSuchMethodException
+    {
+        return MethodMetadata.forMethod(wrappedClass, declaringClass.getDeclaredMethod(name, parameterTypes));
+    }
+
+    @Test
+    public void primitiveResultsAreBoxedAndVoidReturnsNull () throws Throwable
+    {
+        SimpleCounter counter = new SimpleCounter();
+        MethodMetadata add = metadata(SimpleCounter.class, Counter.class, "add", int.class, long.class);
+        assertEquals(Integer.valueOf(5), add.invoke(counter, new Object[] { Integer.valueOf(2), Long.valueOf(3) }));
+
+        MethodMetadata isEmpty = metadata(SimpleCounter.class, Counter.class, "isEmpty");
+        assertEquals(Boolean.FALSE, isEmpty.invoke(counter, null));
+        assertNull(metadata(SimpleCounter.class, Counter.class, "reset").invoke(counter, new Object[0]));
+        assertEquals(Boolean.TRUE, isEmpty.invoke(counter, null));
+    }
+
+    @Test
+    public void exceptionsAreRethrownUnwrapped () throws NoSuchMethodException
+    {
+        SimpleCounter counter = new SimpleCounter();
+        MethodMetadata read = metadata(SimpleCounter.class, Counter.class, "read");
+        IOException checked = assertThrows(IOException.class, () -> read.invoke(counter, null));
+        assertEquals("closed", checked.getMessage());
+
+        MethodMetadata fail = metadata(SimpleCounter.class, Counter.class, "fail");
+        assertThrows(IllegalStateException.class, () -> fail.invoke(counter, null));
+    }
+
+    @Test
+    public void wrongArgumentsAreRejected () throws NoSuchMethodException
+    {
+        MethodMetadata add = metadata(SimpleCounter.class, Counter.class, "add", int.class, long.class);
+        assertThrows(ClassCastException.class, () -> add.invoke(new SimpleCounter(), new Object[] { "2", Long.valueOf(3) }));
+    }
+
+    @Test
+    public void inaccessibleMethodsAreMadeAccessible () throws Throwable
+    {
+        MethodMetadata twice = metadata(HiddenCounter.class, HiddenCounter.class, "twice", long.class);
+        assertEquals(Long.valueOf(42), twice.invoke(new HiddenCounter(), new Object[] { Long.valueOf(21) }));
+    }
+
+    @Test
+    public void metadataIsSharedPerWrappedClassAndMethod () throws NoSuchMethodException
+    {
+        Method add = Counter.class.getMethod("add", int.class, long.class);
+        MethodMetadata simple = MethodMetadata.forMethod(SimpleCounter.class, add);
+        assertSame(simple, MethodMetadata.forMethod(SimpleCounter.class, add));
+        FactoryInvocationHandler handler = new FactoryInvocationHandler()
+        {
+            private final Object delegate = new SimpleCounter();
+
+            public Object getDelegate ()
+            {
+                return delegate;
+            }
+
+            public Object invoke (Object proxy, Method method, Object[] args) throws Throwable
+            {
+                return getMethodMetadata(method).invoke(delegate, args);
+            }
+        };
+        assertSame(simple, handler.getMethodMetadata(add));
+
+        MethodMetadata other = MethodMetadata.forMethod(OtherCounter.class, add);
+        assertNotSame(simple, other);
+        assertSame(add, other.getMethod());
+        assertEquals(OtherCounter.class, other.getWrappedClass());
+        assertEquals(OtherCounter.class.getName() + ".add", other.getQualifiedName());
+        assertEquals("Entering method " + other.getQualifiedName(), other.getEntryMessage());
+        assertEquals("Exiting method " + other.getQualifiedName(), other.getExitMessage());
+    }
+}
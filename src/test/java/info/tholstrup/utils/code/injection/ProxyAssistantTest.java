@@ -0,0 +1,79 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ProxyAssistantTest
+{
+    public interface Named
+    {
+        String getName ();
+    }
+
+    public static class NamedImpl implements Named
+    {
+        private final String name;
+
+        public NamedImpl(String name)
+        {
+            if (name == null)
+            {
+                throw new IllegalStateException("no name");
+            }
+            this.name = name;
+        }
+
+        public String getName ()
+        {
+            return name;
+        }
+    }
+
+    @AfterEach
+    public void restoreDefaults ()
+    {
+        ProxyAssistant.setClassGenerationEnabled(false);
+    }
+
+    @Test
+    public void constructorExceptionIsWrappedAsBefore ()
+    {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> ProxyAssistant.createProxiedInstance(NamedImpl.class,
+                new Class[] { String.class }, new Object[] { null }, new Class[] { TimingHandler.class }));
+        assertTrue(e.getCause() instanceof InvocationTargetException, String.valueOf(e.getCause()));
+        assertTrue(e.getCause().getCause() instanceof IllegalStateException, String.valueOf(e.getCause().getCause()));
+        assertEquals("no name", e.getCause().getCause().getMessage());
+    }
+
+    @Test
+    public void missingConstructorIsWrapped ()
+    {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> ProxyAssistant.createProxiedInstance(NamedImpl.class,
+                new Class[] { Integer.class }, new Object[] { Integer.valueOf(1) }, new Class[] {}));
+        assertTrue(e.getCause() instanceof NoSuchMethodException, String.valueOf(e.getCause()));
+    }
+
+    @Test
+    public void plansAreReusedPerSetting ()
+    {
+        Class[] handlers = new Class[] { TimingHandler.class };
+        InstantiationPlan plan = ProxyAssistant.getInstantiationPlan(NamedImpl.class, new Class[] { String.class }, handlers, false);
+        assertSame(plan, ProxyAssistant.getInstantiationPlan(NamedImpl.class, new Class[] { String.class }, handlers.clone(), false));
+
+        ProxyAssistant.setClassGenerationEnabled(true);
+        InstantiationPlan generatingPlan =
+                ProxyAssistant.getInstantiationPlan(NamedImpl.class, new Class[] { String.class }, handlers, false);
+        assertNotSame(plan, generatingPlan);
+
+        ProxyAssistant.setClassGenerationEnabled(false);
+        assertSame(plan, ProxyAssistant.getInstantiationPlan(NamedImpl.class, new Class[] { String.class }, handlers, false));
+    }
+}
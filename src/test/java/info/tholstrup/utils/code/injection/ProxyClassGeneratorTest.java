@@ -0,0 +1,249 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ProxyClassGeneratorTest
+{
+    public interface Calculation
+    {
+        long add (long a, int b);
+    }
+
+    public static class Calculator implements Calculation
+    {
+        static int constructorCalls;
+
+        private final int offset;
+
+        public Calculator()
+        {
+            constructorCalls++;
+            offset = 1;
+        }
+
+        public long add (long a, int b)
+        {
+            return a + b + offset;
+        }
+
+        public double scale (double value, float factor)
+        {
+            return value * factor;
+        }
+
+        public String describe (boolean flag, char c, byte b, short s)
+        {
+            return flag + ":" + c + ":" + b + ":" + s;
+        }
+
+        public int[] range (int length)
+        {
+            int[] range = new int[length];
+            for (int i = 0; i < length; i++)
+            {
+                range[i] = i;
+            }
+            return range;
+        }
+
+        public void read () throws IOException
+        {
+            throw new IOException("closed");
+        }
+    }
+
+    public static class CountingInterceptor implements Interceptor
+    {
+        static int calls;
+
+        public CountingInterceptor(Object delegate)
+        {
+        }
+
+        public Object intercept (Invocation invocation) throws Throwable
+        {
+            calls++;
+            return invocation.proceed();
+        }
+    }
+
+    public static class WithoutDefaultConstructor implements Calculation
+    {
+        public WithoutDefaultConstructor(int unused)
+        {
+        }
+
+        public long add (long a, int b)
+        {
+            return a + b;
+        }
+    }
+
+    public static class WithFinalMethod implements Calculation
+    {
+        public long add (long a, int b)
+        {
+            return a + b;
+        }
+
+        public final String name ()
+        {
+            return "final";
+        }
+    }
+
+    public static class WithProtectedMethod implements Calculation
+    {
+        public long add (long a, int b)
+        {
+            return a + b;
+        }
+
+        protected void reset ()
+        {
+        }
+    }
+
+    @AfterEach
+    public void restoreDefaults ()
+    {
+        ProxyAssistant.setClassGenerationEnabled(false);
+    }
+
+    private static Object proxy (Class instanceClass, final Object delegate) throws Throwable
+    {
+        MethodHandle constructor = ProxyClassGenerator.getProxyConstructor(instanceClass);
+        assertNotNull(constructor);
+        InvocationHandler handler = (proxy, method, args) -> {
+            try
+            {
+                return method.invoke(delegate, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        };
+        return (Object) constructor.invokeExact(delegate, handler);
+    }
+
+    @Test
+    public void primitivesAndWideTypesArePassedThrough () throws Throwable
+    {
+        Calculator calculator = (Calculator) proxy(Calculator.class, new Calculator());
+        assertEquals(Long.MAX_VALUE, calculator.add(Long.MAX_VALUE - 3, 2));
+        assertEquals(7.5d, calculator.scale(3d, 2.5f));
+        assertEquals("true:x:-1:300", calculator.describe(true, 'x', (byte) -1, (short) 300));
+        assertArrayEquals(new int[] { 0, 1, 2 }, calculator.range(3));
+        assertTrue(calculator.toString().startsWith(Calculator.class.getName()));
+    }
+
+    @Test
+    public void undeclaredCheckedExceptionsAreWrapped () throws Throwable
+    {
+        Calculator calculator = (Calculator) proxy(Calculator.class, new Calculator());
+        IOException e = assertThrows(IOException.class, () -> calculator.read());
+        assertEquals("closed", e.getMessage());
+        assertThrows(NegativeArraySizeException.class, () -> calculator.range(-1));
+
+        MethodHandle constructor = ProxyClassGenerator.getProxyConstructor(Calculator.class);
+        final Exception undeclared = new Exception("undeclared");
+        Calculator failing = (Calculator) (Object) constructor.invokeExact((Object) new Calculator(),
+                (InvocationHandler) (proxy, method, args) -> {
+                    throw undeclared;
+                });
+        UndeclaredThrowableException wrapped = assertThrows(UndeclaredThrowableException.class, () -> failing.add(1, 2));
+        assertSame(undeclared, wrapped.getCause());
+    }
+
+    @Test
+    public void subclassProxiesRunTheNoArgumentConstructor () throws Throwable
+    {
+        Calculator delegate = new Calculator();
+        int constructorCalls = Calculator.constructorCalls;
+        Object proxy = proxy(Calculator.class, delegate);
+        assertEquals(constructorCalls + 1, Calculator.constructorCalls);
+        assertTrue(proxy instanceof GeneratedProxy);
+        assertNotNull(ProxyAssistant.getInvocationHandler(proxy));
+    }
+
+    @Test
+    public void interceptorChainsAreRunByTheProxy ()
+    {
+        ProxyAssistant.setClassGenerationEnabled(true);
+        int calls = CountingInterceptor.calls;
+        Calculator calculator = ProxyAssistant.createInterceptedInstance(Calculator.class, new Class[] {}, new Object[] {},
+                new Class[] { CountingInterceptor.class, CountingInterceptor.class });
+        assertEquals(6L, calculator.add(2, 3));
+        assertEquals(calls + 2, CountingInterceptor.calls);
+        assertTrue(ProxyAssistant.getInvocationHandler(calculator) instanceof InterceptorChainHandler);
+    }
+
+    @Test
+    public void switchedOffProxiesCallTheDelegateDirectly ()
+    {
+        ProxyAssistant.setClassGenerationEnabled(true);
+        InterceptionSwitch interceptionSwitch = new InterceptionSwitch();
+        Calculator calculator = ProxyAssistant.createSwitchableInstance(Calculator.class, new Class[] {}, new Object[] {},
+                interceptionSwitch);
+        int calls = CountingInterceptor.calls;
+        assertEquals(6L, calculator.add(2, 3));
+        assertEquals(calls, CountingInterceptor.calls);
+
+        interceptionSwitch.setHandlers(new Class[] { CountingInterceptor.class });
+        assertEquals(6L, calculator.add(2, 3));
+        assertEquals(calls + 1, CountingInterceptor.calls);
+    }
+
+    @Test
+    public void classesWithFinalOrProtectedMethodsOnlyGetTheirInterfaces () throws Throwable
+    {
+        assertFalse(ProxyClassGenerator.canSubclass(WithFinalMethod.class));
+        assertFalse(ProxyClassGenerator.canSubclass(WithProtectedMethod.class));
+        assertFalse(ProxyClassGenerator.canSubclass(WithoutDefaultConstructor.class));
+        assertTrue(ProxyClassGenerator.canSubclass(Calculator.class));
+
+        Object finalProxy = proxy(WithFinalMethod.class, new WithFinalMethod());
+        assertFalse(finalProxy instanceof WithFinalMethod);
+        assertEquals(5L, ((Calculation) finalProxy).add(2, 3));
+
+        Object protectedProxy = proxy(WithProtectedMethod.class, new WithProtectedMethod());
+        assertFalse(protectedProxy instanceof WithProtectedMethod);
+        assertEquals(5L, ((Calculation) protectedProxy).add(2, 3));
+    }
+
+    @Test
+    public void nestedHandlersRunTheConstructorOncePerProxy ()
+    {
+        ProxyAssistant.setClassGenerationEnabled(true);
+        int constructorCalls = Calculator.constructorCalls;
+        Calculator calculator = (Calculator) ProxyAssistant.createProxiedInstance(Calculator.class,
+                new Class[] { TimingHandler.class, EntryAndExitHandler.class });
+        assertEquals(constructorCalls + 3, Calculator.constructorCalls);
+        assertEquals(6L, calculator.add(2, 3));
+        assertTrue(ProxyAssistant.getInvocationHandler(calculator) instanceof EntryAndExitHandler);
+    }
+
+    @Test
+    public void classesWhichCannotBeProxiedGetNoConstructor ()
+    {
+        assertNull(ProxyClassGenerator.getProxyConstructor(String.class));
+        assertSame(ProxyClassGenerator.getProxyConstructor(Calculator.class), ProxyClassGenerator.getProxyConstructor(Calculator.class));
+    }
+}
@@ -0,0 +1,134 @@
+package info.tholstrup.utils.code.injection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TimingHandlerTest
+{
+    public interface Pair
+    {
+        int a ();
+
+        int b ();
+    }
+
+    public static class PairImpl implements Pair
+    {
+        public int a ()
+        {
+            return 1;
+        }
+
+        public int b ()
+        {
+            return 2;
+        }
+    }
+
+    public static class InnerImpl extends PairImpl implements Pair
+    {
+    }
+
+    public interface Outer
+    {
+        int outer ();
+    }
+
+    public static class OuterImpl implements Outer
+    {
+        static Pair inner;
+
+        public int outer ()
+        {
+            return inner.a() + inner.b();
+        }
+    }
+
+    @BeforeEach
+    public void enableRecording ()
+    {
+        TimingHandler.reset();
+        TimingHandler.setRecordingEnabled(true);
+        TimingHandler.setLoggingEnabled(false);
+    }
+
+    @AfterEach
+    public void restoreDefaults ()
+    {
+        TimingHandler.setSamplingInterval(1);
+        TimingHandler.setRecordingEnabled(false);
+        TimingHandler.setLoggingEnabled(true);
+        TimingHandler.reset();
+    }
+
+    @Test
+    public void everyCallIsCountedWithoutSampling ()
+    {
+        Pair pair = (Pair) ProxyAssistant.createProxiedInstance(PairImpl.class, new Class[] { TimingHandler.class });
+        for (int i = 0; i < 100; i++)
+        {
+            pair.a();
+        }
+        assertEquals(100, countsByMethod(PairImpl.class).get("a").longValue());
+    }
+
+    @Test
+    public void sampledCountsStayCorrectPerMethod ()
+    {
+        TimingHandler.setSamplingInterval(2);
+        Pair pair = (Pair) ProxyAssistant.createProxiedInstance(PairImpl.class, new Class[] { TimingHandler.class });
+        for (int i = 0; i < 1000; i++)
+        {
+            pair.a();
+            pair.b();
+        }
+        Map<String, Long> counts = countsByMethod(PairImpl.class);
+        assertCountNear(1000, counts.get("a"), 2);
+        assertCountNear(1000, counts.get("b"), 2);
+    }
+
+    @Test
+    public void nestedProxiedCallsKeepTheirOwnCounts ()
+    {
+        TimingHandler.setSamplingInterval(4);
+        OuterImpl.inner = (Pair) ProxyAssistant.createProxiedInstance(InnerImpl.class, new Class[] { TimingHandler.class });
+        Outer outer = (Outer) ProxyAssistant.createProxiedInstance(OuterImpl.class, new Class[] { TimingHandler.class });
+        for (int i = 0; i < 1000; i++)
+        {
+            outer.outer();
+        }
+        assertCountNear(1000, countsByMethod(OuterImpl.class).get("outer"), 4);
+        Map<String, Long> innerCounts = countsByMethod(InnerImpl.class);
+        assertCountNear(1000, innerCounts.get("a"), 4);
+        assertCountNear(1000, innerCounts.get("b"), 4);
+    }
+
+    private static void assertCountNear (long calls, Long count, int interval)
+    {
+        assertTrue(count != null, "the method was not recorded");
+        // the calls after the last measured one are only counted by the next measurement.
+        assertTrue(count > calls - interval && count <= calls, "count " + count + " for " + calls + " calls");
+    }
+
+    private static Map<String, Long> countsByMethod (Class wrappedClass)
+    {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        List<MethodTiming> timings = TimingHandler.snapshot();
+        for (MethodTiming timing : timings)
+        {
+            if (timing.getWrappedClass() == wrappedClass)
+            {
+                counts.put(timing.getMethodName(), timing.getCount());
+            }
+        }
+        return counts;
+    }
+}
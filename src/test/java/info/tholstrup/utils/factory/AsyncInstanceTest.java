@@ -0,0 +1,145 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class AsyncInstanceTest
+{
+    static final AtomicInteger constructions = new AtomicInteger();
+    static volatile CountDownLatch gate;
+
+    public static class Connection
+    {
+        public Connection(String url) throws InterruptedException
+        {
+            CountDownLatch currentGate = gate;
+            if (currentGate != null)
+            {
+                currentGate.await();
+            }
+            constructions.incrementAndGet();
+            if (url.equals("broken"))
+            {
+                throw new IllegalStateException("cannot connect");
+            }
+        }
+    }
+
+    public static class ConnectionFactory extends BaseParameterizedFactory<Connection>
+    {
+        final AtomicInteger executions = new AtomicInteger();
+
+        public ConnectionFactory(InstanceLifecycle lifecycle, final ExecutorService executor)
+        {
+            defaultLifecycle = lifecycle;
+            defaultImplementationClass = Connection.class;
+            constructionExecutor = task -> {
+                executions.incrementAndGet();
+                executor.execute(task);
+            };
+        }
+
+        public CompletableFuture<Connection> connect (String url)
+        {
+            return getInstanceAsync(new Class[] { String.class }, new Object[] { url });
+        }
+    }
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    public void shutDown () throws InterruptedException
+    {
+        gate = null;
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cachedInstanceIsReturnedAsACompletedFuture ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.CACHED, executor);
+        Connection connection = factory.getInstance(new Class[] { String.class }, new Object[] { "db" });
+        int executions = factory.executions.get();
+
+        CompletableFuture<Connection> future = factory.connect("db");
+        assertTrue(future.isDone());
+        assertSame(connection, future.join());
+        assertEquals(executions, factory.executions.get());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneConstruction ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.CACHED, executor);
+        gate = new CountDownLatch(1);
+        int constructionsBefore = constructions.get();
+        List<CompletableFuture<Connection>> futures = new ArrayList<CompletableFuture<Connection>>();
+        for (int i = 0; i < 5; i++)
+        {
+            futures.add(factory.connect("shared"));
+        }
+        assertFalse(futures.get(0).isDone());
+        gate.countDown();
+
+        Connection connection = futures.get(0).join();
+        for (CompletableFuture<Connection> future : futures)
+        {
+            assertSame(connection, future.join());
+        }
+        assertEquals(constructionsBefore + 1, constructions.get());
+        assertEquals(1, factory.executions.get());
+    }
+
+    @Test
+    public void failedConstructionCompletesExceptionallyAndIsRetried ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.CACHED, executor);
+        CompletableFuture<Connection> future = factory.connect("broken");
+        assertThrows(CompletionException.class, () -> future.join());
+        assertTrue(future.isCompletedExceptionally());
+
+        int constructionsBefore = constructions.get();
+        assertThrows(CompletionException.class, () -> factory.connect("broken").join());
+        assertEquals(constructionsBefore + 1, constructions.get());
+    }
+
+    @Test
+    public void newInstancesAreConstructedOnTheExecutor ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.NEW_INSTANCE_EACH_TIME, executor);
+        Connection first = factory.connect("db").join();
+        Connection second = factory.connect("db").join();
+        assertFalse(first == second);
+        assertEquals(2, factory.executions.get());
+    }
+
+    @Test
+    public void scopedInstancesAreConstructedOnTheCallingThread ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.SCOPED, executor);
+        try (InstanceScope scope = InstanceScope.open())
+        {
+            CompletableFuture<Connection> future = factory.connect("db");
+            assertTrue(future.isDone());
+            assertSame(future.join(), factory.connect("db").join());
+            assertEquals(0, factory.executions.get());
+        }
+    }
+}
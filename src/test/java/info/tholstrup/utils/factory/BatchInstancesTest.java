@@ -0,0 +1,91 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class BatchInstancesTest
+{
+    public static class Point
+    {
+        private final int x;
+
+        public Point(Integer x)
+        {
+            this.x = x.intValue();
+        }
+
+        public int getX ()
+        {
+            return x;
+        }
+    }
+
+    public static class PointFactory extends BaseParameterizedFactory<Point>
+    {
+        public PointFactory(InstanceLifecycle lifecycle, int parallelBatchThreshold)
+        {
+            defaultLifecycle = lifecycle;
+            defaultImplementationClass = Point.class;
+            this.parallelBatchThreshold = parallelBatchThreshold;
+        }
+    }
+
+    private static Object[][] rows (int count, int distinct)
+    {
+        Object[][] rows = new Object[count][];
+        for (int i = 0; i < count; i++)
+        {
+            rows[i] = new Object[] { Integer.valueOf(i % distinct) };
+        }
+        return rows;
+    }
+
+    private static void assertBatch (PointFactory factory, boolean cached)
+    {
+        Object[][] rows = rows(2000, 100);
+        List<Point> points = factory.getInstances(new Class[] { Integer.class }, rows);
+        assertEquals(rows.length, points.size());
+        for (int i = 0; i < rows.length; i++)
+        {
+            assertEquals(i % 100, points.get(i).getX());
+        }
+        if (cached)
+        {
+            assertSame(points.get(0), points.get(100));
+            assertSame(points.get(0), factory.getInstance(new Class[] { Integer.class }, new Object[] { Integer.valueOf(0) }));
+        }
+        else
+        {
+            assertNotSame(points.get(0), points.get(100));
+        }
+    }
+
+    @Test
+    public void sequentialBatchKeepsRowOrder ()
+    {
+        assertBatch(new PointFactory(InstanceLifecycle.CACHED, Integer.MAX_VALUE), true);
+        assertBatch(new PointFactory(InstanceLifecycle.NEW_INSTANCE_EACH_TIME, Integer.MAX_VALUE), false);
+    }
+
+    @Test
+    public void parallelBatchKeepsRowOrderAndSharesEqualRows ()
+    {
+        assertBatch(new PointFactory(InstanceLifecycle.CACHED, 16), true);
+        assertBatch(new PointFactory(InstanceLifecycle.NEW_INSTANCE_EACH_TIME, 16), false);
+    }
+
+    @Test
+    public void scopedBatchStaysOnTheCallingThread ()
+    {
+        PointFactory factory = new PointFactory(InstanceLifecycle.SCOPED, 16);
+        try (InstanceScope scope = InstanceScope.open())
+        {
+            assertBatch(factory, true);
+        }
+    }
+}
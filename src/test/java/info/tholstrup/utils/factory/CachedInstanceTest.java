@@ -0,0 +1,98 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import info.tholstrup.utils.cache.ExpiringInstanceCache;
+import info.tholstrup.utils.cache.InstanceCache;
+import info.tholstrup.utils.cache.LruInstanceCache;
+import info.tholstrup.utils.cache.UnboundedInstanceCache;
+
+public class CachedInstanceTest
+{
+    public static class Account
+    {
+        private final String owner;
+
+        public Account(String owner)
+        {
+            this.owner = owner;
+        }
+
+        public String getOwner ()
+        {
+            return owner;
+        }
+    }
+
+    public static class AccountFactory extends BaseParameterizedFactory<Account>
+    {
+        public AccountFactory(int maximumSize)
+        {
+            this(new LruInstanceCache<Object, Account>(maximumSize));
+        }
+
+        public AccountFactory(InstanceCache<Object, Account> instanceCache)
+        {
+            defaultLifecycle = InstanceLifecycle.CACHED;
+            defaultImplementationClass = Account.class;
+            defaultInstanceCache = instanceCache;
+            constructionExecutor = Runnable::run;
+        }
+
+        public Account get (String owner)
+        {
+            return getInstance(new Class[] { String.class }, new Object[] { owner });
+        }
+    }
+
+    @Test
+    public void boundedCacheEvictsAndCountsEvictions ()
+    {
+        AccountFactory factory = new AccountFactory(2);
+        Account a = factory.get("a");
+        assertSame(a, factory.get("a"));
+        factory.get("b");
+        factory.get("c");
+
+        assertEquals(1, factory.getMetrics().getEvictions());
+        assertNotSame(a, factory.get("a"));
+        assertEquals(1, factory.getMetrics().getHits());
+        assertEquals(4, factory.getMetrics().getMisses());
+    }
+
+    @Test
+    public void expiredInstancesAreRebuilt () throws InterruptedException
+    {
+        AccountFactory factory = new AccountFactory(new ExpiringInstanceCache<Object, Account>(
+                new UnboundedInstanceCache<Object, Account>(), 100, 0, TimeUnit.MILLISECONDS));
+        Account a = factory.get("a");
+        assertSame(a, factory.get("a"));
+
+        Thread.sleep(150);
+        Account rebuilt = factory.get("a");
+        assertNotSame(a, rebuilt);
+        assertEquals("a", rebuilt.getOwner());
+        assertEquals(1, factory.getMetrics().getEvictions());
+    }
+
+    @Test
+    public void dueInstancesAreRefreshedAhead () throws InterruptedException
+    {
+        AccountFactory factory = new AccountFactory(new ExpiringInstanceCache<Object, Account>(
+                new UnboundedInstanceCache<Object, Account>(), 10000, 0, 50, TimeUnit.MILLISECONDS));
+        Account a = factory.get("a");
+
+        Thread.sleep(80);
+        assertSame(a, factory.get("a"));
+        Account refreshed = factory.get("a");
+        assertNotSame(a, refreshed);
+        assertEquals("a", refreshed.getOwner());
+        assertSame(refreshed, factory.get("a"));
+    }
+}
@@ -0,0 +1,212 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class FactoryBootstrapperTest
+{
+    static final List<String> constructed = Collections.synchronizedList(new ArrayList<String>());
+
+    public static class Part
+    {
+        public Part(String name) throws InterruptedException
+        {
+            if (name.equals("broken"))
+            {
+                throw new IllegalStateException("cannot build");
+            }
+            // the slow part would be built last if the order were not kept.
+            if (name.equals("engine"))
+            {
+                Thread.sleep(100);
+            }
+            constructed.add(name);
+        }
+    }
+
+    public static class PartFactory extends BaseParameterizedFactory<Part>
+    {
+        private final String name;
+        private final List<Class<? extends BaseParameterizedFactory>> dependencies;
+
+        @SafeVarargs
+        public PartFactory(String name, Class<? extends BaseParameterizedFactory>... dependencies)
+        {
+            defaultLifecycle = InstanceLifecycle.CACHED;
+            defaultImplementationClass = Part.class;
+            this.name = name;
+            this.dependencies = List.of(dependencies);
+        }
+
+        @Override
+        protected Collection<MethodSignature> getWarmUpSignatures ()
+        {
+            return List.of(new MethodSignature(new Class[] { String.class }, new Object[] { name }));
+        }
+
+        @Override
+        protected Collection<Class<? extends BaseParameterizedFactory>> getFactoryDependencies ()
+        {
+            return dependencies;
+        }
+    }
+
+    public static class EngineFactory extends PartFactory
+    {
+        public EngineFactory(String name)
+        {
+            super(name);
+        }
+    }
+
+    public static class WheelFactory extends PartFactory
+    {
+        public WheelFactory()
+        {
+            super("wheel");
+        }
+    }
+
+    public static class CarFactory extends PartFactory
+    {
+        public CarFactory()
+        {
+            super("car", EngineFactory.class, WheelFactory.class);
+        }
+    }
+
+    public static class ChickenFactory extends PartFactory
+    {
+        public ChickenFactory()
+        {
+            super("chicken", EggFactory.class);
+        }
+    }
+
+    public static class EggFactory extends PartFactory
+    {
+        public EggFactory()
+        {
+            super("egg", ChickenFactory.class);
+        }
+    }
+
+    public static class TrailerFactory extends PartFactory
+    {
+        public TrailerFactory()
+        {
+            super("trailer", HitchFactory.class);
+        }
+    }
+
+    /**
+     * Registers its instance when the class is initialized, as the generated factories do.
+     */
+    public static class HitchFactory extends PartFactory
+    {
+        static final HitchFactory factoryInstance = FactoryRegistry.register(new HitchFactory());
+
+        private HitchFactory()
+        {
+            super("hitch");
+        }
+    }
+
+    private final List<BaseParameterizedFactory> registered = new ArrayList<BaseParameterizedFactory>();
+
+    private void register (BaseParameterizedFactory... factories)
+    {
+        for (BaseParameterizedFactory factory : factories)
+        {
+            registered.add(FactoryRegistry.register(factory));
+        }
+    }
+
+    @AfterEach
+    public void unregister ()
+    {
+        for (BaseParameterizedFactory factory : registered)
+        {
+            FactoryRegistry.unregister(factory);
+        }
+        constructed.clear();
+    }
+
+    private static List<WarmUpReport.Result> resultsOf (WarmUpReport report, Class factoryClass)
+    {
+        List<WarmUpReport.Result> results = new ArrayList<WarmUpReport.Result>();
+        for (WarmUpReport.Result result : report.getResults())
+        {
+            if (result.getFactoryClass() == factoryClass)
+            {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    @Test
+    public void factoriesAreWarmedUpAfterTheirDependencies ()
+    {
+        register(new CarFactory(), new WheelFactory(), new EngineFactory("engine"));
+        List<Class> order = FactoryBootstrapper.getBootstrapOrder();
+        assertTrue(order.indexOf(EngineFactory.class) < order.indexOf(CarFactory.class), order.toString());
+        assertTrue(order.indexOf(WheelFactory.class) < order.indexOf(CarFactory.class), order.toString());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            WarmUpReport report = FactoryBootstrapper.bootstrap(executor);
+            assertEquals(1, resultsOf(report, CarFactory.class).size());
+            assertTrue(resultsOf(report, CarFactory.class).get(0).isSuccessful(), report.toString());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertEquals("car", constructed.get(constructed.size() - 1), constructed.toString());
+        assertTrue(constructed.containsAll(List.of("engine", "wheel")), constructed.toString());
+    }
+
+    @Test
+    public void dependentsAreWarmedUpWhenADependencyFails ()
+    {
+        register(new CarFactory(), new WheelFactory(), new EngineFactory("broken"));
+        WarmUpReport report = FactoryBootstrapper.bootstrap();
+        assertFalse(resultsOf(report, EngineFactory.class).get(0).isSuccessful());
+        assertTrue(resultsOf(report, CarFactory.class).get(0).isSuccessful(), report.toString());
+        assertTrue(constructed.contains("car"));
+    }
+
+    @Test
+    public void cyclesAreRejectedBeforeAnythingIsBuilt ()
+    {
+        register(new ChickenFactory(), new EggFactory());
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> FactoryBootstrapper.bootstrap());
+        assertTrue(e.getMessage().contains(ChickenFactory.class.getName()), e.getMessage());
+        assertTrue(constructed.isEmpty(), constructed.toString());
+    }
+
+    @Test
+    public void unregisteredDependenciesAreInitialized ()
+    {
+        register(new TrailerFactory());
+        List<Class> order = FactoryBootstrapper.getBootstrapOrder();
+        registered.add(HitchFactory.factoryInstance);
+        assertTrue(FactoryRegistry.isRegistered(HitchFactory.factoryInstance));
+        assertTrue(order.indexOf(HitchFactory.class) >= 0, order.toString());
+        assertTrue(order.indexOf(HitchFactory.class) < order.indexOf(TrailerFactory.class), order.toString());
+    }
+}
@@ -0,0 +1,63 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+public class FactoryRegistryTest
+{
+    public static class Pear
+    {
+        public Pear()
+        {
+        }
+    }
+
+    public static class PearFactory extends BaseParameterizedFactory<Pear>
+    {
+        public PearFactory()
+        {
+            defaultImplementationClass = Pear.class;
+        }
+    }
+
+    @Test
+    public void factoryRegistersOnFirstRequestNotOnConstruction ()
+    {
+        PearFactory factory = new PearFactory();
+        assertFalse(FactoryRegistry.isRegistered(factory));
+        factory.getInstance();
+        assertTrue(FactoryRegistry.isRegistered(factory));
+        assertTrue(FactoryRegistry.getFactories().contains(factory));
+        FactoryRegistry.unregister(factory);
+    }
+
+    @Test
+    public void registrationIsIdempotentAndCanBeUndone ()
+    {
+        PearFactory factory = FactoryRegistry.register(new PearFactory());
+        assertSame(factory, FactoryRegistry.register(factory));
+        assertTrue(FactoryRegistry.isRegistered(factory));
+
+        FactoryRegistry.unregister(factory);
+        assertFalse(FactoryRegistry.isRegistered(factory));
+        assertFalse(FactoryRegistry.getFactories().contains(factory));
+        FactoryRegistry.unregister(factory);
+    }
+
+    @Test
+    public void metricsAreNotPublishedUnlessEnabled () throws Exception
+    {
+        PearFactory factory = FactoryRegistry.register(new PearFactory());
+        ObjectName name = new ObjectName(FactoryRegistry.MBEAN_DOMAIN + ":type=FactoryMetrics,name="
+                + ObjectName.quote(PearFactory.class.getName()));
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        FactoryRegistry.unregister(factory);
+    }
+}
@@ -0,0 +1,69 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class InstanceKeyTest
+{
+    private static final Class[][] TYPES = new Class[][] { {}, { String.class }, { String.class, int.class },
+            { String.class, int.class, Long.class }, { String.class, int.class, Long.class, Object.class } };
+    private static final Object[][] PARAMETERS = new Object[][] { {}, { "a" }, { "a", Integer.valueOf(1) },
+            { "a", Integer.valueOf(1), null }, { "a", Integer.valueOf(1), null, "d" } };
+
+    @Test
+    public void probeKeysEqualStoredKeysOfEveryArity ()
+    {
+        for (int arity = 0; arity < TYPES.length; arity++)
+        {
+            InstanceKey stored = InstanceKey.of(TYPES[arity], PARAMETERS[arity]);
+            InstanceKey.ParameterArrayKey probe = new InstanceKey.ParameterArrayKey(TYPES[arity], PARAMETERS[arity]);
+            assertEquals(stored, probe, "arity " + arity);
+            assertEquals(probe, stored, "arity " + arity);
+            assertEquals(stored.hashCode(), probe.hashCode(), "arity " + arity);
+            assertEquals(arity, stored.getArity());
+            assertArrayEquals(TYPES[arity], stored.getParameterTypes());
+            assertArrayEquals(PARAMETERS[arity], stored.getParameters());
+        }
+    }
+
+    @Test
+    public void keysWithoutArraysEqualKeysFromArrays ()
+    {
+        assertEquals(InstanceKey.of(TYPES[1], PARAMETERS[1]), InstanceKey.of(String.class, "a"));
+        assertEquals(InstanceKey.of(TYPES[2], PARAMETERS[2]), InstanceKey.of(String.class, "a", int.class, Integer.valueOf(1)));
+        InstanceKey three = InstanceKey.of(String.class, "a", int.class, Integer.valueOf(1), Long.class, null);
+        assertEquals(InstanceKey.of(TYPES[3], PARAMETERS[3]), three);
+        assertEquals(InstanceKey.of(TYPES[3], PARAMETERS[3]).hashCode(), three.hashCode());
+        assertEquals(Integer.valueOf(1), three.getParameter(1));
+    }
+
+    @Test
+    public void differentTypesParametersAndAritiesDoNotEqual ()
+    {
+        assertNotEquals(InstanceKey.of(String.class, "a"), InstanceKey.of(Object.class, "a"));
+        assertNotEquals(InstanceKey.of(String.class, "a"), InstanceKey.of(String.class, "b"));
+        assertNotEquals(InstanceKey.of(String.class, null), InstanceKey.of(String.class, "a"));
+        assertNotEquals(InstanceKey.of(TYPES[0], PARAMETERS[0]), InstanceKey.of(String.class, null));
+        assertEquals(InstanceKey.of((Class[]) null, (Object[]) null), InstanceKey.of(TYPES[0], PARAMETERS[0]));
+    }
+
+    @Test
+    public void keysDoNotRetainTheArrays ()
+    {
+        Class[] types = TYPES[4].clone();
+        Object[] parameters = PARAMETERS[4].clone();
+        InstanceKey key = InstanceKey.of(types, parameters);
+        parameters[0] = "changed";
+        assertEquals("a", key.getParameter(0));
+    }
+
+    @Test
+    public void mismatchedArraysAreRejected ()
+    {
+        assertThrows(IllegalArgumentException.class, () -> InstanceKey.of(TYPES[2], PARAMETERS[1]));
+    }
+}
@@ -0,0 +1,98 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class InstancePoolTest
+{
+    public static class Connection
+    {
+        private final String host;
+
+        public Connection(String host)
+        {
+            this.host = host;
+        }
+
+        public String getHost ()
+        {
+            return host;
+        }
+    }
+
+    public static class ConnectionFactory extends BaseParameterizedFactory<Connection>
+    {
+        public ConnectionFactory(InstanceLifecycle lifecycle)
+        {
+            defaultLifecycle = lifecycle;
+            defaultImplementationClass = Connection.class;
+        }
+
+        public Connection borrow (String host)
+        {
+            return borrowInstance(new Class[] { String.class }, new Object[] { host });
+        }
+
+        public void release (String host, Connection connection)
+        {
+            releaseInstance(new Class[] { String.class }, new Object[] { host }, connection);
+        }
+    }
+
+    @Test
+    public void onlyLentInstancesAreTakenBackOnce ()
+    {
+        InstancePool<Object> pool = new InstancePool<Object>(4);
+        Object lent = new Object();
+        pool.lend(lent);
+        assertEquals(1, pool.getLentCount());
+        assertFalse(pool.takeBack(new Object()));
+        assertTrue(pool.takeBack(lent));
+        assertFalse(pool.takeBack(lent));
+        assertEquals(0, pool.getLentCount());
+    }
+
+    @Test
+    public void releasedInstanceIsBorrowedAgain ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.POOLED);
+        Connection connection = factory.borrow("a");
+        factory.release("a", connection);
+        assertSame(connection, factory.borrow("a"));
+    }
+
+    @Test
+    public void doubleReleaseIsRejected ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.POOLED);
+        Connection connection = factory.borrow("a");
+        factory.release("a", connection);
+        assertThrows(IllegalArgumentException.class, () -> factory.release("a", connection));
+        assertSame(connection, factory.borrow("a"));
+        assertNotSame(connection, factory.borrow("a"));
+    }
+
+    @Test
+    public void foreignReleasesAreRejected ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.POOLED);
+        Connection connection = factory.borrow("a");
+        assertThrows(IllegalArgumentException.class, () -> factory.release("a", new Connection("a")));
+        assertThrows(IllegalArgumentException.class, () -> factory.release("b", connection));
+        factory.release("a", connection);
+    }
+
+    @Test
+    public void nonPooledFactoryRejectsBorrowAndRelease ()
+    {
+        ConnectionFactory factory = new ConnectionFactory(InstanceLifecycle.NEW_INSTANCE_EACH_TIME);
+        assertThrows(IllegalArgumentException.class, () -> factory.borrow("a"));
+        assertThrows(IllegalArgumentException.class, () -> factory.release("a", new Connection("a")));
+    }
+}
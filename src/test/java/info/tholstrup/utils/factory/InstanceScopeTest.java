@@ -0,0 +1,117 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+
+public class InstanceScopeTest
+{
+    public static class Widget
+    {
+        public Widget()
+        {
+        }
+    }
+
+    public static class WidgetFactory extends BaseParameterizedFactory<Widget>
+    {
+        public WidgetFactory()
+        {
+            defaultLifecycle = InstanceLifecycle.SCOPED;
+            defaultImplementationClass = Widget.class;
+        }
+    }
+
+    @Test
+    public void instancesAreSharedWithinAScope ()
+    {
+        WidgetFactory factory = new WidgetFactory();
+        Widget outside;
+        try (InstanceScope scope = InstanceScope.open())
+        {
+            outside = factory.getInstance();
+            assertSame(outside, factory.getInstance());
+            try (InstanceScope inner = InstanceScope.open())
+            {
+                assertNotSame(outside, factory.getInstance());
+            }
+            assertSame(outside, factory.getInstance());
+        }
+        try (InstanceScope scope = InstanceScope.open())
+        {
+            assertNotSame(outside, factory.getInstance());
+        }
+    }
+
+    @Test
+    public void platformThreadsFallBackOnTheirOwnScope () throws Exception
+    {
+        final WidgetFactory factory = new WidgetFactory();
+        Widget first = factory.getInstance();
+        try
+        {
+            assertSame(first, factory.getInstance());
+            try (InstanceScope scope = InstanceScope.open())
+            {
+                assertNotSame(first, factory.getInstance());
+                // only the scope of the thread itself is closed.
+                InstanceScope.closeThreadScope();
+            }
+            assertSame(first, factory.getInstance());
+
+            FutureTask<Widget> otherThread = new FutureTask<Widget>(() -> factory.getInstance());
+            new Thread(otherThread).start();
+            assertNotSame(first, otherThread.get());
+        }
+        finally
+        {
+            InstanceScope.closeThreadScope();
+        }
+        assertNotSame(first, factory.getInstance());
+        InstanceScope.closeThreadScope();
+    }
+
+    @Test
+    @EnabledForJreRange(min = JRE.JAVA_21)
+    public void virtualThreadsNeedAnOpenScope () throws Throwable
+    {
+        final WidgetFactory factory = new WidgetFactory();
+        final AtomicReference<Throwable> withoutScope = new AtomicReference<Throwable>();
+        final AtomicReference<Widget> withScope = new AtomicReference<Widget>();
+        Runnable task = () -> {
+            try
+            {
+                factory.getInstance();
+            }
+            catch (Throwable e)
+            {
+                withoutScope.set(e);
+            }
+            try (InstanceScope scope = InstanceScope.open())
+            {
+                withScope.set(factory.getInstance());
+            }
+        };
+        // Thread.startVirtualThread only exists from Java 21 onwards.
+        Thread thread = (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, task);
+        thread.join();
+        assertTrue(withoutScope.get() instanceof IllegalStateException, String.valueOf(withoutScope.get()));
+        assertTrue(withScope.get() != null);
+    }
+
+    @Test
+    public void warmUpNeedsNoScope ()
+    {
+        WidgetFactory factory = new WidgetFactory();
+        WarmUpReport report = factory.warmUp(Collections.singletonList(new MethodSignature(new Class[] {}, new Object[] {})));
+        assertTrue(report.isSuccessful(), report.toString());
+    }
+}
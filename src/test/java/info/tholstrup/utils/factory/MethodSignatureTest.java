@@ -0,0 +1,19 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class MethodSignatureTest
+{
+    @Test
+    public void equalSignaturesAreEqual ()
+    {
+        MethodSignature first = new MethodSignature(new Class[] { String.class }, new Object[] { "red" });
+        MethodSignature second = new MethodSignature(new Class[] { String.class }, new Object[] { "red" });
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertNotEquals(first, new MethodSignature(new Class[] { String.class }, new Object[] { "green" }));
+    }
+}
@@ -0,0 +1,108 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest
+{
+    static final AtomicInteger constructions = new AtomicInteger();
+    static volatile CountDownLatch release = new CountDownLatch(0);
+    static volatile boolean failing;
+
+    public static class Expensive
+    {
+        public Expensive(String name) throws InterruptedException
+        {
+            constructions.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+            if (failing)
+            {
+                throw new IllegalStateException("cannot construct " + name);
+            }
+        }
+    }
+
+    public static class ExpensiveFactory extends BaseParameterizedFactory<Expensive>
+    {
+        public ExpensiveFactory()
+        {
+            defaultLifecycle = InstanceLifecycle.CACHED;
+            defaultImplementationClass = Expensive.class;
+        }
+
+        public Expensive get (String name)
+        {
+            return getInstance(new Class[] { String.class }, new Object[] { name });
+        }
+    }
+
+    @Test
+    public void concurrentMissesConstructOnce () throws Exception
+    {
+        final ExpensiveFactory factory = new ExpensiveFactory();
+        constructions.set(0);
+        release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<Expensive>> results = new ArrayList<Future<Expensive>>();
+            for (int i = 0; i < 8; i++)
+            {
+                results.add(executor.submit(() -> factory.get("shared")));
+            }
+            while (constructions.get() == 0)
+            {
+                Thread.sleep(1);
+            }
+            // give the other requests time to miss the cache while the construction is in flight.
+            Thread.sleep(50);
+            release.countDown();
+
+            Expensive expected = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<Expensive> result : results)
+            {
+                assertSame(expected, result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, constructions.get());
+        }
+        finally
+        {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedConstructionIsRetriedByTheNextRequest ()
+    {
+        ExpensiveFactory factory = new ExpensiveFactory();
+        constructions.set(0);
+        release = new CountDownLatch(0);
+        failing = true;
+        try
+        {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> factory.get("flaky"));
+            assertTrue(String.valueOf(e.getCause().getCause()).contains("cannot construct flaky"), String.valueOf(e));
+        }
+        finally
+        {
+            failing = false;
+        }
+        factory.get("flaky");
+        assertEquals(2, constructions.get());
+        assertEquals(1, factory.getMetrics().getFailures());
+    }
+}
@@ -0,0 +1,222 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WarmUpProfileTest
+{
+    public static class Plum
+    {
+        private final Object variety;
+
+        public Plum(String variety)
+        {
+            this.variety = variety;
+        }
+
+        public Plum(Object variety)
+        {
+            this.variety = variety;
+        }
+
+        public Object getVariety ()
+        {
+            return variety;
+        }
+    }
+
+    /**
+     * Written from the factory template: the singleton is held in a static field and only registers itself on its first request.
+     */
+    public static class PlumFactory extends BaseParameterizedFactory<Plum>
+    {
+        private static PlumFactory factoryInstance = new PlumFactory();
+
+        private PlumFactory()
+        {
+            defaultLifecycle = InstanceLifecycle.CACHED;
+            defaultImplementationClass = Plum.class;
+        }
+
+        public static PlumFactory getFactoryInstance ()
+        {
+            return factoryInstance;
+        }
+
+        public Plum get (String variety)
+        {
+            return getInstance(new Class[] { String.class }, new Object[] { variety });
+        }
+    }
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    public void stopRecording ()
+    {
+        WarmUpProfile.stopRecording();
+    }
+
+    @Test
+    public void recordedRequestsAreReplayedIntoUnregisteredSingletons () throws IOException
+    {
+        Path file = directory.resolve("warm-up.profile");
+        WarmUpProfile.startRecording(file);
+        // another run: this instance stands in for the singleton of that run.
+        PlumFactory previousRun = new PlumFactory();
+        previousRun.get("damson");
+        previousRun.get("damson");
+        previousRun.get("mirabelle");
+        WarmUpProfile.save(file);
+        WarmUpProfile.stopRecording();
+        FactoryRegistry.unregister(previousRun);
+
+        PlumFactory factory = PlumFactory.getFactoryInstance();
+        assertFalse(FactoryRegistry.isRegistered(factory));
+        List<WarmUpProfile.Entry> entries = WarmUpProfile.load(file);
+        assertEquals(PlumFactory.class.getName(), entries.get(0).getFactoryClass());
+        assertArrayEquals(new Object[] { "damson" }, entries.get(0).getSignature().getParameters());
+        assertEquals(2, entries.get(0).getCount());
+
+        WarmUpReport report = WarmUpProfile.replay(file, 10);
+        assertTrue(report.isSuccessful(), report.toString());
+        assertTrue(FactoryRegistry.isRegistered(factory));
+        long misses = factory.getMetrics().getMisses();
+        assertEquals("damson", factory.get("damson").getVariety());
+        factory.get("mirabelle");
+        assertEquals(misses, factory.getMetrics().getMisses());
+        assertEquals(2, factory.getMetrics().getHits());
+        FactoryRegistry.unregister(factory);
+    }
+
+    @Test
+    public void unwritableParametersAreCountedUnderAPlaceholder () throws IOException
+    {
+        Path file = directory.resolve("warm-up.profile");
+        WarmUpProfile.startRecording(file);
+        PlumFactory factory = new PlumFactory();
+        Object first = new Object();
+        Object second = new Object();
+        factory.getInstance(new Class[] { Object.class }, new Object[] { first });
+        factory.getInstance(new Class[] { Object.class }, new Object[] { second });
+        factory.get("damson");
+
+        List<WarmUpProfile.Entry> recorded = WarmUpProfile.getRecording().entries();
+        assertEquals(2, recorded.size());
+        WarmUpProfile.Entry placeholder = recorded.get(0);
+        assertEquals(2, placeholder.getCount());
+        assertArrayEquals(new Class[] { Object.class }, placeholder.getSignature().getParameterTypes());
+        assertNotSame(first, placeholder.getSignature().getParameters()[0]);
+        assertNotSame(second, placeholder.getSignature().getParameters()[0]);
+
+        WarmUpProfile.save(file);
+        List<WarmUpProfile.Entry> saved = WarmUpProfile.load(file);
+        assertEquals(1, saved.size());
+        assertArrayEquals(new Object[] { "damson" }, saved.get(0).getSignature().getParameters());
+        FactoryRegistry.unregister(factory);
+    }
+
+    @Test
+    public void readsWrittenEntries () throws IOException
+    {
+        List<WarmUpProfile.Entry> entries = WarmUpProfile.read(ByteBuffer.wrap(profile()));
+        assertEquals(1, entries.size());
+        WarmUpProfile.Entry entry = entries.get(0);
+        assertEquals("com.example.AppleFactory", entry.getFactoryClass());
+        assertEquals(7, entry.getCount());
+        assertArrayEquals(new Class[] { String.class, int.class, TimeUnit.class }, entry.getSignature().getParameterTypes());
+        assertArrayEquals(new Object[] { "green", Integer.valueOf(3), TimeUnit.SECONDS }, entry.getSignature().getParameters());
+    }
+
+    @Test
+    public void everyTruncationFailsWithIOException () throws IOException
+    {
+        byte[] profile = profile();
+        for (int length = 0; length < profile.length; length++)
+        {
+            final ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(profile, length));
+            assertThrows(IOException.class, () -> WarmUpProfile.read(truncated), "truncated to " + length + " bytes");
+        }
+    }
+
+    @Test
+    public void hugeCountsAndLengthsFailWithIOException () throws IOException
+    {
+        ByteBuffer badCount = ByteBuffer.wrap(profile());
+        badCount.putInt(8, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> WarmUpProfile.read(badCount));
+
+        ByteBuffer negativeCount = ByteBuffer.wrap(profile());
+        negativeCount.putInt(8, -1);
+        assertThrows(IOException.class, () -> WarmUpProfile.read(negativeCount));
+
+        ByteBuffer badLength = ByteBuffer.wrap(profile());
+        badLength.putInt(12, -5);
+        assertThrows(IOException.class, () -> WarmUpProfile.read(badLength));
+    }
+
+    @Test
+    public void corruptProfileReplaysAsEmptyReport () throws IOException
+    {
+        byte[] profile = profile();
+        Path file = directory.resolve("warm-up.profile");
+        Files.write(file, Arrays.copyOf(profile, profile.length - 3));
+        WarmUpReport report = WarmUpProfile.replay(file, 10);
+        assertTrue(report.getResults().isEmpty());
+        assertTrue(report.isSuccessful());
+    }
+
+    /**
+     * @return A profile with a single entry, written in the format of {@link WarmUpProfile#save(Path)}.
+     */
+    private static byte[] profile () throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x46575550);
+        out.writeInt(1);
+        out.writeInt(1);
+        writeString(out, "com.example.AppleFactory");
+        out.writeLong(7);
+        out.writeShort(3);
+        writeString(out, String.class.getName());
+        out.writeByte(1);
+        writeString(out, "green");
+        writeString(out, int.class.getName());
+        out.writeByte(2);
+        out.writeInt(3);
+        writeString(out, TimeUnit.class.getName());
+        out.writeByte(10);
+        writeString(out, TimeUnit.class.getName());
+        writeString(out, TimeUnit.SECONDS.name());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString (DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
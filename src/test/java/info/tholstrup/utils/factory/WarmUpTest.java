@@ -0,0 +1,98 @@
+package info.tholstrup.utils.factory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class WarmUpTest
+{
+    static final AtomicInteger constructions = new AtomicInteger();
+
+    public static class Template
+    {
+        public Template(String name)
+        {
+            if (name.isEmpty())
+            {
+                throw new IllegalArgumentException("a template needs a name");
+            }
+            constructions.incrementAndGet();
+        }
+    }
+
+    public static class TemplateFactory extends BaseParameterizedFactory<Template>
+    {
+        public TemplateFactory(InstanceLifecycle lifecycle)
+        {
+            defaultLifecycle = lifecycle;
+            defaultImplementationClass = Template.class;
+        }
+
+        public Template get (String name)
+        {
+            return getInstance(new Class[] { String.class }, new Object[] { name });
+        }
+    }
+
+    private static List<MethodSignature> signatures (String... names)
+    {
+        List<MethodSignature> signatures = new ArrayList<MethodSignature>();
+        for (String name : names)
+        {
+            signatures.add(new MethodSignature(new Class[] { String.class }, new Object[] { name }));
+        }
+        return signatures;
+    }
+
+    @Test
+    public void warmUpFillsTheCacheInParallel ()
+    {
+        TemplateFactory factory = new TemplateFactory(InstanceLifecycle.CACHED);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            WarmUpReport report = factory.warmUp(signatures("a", "b", "c", "d"), executor);
+            assertTrue(report.isSuccessful(), report.toString());
+            assertEquals(4, report.getResults().size());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        long misses = factory.getMetrics().getMisses();
+        factory.get("a");
+        factory.get("d");
+        assertEquals(misses, factory.getMetrics().getMisses());
+        assertEquals(2, factory.getMetrics().getHits());
+    }
+
+    @Test
+    public void failuresAreReportedPerSignature ()
+    {
+        TemplateFactory factory = new TemplateFactory(InstanceLifecycle.CACHED);
+        WarmUpReport report = factory.warmUp(signatures("ok", ""));
+        assertFalse(report.isSuccessful());
+        assertEquals(2, report.getResults().size());
+        assertEquals(1, report.getFailures().size());
+        assertEquals("", report.getFailures().get(0).getSignature().getParameters()[0]);
+    }
+
+    @Test
+    public void warmUpOfAPooledFactoryFillsThePool ()
+    {
+        TemplateFactory factory = new TemplateFactory(InstanceLifecycle.POOLED);
+        assertTrue(factory.warmUp(signatures("pooled")).isSuccessful());
+        int constructed = constructions.get();
+        Template template = factory.borrowInstance(new Class[] { String.class }, new Object[] { "pooled" });
+        assertEquals(constructed, constructions.get());
+        factory.releaseInstance(new Class[] { String.class }, new Object[] { "pooled" }, template);
+    }
+}
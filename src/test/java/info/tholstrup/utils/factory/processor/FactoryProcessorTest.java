@@ -0,0 +1,170 @@
+package info.tholstrup.utils.factory.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.ParameterizedType;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import info.tholstrup.utils.factory.Factory;
+
+public class FactoryProcessorTest
+{
+    @Factory(cached = true)
+    public static class Order
+    {
+        private final String id;
+        private final int quantity;
+        private final List<String> lines;
+
+        public Order(String id)
+        {
+            this(id, 1);
+        }
+
+        public Order(String id, int quantity)
+        {
+            this.id = id;
+            this.quantity = quantity;
+            this.lines = null;
+        }
+
+        public Order(List<String> lines)
+        {
+            this.id = null;
+            this.quantity = lines.size();
+            this.lines = lines;
+        }
+
+        public Order(String id, int quantity, long created, double price)
+        {
+            this(id, quantity);
+        }
+
+        public String getId ()
+        {
+            return id;
+        }
+
+        public int getQuantity ()
+        {
+            return quantity;
+        }
+
+        public List<String> getLines ()
+        {
+            return lines;
+        }
+    }
+
+    @Factory
+    public static class Ticket
+    {
+        static int constructorCalls;
+
+        private final long number;
+
+        public Ticket(long number)
+        {
+            constructorCalls++;
+            this.number = number;
+        }
+
+        public long getNumber ()
+        {
+            return number;
+        }
+    }
+
+    @Factory
+    public static class Pear
+    {
+        private final String name;
+
+        public Pear(String name) throws IOException
+        {
+            if (name.isEmpty())
+            {
+                throw new IOException("no name");
+            }
+            this.name = name;
+        }
+
+        public String getName ()
+        {
+            return name;
+        }
+    }
+
+    @Test
+    public void typedAndArrayRequestsShareCachedInstances ()
+    {
+        OrderFactory factory = OrderFactory.getFactoryInstance();
+        Order order = factory.getInstance("typed", 2);
+        assertEquals(2, order.getQuantity());
+        assertSame(order, factory.getInstance("typed", 2));
+        assertSame(order, factory.getInstance(new Class[] { String.class, int.class }, new Object[] { "typed", Integer.valueOf(2) }));
+        assertNotSame(order, factory.getInstance("typed", 3));
+        assertNotSame(order, factory.getInstance("typed"));
+    }
+
+    @Test
+    public void arrayRequestsAreCachedForTypedRequests ()
+    {
+        OrderFactory factory = OrderFactory.getFactoryInstance();
+        Order order = factory.getInstance(new Class[] { String.class }, new Object[] { "array" });
+        assertSame(order, factory.getInstance("array"));
+    }
+
+    @Test
+    public void genericParameterTypesAreDeclared () throws Exception
+    {
+        assertTrue(OrderFactory.class.getMethod("getInstance", List.class).getGenericParameterTypes()[0] instanceof ParameterizedType);
+        Order order = OrderFactory.getFactoryInstance().getInstance(Arrays.asList("a", "b"));
+        assertEquals(Arrays.asList("a", "b"), order.getLines());
+    }
+
+    @Test
+    public void moreParametersThanKeyFieldsAreSupported ()
+    {
+        OrderFactory factory = OrderFactory.getFactoryInstance();
+        Order order = factory.getInstance("wide", 4, 5L, 6.5d);
+        assertEquals(4, order.getQuantity());
+        assertSame(order, factory.getInstance("wide", 4, 5L, 6.5d));
+    }
+
+    @Test
+    public void uncachedFactoryConstructsEachTime ()
+    {
+        TicketFactory factory = TicketFactory.getFactoryInstance();
+        int constructorCalls = Ticket.constructorCalls;
+        Ticket ticket = factory.getInstance(7L);
+        assertEquals(7L, ticket.getNumber());
+        assertNotSame(ticket, factory.getInstance(7L));
+        assertEquals(constructorCalls + 2, Ticket.constructorCalls);
+    }
+
+    @Test
+    public void checkedConstructorExceptionsAreWrappedAsWhenCalledReflectively ()
+    {
+        PearFactory factory = PearFactory.getFactoryInstance();
+        assertEquals("conference", factory.getInstance("conference").getName());
+
+        RuntimeException typed = assertThrows(RuntimeException.class, () -> factory.getInstance(""));
+        assertTrue(typed.getCause() instanceof InvocationTargetException, String.valueOf(typed.getCause()));
+        assertTrue(typed.getCause().getCause() instanceof IOException, String.valueOf(typed.getCause().getCause()));
+
+        RuntimeException array = assertThrows(RuntimeException.class,
+                () -> factory.getInstance(new Class[] { String.class }, new Object[] { "" }));
+        assertTrue(array.getCause() instanceof InvocationTargetException, String.valueOf(array.getCause()));
+        assertEquals("no name", array.getCause().getCause().getMessage());
+    }
+}